@@ -23,6 +23,7 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.inject.Inject;
 import javax.xml.bind.JAXBException;
 
 import org.apache.commons.io.FileUtils;
@@ -47,6 +48,9 @@ public class ApplicationCatalogueService implements IApplicationCatalogueService
     @Value("${measureplatform.storage.application}")
     private String applicationsPath;
 
+    @Inject
+    private MeasureImplementationRegistry implementationRegistry;
+
     
 	@Override
     @Transactional(readOnly = true)
@@ -74,7 +78,15 @@ public class ApplicationCatalogueService implements IApplicationCatalogueService
             Path target = new File(applicationsPath).toPath().resolve(measureInfos.getName());
             Files.createDirectories(target);
             unzip.unzip(application.toString(), target.toString());
-            
+
+            // Index the entry points of the measures provided by the application
+            for (File measureFolder : target.toFile().listFiles()) {
+                if (measureFolder.toPath().resolve(MeasurePackager.MEATADATAFILE).toFile().exists()) {
+                    MeasurePackageIndex.build(measureFolder.toPath());
+                }
+            }
+            implementationRegistry.invalidateApplication(measureInfos.getName());
+
         } catch (JAXBException | IOException e) {
             log.error(e.getLocalizedMessage());
         }
@@ -86,6 +98,7 @@ public class ApplicationCatalogueService implements IApplicationCatalogueService
             File repository = new File(applicationsPath);
             for (File file : repository.listFiles()) {
                 if (file.getName().equals(applicationName)) {                           
+                    implementationRegistry.invalidateApplication(applicationName);
                     FileUtils.deleteDirectory(file);
                     break;
                 }
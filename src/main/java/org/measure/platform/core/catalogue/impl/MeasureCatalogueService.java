@@ -17,18 +17,13 @@
 package org.measure.platform.core.catalogue.impl;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
 
+import javax.inject.Inject;
 import javax.xml.bind.JAXBException;
 
 import org.apache.commons.io.FileUtils;
@@ -53,6 +48,9 @@ public class MeasureCatalogueService implements IMeasureCatalogueService {
     
     @Value("${measureplatform.storage.application}")
     private String applicationsPath;
+
+    @Inject
+    private MeasureImplementationRegistry implementationRegistry;
     
     @Override
     public void storeMeasure(Path measure) {
@@ -63,6 +61,9 @@ public class MeasureCatalogueService implements IMeasureCatalogueService {
             Files.createDirectories(target);
             unzip.unzip(measure.toString(), target.toString());
             
+            // Index the measure entry point and reload the implementation only if the content of the package changed
+            MeasurePackageIndex index = MeasurePackageIndex.build(target);
+            implementationRegistry.invalidate(null, measureInfos.getName(), index.getContentHash());
         } catch (JAXBException | IOException e) {
             log.error(e.getLocalizedMessage());
         }
@@ -91,6 +92,7 @@ public class MeasureCatalogueService implements IMeasureCatalogueService {
             File repository = new File(measurePath);
             for (File file : repository.listFiles()) {
                 if (file.getName().equals(measureId)) {                           
+                    implementationRegistry.invalidate(null, measureId, null);
                     FileUtils.deleteDirectory(file);
                     break;
                 }
@@ -113,71 +115,11 @@ public class MeasureCatalogueService implements IMeasureCatalogueService {
         }
                 
         if (measureImpl.toFile().exists()) {
-            List<URL> jars;
-            try {
-                URL measureJar = getJars(measureImpl).get(0);
-                jars = getJars(measureImpl.resolve("lib"));
-                jars.add(measureJar);            
-        
-                try (URLClassLoader loader = new URLClassLoader(jars.toArray(new URL[jars.size()]),IMeasure.class.getClassLoader())) {
-                    IMeasure result = null;
-                    for (URL jar : jars) {
-                        JarInputStream jarStream = new JarInputStream(new FileInputStream(new File(jar.getFile())));
-                        for (JarEntry jarEntry = jarStream.getNextJarEntry(); jarEntry != null; jarEntry = jarStream.getNextJarEntry()) {
-                            if (jarEntry.getName().endsWith(".class")) { //$NON-NLS-1$
-								String metaclassNamespace = getNamespace(jarEntry.getName());
-                                Class<?> metaclass = null;
-                        
-                     
-                                try {
-                                    metaclass = loader.loadClass(metaclassNamespace);
-                                } catch (Throwable e) {
-                                    log.error(e.getLocalizedMessage());
-                                    System.out.println(metaclassNamespace);
-                                }
-                                if (metaclass != null && IMeasure.class.isAssignableFrom(metaclass)) {
-                                    result = (IMeasure) metaclass.newInstance();
-                                }
-                            }
-                        }
-                    }
-                    return result;
-                } catch (Exception e) {
-                    log.error(e.getLocalizedMessage());
-                }
-            } catch (MalformedURLException e) {
-                log.error(e.getLocalizedMessage());
-            }
+            return implementationRegistry.newInstance(application, measure, measureImpl);
         }
         return null;
     }
 
-    private String getNamespace(String jarEntryName) {
-        String namespace = jarEntryName;
-        namespace = namespace.replaceAll("/", "\\.");
-        String separator = "/";
-        
-        int index = namespace.lastIndexOf(separator);
-        namespace = namespace.substring(index + 1);
-        
-        if (namespace.endsWith(".class")) {
-            namespace = namespace.substring(0, namespace.length() - 6);
-        }
-        return namespace;
-    }
-
-    private List<URL> getJars(Path measureImpl) throws MalformedURLException {
-        List<URL> jars = new ArrayList<>();
-        if (measureImpl.toFile().exists() && measureImpl.toFile().isDirectory()) {
-            for (File sub : measureImpl.toFile().listFiles()) {
-                if (sub.getName().endsWith("jar")) {
-                    jars.add(sub.toURI().toURL());
-                }
-            }
-        }
-        return jars;
-    }
-
     @Override
     public SMMMeasure getMeasure(String applicationName,String measureName) {
      
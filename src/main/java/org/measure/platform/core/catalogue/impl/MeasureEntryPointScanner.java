@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.catalogue.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+
+import org.measure.smm.measure.api.IMeasure;
+
+/**
+ * Find the {@link IMeasure} implementation of a measure package by reading the
+ * headers of the class files of its jars. No class of the package is loaded:
+ * the type hierarchy is resolved from the class names, and only the ancestors
+ * provided by the platform are looked up in the platform class loader.
+ */
+public class MeasureEntryPointScanner {
+
+    private static final int CLASS_MAGIC = 0xCAFEBABE;
+
+    private final Map<String, ClassHeader> headers = new HashMap<>();
+
+    private final Map<String, Boolean> measureTypes = new HashMap<>();
+
+    /**
+     * Scan the jars of a measure package.
+     * @param libJars the dependencies of the measure
+     * @param measureJars the jars of the measure itself
+     * @return the binary name of the measure implementation, or null if none was found
+     */
+    public String findEntryPoint(List<File> libJars, List<File> measureJars) throws IOException {
+        List<ClassHeader> libClasses = new ArrayList<>();
+        for (File jar : libJars) {
+            libClasses.addAll(readJar(jar));
+        }
+        List<ClassHeader> measureClasses = new ArrayList<>();
+        for (File jar : measureJars) {
+            measureClasses.addAll(readJar(jar));
+        }
+
+        // Implementations of the measure jar take precedence over the ones of its dependencies
+        String entryPoint = findLastImplementation(measureClasses);
+        if (entryPoint == null) {
+            entryPoint = findLastImplementation(libClasses);
+        }
+        return entryPoint;
+    }
+
+    private String findLastImplementation(List<ClassHeader> classes) {
+        String result = null;
+        for (ClassHeader header : classes) {
+            if (!Modifier.isInterface(header.access) && !Modifier.isAbstract(header.access) && isMeasureType(header.name)) {
+                result = header.name.replace('/', '.');
+            }
+        }
+        return result;
+    }
+
+    private boolean isMeasureType(String internalName) {
+        if (internalName == null) {
+            return false;
+        }
+        Boolean known = measureTypes.get(internalName);
+        if (known != null) {
+            return known;
+        }
+
+        // Guard against cyclic hierarchies in malformed packages
+        measureTypes.put(internalName, Boolean.FALSE);
+
+        boolean result = false;
+        ClassHeader header = headers.get(internalName);
+        if (header != null) {
+            result = isMeasureType(header.superName);
+            for (int i = 0; !result && i < header.interfaces.length; i++) {
+                result = isMeasureType(header.interfaces[i]);
+            }
+        } else {
+            try {
+                Class<?> platformClass = Class.forName(internalName.replace('/', '.'), false, IMeasure.class.getClassLoader());
+                result = IMeasure.class.isAssignableFrom(platformClass);
+            } catch (ClassNotFoundException | LinkageError e) {
+                result = false;
+            }
+        }
+        measureTypes.put(internalName, result);
+        return result;
+    }
+
+    private List<ClassHeader> readJar(File jar) throws IOException {
+        List<ClassHeader> classes = new ArrayList<>();
+        try (JarInputStream jarStream = new JarInputStream(new BufferedInputStream(new FileInputStream(jar)))) {
+            for (JarEntry jarEntry = jarStream.getNextJarEntry(); jarEntry != null; jarEntry = jarStream.getNextJarEntry()) {
+                if (jarEntry.getName().endsWith(".class") && !jarEntry.getName().startsWith("META-INF/")) { //$NON-NLS-1$
+                    ClassHeader header = readHeader(jarStream);
+                    if (header != null) {
+                        headers.putIfAbsent(header.name, header);
+                        classes.add(header);
+                    }
+                }
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Read the header of a class file up to its interfaces (JVMS chapter 4).
+     */
+    private ClassHeader readHeader(InputStream classFile) throws IOException {
+        DataInputStream in = new DataInputStream(classFile);
+        if (in.readInt() != CLASS_MAGIC) {
+            return null;
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        int poolSize = in.readUnsignedShort();
+        int[] classNameIndexes = new int[poolSize];
+        String[] utf8 = new String[poolSize];
+        for (int i = 1; i < poolSize; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case 1: // Utf8
+                utf8[i] = in.readUTF();
+                break;
+            case 7: // Class
+                classNameIndexes[i] = in.readUnsignedShort();
+                break;
+            case 8: // String
+            case 16: // MethodType
+            case 19: // Module
+            case 20: // Package
+                in.skipBytes(2);
+                break;
+            case 15: // MethodHandle
+                in.skipBytes(3);
+                break;
+            case 3: // Integer
+            case 4: // Float
+            case 9: // Fieldref
+            case 10: // Methodref
+            case 11: // InterfaceMethodref
+            case 12: // NameAndType
+            case 17: // Dynamic
+            case 18: // InvokeDynamic
+                in.skipBytes(4);
+                break;
+            case 5: // Long
+            case 6: // Double
+                in.skipBytes(8);
+                i++;
+                break;
+            default:
+                throw new IOException("Invalid constant pool tag " + tag);
+            }
+        }
+
+        int access = in.readUnsignedShort();
+        String name = utf8[classNameIndexes[in.readUnsignedShort()]];
+        int superIndex = in.readUnsignedShort();
+        String superName = superIndex != 0 ? utf8[classNameIndexes[superIndex]] : null;
+        String[] interfaces = new String[in.readUnsignedShort()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = utf8[classNameIndexes[in.readUnsignedShort()]];
+        }
+        return new ClassHeader(name, superName, interfaces, access);
+    }
+
+    private static class ClassHeader {
+        private final String name;
+
+        private final String superName;
+
+        private final String[] interfaces;
+
+        private final int access;
+
+        ClassHeader(String name, String superName, String[] interfaces, int access) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.access = access;
+        }
+    }
+
+}
@@ -0,0 +1,360 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.catalogue.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.PreDestroy;
+import javax.xml.bind.DatatypeConverter;
+
+import org.measure.smm.measure.api.IMeasure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+/**
+ * Registry of the loaded measure implementations. Each measure package is loaded
+ * once in its own class loader, using the entry point recorded in its
+ * {@link MeasurePackageIndex}, and the resolved {@link IMeasure} class is kept until
+ * the package is replaced or deleted. Every call to {@link #newInstance} returns a
+ * fresh measure object created from the cached class. The class loader of a
+ * replaced package is closed once the measure objects created from it, which
+ * may still be executing, have all been garbage collected.
+ */
+@Component
+@Scope("singleton")
+public class MeasureImplementationRegistry {
+    private final Logger log = LoggerFactory.getLogger(MeasureImplementationRegistry.class);
+
+    static final String LIB_FOLDER = "lib";
+
+    private final Map<String, Future<LoadedMeasure>> implementations = new ConcurrentHashMap<>();
+
+    /**
+     * Implementations replaced or deleted, waiting for their measure objects to be collected.
+     */
+    private final List<LoadedMeasure> retired = new CopyOnWriteArrayList<>();
+
+    private final ReferenceQueue<IMeasure> collected = new ReferenceQueue<>();
+
+    @PreDestroy
+    public void cleanUp() {
+        for (String key : new ArrayList<>(implementations.keySet())) {
+            LoadedMeasure loaded = getDone(implementations.remove(key));
+            if (loaded != null) {
+                loaded.close();
+            }
+        }
+        for (LoadedMeasure loaded : retired) {
+            loaded.close();
+        }
+        retired.clear();
+    }
+
+    /**
+     * Create a new instance of the measure implementation stored in a measure package.
+     * @param application the application type of the measure, null for standalone measures
+     * @param measure the name of the measure
+     * @param measureImpl the folder of the unzipped measure package
+     * @return a new instance of the measure, or null if the package does not provide any implementation
+     */
+    public IMeasure newInstance(String application, String measure, Path measureImpl) {
+        LoadedMeasure loaded = getLoadedMeasure(getKey(application, measure), measureImpl);
+        if (loaded == null) {
+            return null;
+        }
+        releaseCollected();
+        try {
+            IMeasure instance = loaded.getMeasureClass().newInstance();
+            loaded.track(instance, collected);
+            return instance;
+        } catch (InstantiationException | IllegalAccessException e) {
+            log.error(e.getLocalizedMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Drop the cached implementation of a measure if the content of its package changed.
+     * @param application the application type of the measure, null for standalone measures
+     * @param measure the name of the measure
+     * @param contentHash the hash of the new package content, null to always invalidate
+     */
+    public void invalidate(String application, String measure, String contentHash) {
+        String key = getKey(application, measure);
+        Future<LoadedMeasure> cached = implementations.get(key);
+        if (cached == null) {
+            return;
+        }
+        LoadedMeasure loaded = getDone(cached);
+        if (contentHash != null && loaded != null && contentHash.equals(loaded.getContentHash())) {
+            return;
+        }
+        if (implementations.remove(key, cached)) {
+            log.debug("Measure implementation {} invalidated", key);
+            release(cached);
+        }
+    }
+
+    /**
+     * Drop the cached implementations of all the measures of an application.
+     */
+    public void invalidateApplication(String application) {
+        String prefix = getKey(application, "");
+        for (Iterator<Map.Entry<String, Future<LoadedMeasure>>> it = implementations.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Future<LoadedMeasure>> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                it.remove();
+                release(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Compute the hash of the content of a measure package, based on the jars of the
+     * measure and of its lib folder.
+     */
+    public static String computeContentHash(Path measureImpl) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            List<File> jars = new ArrayList<>();
+            jars.addAll(listJars(measureImpl));
+            jars.addAll(listJars(measureImpl.resolve(LIB_FOLDER)));
+
+            byte[] buffer = new byte[8192];
+            for (File jar : jars) {
+                digest.update(jar.getName().getBytes(StandardCharsets.UTF_8));
+                try (InputStream in = new FileInputStream(jar)) {
+                    for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+            }
+            return DatatypeConverter.printHexBinary(digest.digest()).toLowerCase();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private LoadedMeasure getLoadedMeasure(String key, Path measureImpl) {
+        Future<LoadedMeasure> future = implementations.get(key);
+        if (future == null) {
+            FutureTask<LoadedMeasure> task = new FutureTask<>(() -> load(measureImpl));
+            future = implementations.putIfAbsent(key, task);
+            if (future == null) {
+                future = task;
+                task.run();
+            }
+        }
+
+        try {
+            LoadedMeasure loaded = future.get();
+            if (loaded == null) {
+                // Do not keep failures, the package may be fixed later
+                implementations.remove(key, future);
+            }
+            return loaded;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            implementations.remove(key, future);
+            log.error(e.getCause().getLocalizedMessage());
+        }
+        return null;
+    }
+
+    private LoadedMeasure load(Path measureImpl) throws IOException {
+        if (!measureImpl.toFile().exists()) {
+            return null;
+        }
+
+        List<URL> jars = toURLs(listJars(measureImpl.resolve(LIB_FOLDER)));
+        List<URL> measureJars = toURLs(listJars(measureImpl));
+        if (measureJars.isEmpty()) {
+            return null;
+        }
+        jars.add(measureJars.get(0));
+
+        // Packages uploaded before the index existed are indexed on their first load
+        MeasurePackageIndex index = MeasurePackageIndex.read(measureImpl);
+        if (index == null) {
+            index = MeasurePackageIndex.build(measureImpl);
+        }
+        if (index.getEntryPoint() == null) {
+            log.error("No measure implementation found in " + measureImpl);
+            return null;
+        }
+
+        URLClassLoader loader = new URLClassLoader(jars.toArray(new URL[jars.size()]), IMeasure.class.getClassLoader());
+        try {
+            Class<? extends IMeasure> measureClass = loader.loadClass(index.getEntryPoint()).asSubclass(IMeasure.class);
+            log.debug("Measure implementation {} loaded from {}", measureClass.getName(), measureImpl);
+            return new LoadedMeasure(index.getContentHash(), loader, measureClass);
+        } catch (ClassNotFoundException | LinkageError | ClassCastException e) {
+            log.error(e.getLocalizedMessage());
+        }
+        loader.close();
+        return null;
+    }
+
+    /**
+     * Retire a replaced implementation, its class loader being closed once it is no longer used.
+     */
+    private void release(Future<LoadedMeasure> future) {
+        LoadedMeasure loaded = getDone(future);
+        if (loaded != null) {
+            retired.add(loaded);
+        }
+        releaseCollected();
+    }
+
+    /**
+     * Close the class loaders of the retired implementations whose measure objects have all been collected.
+     */
+    private void releaseCollected() {
+        Reference<? extends IMeasure> reference;
+        while ((reference = collected.poll()) != null) {
+            ((MeasureObjectReference) reference).release();
+        }
+        for (LoadedMeasure loaded : retired) {
+            if (!loaded.isUsed() && retired.remove(loaded)) {
+                loaded.close();
+            }
+        }
+    }
+
+    private LoadedMeasure getDone(Future<LoadedMeasure> future) {
+        if (future != null && future.isDone()) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static String getKey(String application, String measure) {
+        return (application != null ? application : "") + "/" + measure;
+    }
+
+    static List<File> listJars(Path folder) {
+        List<File> jars = new ArrayList<>();
+        if (Files.isDirectory(folder)) {
+            for (File sub : folder.toFile().listFiles()) {
+                if (sub.getName().endsWith("jar")) {
+                    jars.add(sub);
+                }
+            }
+            jars.sort((a, b) -> a.getName().compareTo(b.getName()));
+        }
+        return jars;
+    }
+
+    private static List<URL> toURLs(List<File> files) throws MalformedURLException {
+        List<URL> urls = new ArrayList<>();
+        for (File file : files) {
+            urls.add(file.toURI().toURL());
+        }
+        return urls;
+    }
+
+    private class LoadedMeasure {
+        private final String contentHash;
+
+        private final URLClassLoader loader;
+
+        private final Class<? extends IMeasure> measureClass;
+
+        private final Set<MeasureObjectReference> instances = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        LoadedMeasure(String contentHash, URLClassLoader loader, Class<? extends IMeasure> measureClass) {
+            this.contentHash = contentHash;
+            this.loader = loader;
+            this.measureClass = measureClass;
+        }
+
+        String getContentHash() {
+            return contentHash;
+        }
+
+        Class<? extends IMeasure> getMeasureClass() {
+            return measureClass;
+        }
+
+        void track(IMeasure instance, ReferenceQueue<IMeasure> queue) {
+            instances.add(new MeasureObjectReference(this, instance, queue));
+        }
+
+        boolean isUsed() {
+            return !instances.isEmpty();
+        }
+
+        void close() {
+            try {
+                loader.close();
+            } catch (IOException e) {
+                log.error(e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Weak reference on a measure object, following the use of the class loader it comes from.
+     */
+    private static class MeasureObjectReference extends WeakReference<IMeasure> {
+        private final LoadedMeasure owner;
+
+        MeasureObjectReference(LoadedMeasure owner, IMeasure instance, ReferenceQueue<IMeasure> queue) {
+            super(instance, queue);
+            this.owner = owner;
+        }
+
+        void release() {
+            owner.instances.remove(this);
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.catalogue.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Index of a measure package, stored next to its MetaData.xml when the package is
+ * uploaded. It records the class implementing the measure and the hash of the package
+ * content, so the implementation can be loaded without scanning the package jars.
+ */
+public class MeasurePackageIndex {
+
+    public static final String INDEXFILE = "MeasureIndex.properties";
+
+    private static final String ENTRY_POINT = "entry-point";
+
+    private static final String CONTENT_HASH = "content-hash";
+
+    private final String entryPoint;
+
+    private final String contentHash;
+
+    public MeasurePackageIndex(String entryPoint, String contentHash) {
+        this.entryPoint = entryPoint;
+        this.contentHash = contentHash;
+    }
+
+    public String getEntryPoint() {
+        return entryPoint;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Scan an unzipped measure package and store its index.
+     * @param measureImpl the folder of the unzipped measure package
+     * @return the index of the package
+     */
+    public static MeasurePackageIndex build(Path measureImpl) throws IOException {
+        String entryPoint = new MeasureEntryPointScanner().findEntryPoint(
+                MeasureImplementationRegistry.listJars(measureImpl.resolve(MeasureImplementationRegistry.LIB_FOLDER)),
+                MeasureImplementationRegistry.listJars(measureImpl));
+        MeasurePackageIndex index = new MeasurePackageIndex(entryPoint, MeasureImplementationRegistry.computeContentHash(measureImpl));
+        index.write(measureImpl);
+        return index;
+    }
+
+    /**
+     * Read the index of a measure package.
+     * @return the index, or null if the package has not been indexed
+     */
+    public static MeasurePackageIndex read(Path measureImpl) throws IOException {
+        Path indexFile = measureImpl.resolve(INDEXFILE);
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(indexFile)) {
+            properties.load(in);
+        }
+        return new MeasurePackageIndex(properties.getProperty(ENTRY_POINT), properties.getProperty(CONTENT_HASH));
+    }
+
+    private void write(Path measureImpl) throws IOException {
+        Properties properties = new Properties();
+        if (entryPoint != null) {
+            properties.setProperty(ENTRY_POINT, entryPoint);
+        }
+        properties.setProperty(CONTENT_HASH, contentHash);
+        try (OutputStream out = Files.newOutputStream(measureImpl.resolve(INDEXFILE))) {
+            properties.store(out, "Measure package index");
+        }
+    }
+
+}
@@ -53,4 +53,11 @@ public interface IMeasureReferenceService {
 
     List<MeasureReference> findByInstance(MeasureInstance instance);
 
+    /**
+     * Get all the measureReferences owned by the measure instances of a project.
+     * @param projectId the id of the project
+     * @return the list of entities
+     */
+    List<MeasureReference> findByProject(Long projectId);
+
 }
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.data.api;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published when the references or the trigger mode of a measure instance
+ * may have changed, so that its scheduled execution can follow its inputs.
+ */
+public class MeasureDependencyChangedEvent extends ApplicationEvent {
+    private static final long serialVersionUID = -2630829402180512873L;
+
+    private final Long measureInstanceId;
+
+    public MeasureDependencyChangedEvent(Object source, Long measureInstanceId) {
+        super(source);
+        this.measureInstanceId = measureInstanceId;
+    }
+
+    public Long getMeasureInstanceId() {
+        return measureInstanceId;
+    }
+
+}
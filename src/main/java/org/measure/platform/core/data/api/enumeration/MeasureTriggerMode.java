@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.data.api.enumeration;
+
+/**
+ * The MeasureTriggerMode enumeration : how a scheduled measure instance is triggered.
+ * <ul>
+ * <li>RATE : executed at the fixed rate of its scheduling expression.</li>
+ * <li>INPUT : derived measures only, executed when new measurements of the instances it references are stored.</li>
+ * </ul>
+ */
+public enum MeasureTriggerMode {
+    RATE,
+    INPUT;
+}
@@ -37,6 +37,7 @@ import javax.validation.constraints.NotNull;
 
 import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.measure.platform.core.data.api.enumeration.MeasureTriggerMode;
 import org.measure.platform.core.data.api.enumeration.MeasureType;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -77,6 +78,13 @@ public class MeasureInstance implements Serializable {
 
     @Column(name = "scheduling_unit")
     private String schedulingUnit;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "trigger_mode")
+    private MeasureTriggerMode triggerMode;
+
+    @Column(name = "execution_timeout")
+    private Integer executionTimeout;
     
     @Enumerated(EnumType.STRING)
     @Column(name = "measure_type")
@@ -88,6 +96,9 @@ public class MeasureInstance implements Serializable {
     @Column(name = "remote_label")
     private String remoteLabel;
 
+    @Column(name = "retention_days")
+    private Integer retentionDays;
+
     @Column(name = "is_remote")
     private Boolean isRemote;
 
@@ -219,6 +230,22 @@ public class MeasureInstance implements Serializable {
         this.remoteAdress = remoteIp;
     }
 
+    /**
+     * @return the number of days the measurements are kept, null to use the retention of the project
+     */
+    public Integer getRetentionDays() {
+        return retentionDays;
+    }
+
+    public MeasureInstance retentionDays(Integer retentionDays) {
+        this.retentionDays = retentionDays;
+        return this;
+    }
+
+    public void setRetentionDays(Integer retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
     public String getRemoteLabel() {
         return remoteLabel;
     }
@@ -258,6 +285,32 @@ public class MeasureInstance implements Serializable {
         this.schedulingUnit = schedulingUnit;
     }
     
+    public MeasureTriggerMode getTriggerMode() {
+        return triggerMode;
+    }
+
+    public MeasureInstance triggerMode(MeasureTriggerMode triggerMode) {
+        this.triggerMode = triggerMode;
+        return this;
+    }
+
+    public void setTriggerMode(MeasureTriggerMode triggerMode) {
+        this.triggerMode = triggerMode;
+    }
+
+    public Integer getExecutionTimeout() {
+        return executionTimeout;
+    }
+
+    public MeasureInstance executionTimeout(Integer executionTimeout) {
+        this.executionTimeout = executionTimeout;
+        return this;
+    }
+
+    public void setExecutionTimeout(Integer executionTimeout) {
+        this.executionTimeout = executionTimeout;
+    }
+
     public MeasureType getMeasureType() {
         return measureType;
     }
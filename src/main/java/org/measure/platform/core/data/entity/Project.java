@@ -69,6 +69,9 @@ public class Project implements Serializable {
     @Column(name = "creation_date")
     private ZonedDateTime creationDate;
 
+    @Column(name = "retention_days")
+    private Integer retentionDays;
+
     @OneToMany(mappedBy = "project")
     @JsonIgnore
     @Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
@@ -172,6 +175,22 @@ public class Project implements Serializable {
     public void setCreationDate(ZonedDateTime creationDate) {
         this.creationDate = creationDate;
     }
+
+    /**
+     * @return the number of days the measurements of the project instances are kept, null to keep them forever
+     */
+    public Integer getRetentionDays() {
+        return retentionDays;
+    }
+
+    public Project retentionDays(Integer retentionDays) {
+        this.retentionDays = retentionDays;
+        return this;
+    }
+
+    public void setRetentionDays(Integer retentionDays) {
+        this.retentionDays = retentionDays;
+    }
     
     public void setDashboards(Set<Dashboard> dashboards) {
 		this.dashboards = dashboards;
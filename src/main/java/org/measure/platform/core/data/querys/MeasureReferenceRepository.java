@@ -31,4 +31,7 @@ public interface MeasureReferenceRepository extends JpaRepository<MeasureReferen
     @Query(value = "select p from MeasureReference p where p.ownerInstance = :minstance")
     List<MeasureReference> findByMeasure(@Param("minstance") MeasureInstance minstance);
 
+    @Query(value = "select p from MeasureReference p where p.ownerInstance.project.id = :projectId")
+    List<MeasureReference> findByProject(@Param("projectId") Long projectId);
+
 }
@@ -21,6 +21,7 @@ import java.util.List;
 import javax.inject.Inject;
 
 import org.measure.platform.core.data.api.IMeasureInstanceService;
+import org.measure.platform.core.data.api.MeasureDependencyChangedEvent;
 import org.measure.platform.core.data.entity.Application;
 import org.measure.platform.core.data.entity.MeasureInstance;
 import org.measure.platform.core.data.entity.MeasureProperty;
@@ -37,6 +38,7 @@ import org.measure.platform.core.measurement.api.IElasticsearchIndexManager;
 import org.measure.platform.service.smmengine.api.ISchedulingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -74,6 +76,9 @@ public class MeasureInstanceServiceImpl implements IMeasureInstanceService {
     @Inject
     private ISchedulingService schedulingService;
 
+    @Inject
+    private ApplicationEventPublisher eventPublisher;
+
     /**
      * Save a measureInstance.
      * @param measureInstance the entity to save
@@ -86,7 +91,9 @@ public class MeasureInstanceServiceImpl implements IMeasureInstanceService {
         
         // Create Elasticsearch Index
         indexManager.createIndexWithMapping(result);
-                
+
+        // The trigger mode may have changed
+        eventPublisher.publishEvent(new MeasureDependencyChangedEvent(this, result.getId()));
         return result;
     }
 
@@ -21,11 +21,13 @@ import java.util.List;
 import javax.inject.Inject;
 
 import org.measure.platform.core.data.api.IMeasureReferenceService;
+import org.measure.platform.core.data.api.MeasureDependencyChangedEvent;
 import org.measure.platform.core.data.entity.MeasureInstance;
 import org.measure.platform.core.data.entity.MeasureReference;
 import org.measure.platform.core.data.querys.MeasureReferenceRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -40,6 +42,9 @@ public class MeasureReferenceServiceImpl implements IMeasureReferenceService {
     @Inject
     private MeasureReferenceRepository measureReferenceRepository;
 
+    @Inject
+    private ApplicationEventPublisher eventPublisher;
+
     /**
      * Save a MeasureReference.
      * @param MeasureReference the entity to save
@@ -48,6 +53,7 @@ public class MeasureReferenceServiceImpl implements IMeasureReferenceService {
     public MeasureReference save(MeasureReference MeasureReference) {
         log.debug("Request to save MeasureReference : {}", MeasureReference);
         MeasureReference result = measureReferenceRepository.save(MeasureReference);
+        publishDependencyChanged(result);
         return result;
     }
 
@@ -80,7 +86,15 @@ public class MeasureReferenceServiceImpl implements IMeasureReferenceService {
      */
     public void delete(Long id) {
         log.debug("Request to delete MeasureReference : {}", id);
+        MeasureReference measureReference = measureReferenceRepository.findOne(id);
         measureReferenceRepository.delete(id);
+        publishDependencyChanged(measureReference);
+    }
+
+    private void publishDependencyChanged(MeasureReference measureReference) {
+        if (measureReference != null && measureReference.getOwnerInstance() != null) {
+            eventPublisher.publishEvent(new MeasureDependencyChangedEvent(this, measureReference.getOwnerInstance().getId()));
+        }
     }
 
     @Override
@@ -89,4 +103,11 @@ public class MeasureReferenceServiceImpl implements IMeasureReferenceService {
         return result;
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public List<MeasureReference> findByProject(Long projectId) {
+        List<MeasureReference> result = measureReferenceRepository.findByProject(projectId);
+        return result;
+    }
+
 }
@@ -16,24 +16,80 @@
  ******************************************************************************/
 package org.measure.platform.core.measurement.api;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.measure.platform.restapi.measure.dto.KibanaVisualisation;
+import org.measure.platform.restapi.measure.dto.MeasurementAggregationQuery;
+import org.measure.platform.restapi.measure.dto.MeasurementBucket;
+import org.measure.platform.restapi.measure.dto.MeasurementPage;
+import org.measure.platform.restapi.measure.dto.MeasurementQuery;
 import org.measure.smm.measure.api.IMeasurement;
 
 public interface IMeasurementStorage {
     
     void putMeasurement(String measureInstance, IMeasurement measurement);
 
+    /**
+     * Find the latest measurements of an instance, latest first. Without filter,
+     * they are served from a window of the latest measurements kept in memory.
+     */
     List<IMeasurement> getMeasurement(String measureId, Integer numberRef, String filter);
 
+    /**
+     * Compile a measurement filter ahead of its execution.
+     * @throws IllegalArgumentException if the filter is not a valid query string
+     */
+    void validateFilter(String filter);
+
     List<KibanaVisualisation> findKibanaVisualisation();
 
     List<KibanaVisualisation> findKibanaDashboard();
 
-	List<IMeasurement> getMeasurementPage(String measureInstance, Integer size, Integer page, String filter);
+	/**
+	 * Find a page of measurements by page number. Limited to shallow pages, deep
+	 * pages must be browsed with a cursor.
+	 * @param resolution interval of the measurements, the older measurements are
+	 *        read from the matching rollup tier if any. Null to read the raw measurements.
+	 * @throws IllegalArgumentException if the page is beyond the maximum result window
+	 */
+	List<IMeasurement> getMeasurementPage(String measureInstance, Integer size, Integer page, String filter, String resolution);
+
+	/**
+	 * Find the page of measurements following a cursor, latest measurements first.
+	 * @param cursor cursor returned with the previous page, null or empty for the first page
+	 * @param resolution interval of the measurements, null to read the raw measurements
+	 * @throws IllegalArgumentException if the cursor is invalid
+	 */
+	MeasurementPage getMeasurementPage(String measureInstance, Integer size, String cursor, String filter, String resolution);
+
+	/**
+	 * Find a page of measurements for each query with a single multi-search.
+	 * A query with a cursor is browsed by cursor, otherwise by page number.
+	 * @return the pages, in the order of the queries. A query which fails returns an empty page.
+	 * @throws IllegalArgumentException if a page is too deep or a cursor invalid
+	 */
+	List<MeasurementPage> getMeasurementPages(List<MeasurementQuery> queries);
+
+	/**
+	 * Aggregate the measurements of an instance in time buckets, computed by Elasticsearch.
+	 * @throws IllegalArgumentException if the query is incomplete or uses an unknown function
+	 */
+	List<MeasurementBucket> aggregate(MeasurementAggregationQuery query);
 	
 	
 	IMeasurement getLastMeasurement(String measureInstance);
 
+	/**
+	 * Find the last measurement of several measure instances in one call.
+	 * @return the last measurements by instance name, instances without measurement are omitted
+	 */
+	Map<String, IMeasurement> getLastMeasurements(Collection<String> measureInstances);
+
+	/**
+	 * Wait for the measurements pending in the ingestion pipeline and make the ones stored for a measure instance visible to the searches.
+	 */
+	void flush(String measureInstance);
+
 }
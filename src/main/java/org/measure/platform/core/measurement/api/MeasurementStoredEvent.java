@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.api;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published when a measurement of a measure instance is stored.
+ */
+public class MeasurementStoredEvent extends ApplicationEvent {
+	private static final long serialVersionUID = 4530928172538104395L;
+
+	private final String measureInstance;
+
+	public MeasurementStoredEvent(Object source, String measureInstance) {
+		super(source);
+		this.measureInstance = measureInstance;
+	}
+
+	public String getMeasureInstance() {
+		return measureInstance;
+	}
+
+}
@@ -16,44 +16,175 @@
  ******************************************************************************/
 package org.measure.platform.core.measurement.impl;
 
-import java.net.InetAddress;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
-import org.elasticsearch.client.transport.TransportClient;
-import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.transport.TransportAddress;
-import org.elasticsearch.transport.client.PreBuiltTransportClient;
+import org.apache.http.HttpHost;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.sniff.ElasticsearchNodesSniffer;
+import org.elasticsearch.client.sniff.SniffOnFailureListener;
+import org.elasticsearch.client.sniff.Sniffer;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 
+/**
+ * Connection to the Elasticsearch cluster through its REST API. The client
+ * balances the requests over the configured nodes, pools their HTTP
+ * connections and, when sniffing is enabled, discovers the other nodes of the
+ * cluster. The client is thread safe and shared by all the storage services.
+ */
 @Configuration
 public class ElasticConnection {
-    private TransportClient client;
-    
-    @Value("${measureplatform.elasticsearch.cluster-key}")
-	private String clusterKey;
-    @Value("${measureplatform.elasticsearch.cluster-name}")
-	private String clusterName;
-    @Value("${measureplatform.elasticsearch.node.url}")
+    private final Logger log = LoggerFactory.getLogger(ElasticConnection.class);
+
+    private RestHighLevelClient client;
+
+    private Sniffer sniffer;
+
+    @Value("${measureplatform.elasticsearch.nodes:}")
+	private String nodes;
+    @Value("${measureplatform.elasticsearch.node.url:localhost}")
 	private String elasticsearchNodeUrl;
-    @Value("${measureplatform.elasticsearch.node.port}")
+    @Value("${measureplatform.elasticsearch.node.port:9200}")
 	private int elasticsearchNodePort;
+    @Value("${measureplatform.elasticsearch.max-connections:100}")
+	private int maxConnections;
+    @Value("${measureplatform.elasticsearch.max-connections-per-node:30}")
+	private int maxConnectionsPerNode;
+    @Value("${measureplatform.elasticsearch.connect-timeout:5000}")
+	private int connectTimeout;
+    @Value("${measureplatform.elasticsearch.socket-timeout:60000}")
+	private int socketTimeout;
+    @Value("${measureplatform.elasticsearch.sniff-interval:300000}")
+	private int sniffInterval;
+
+    /**
+     * A blocking call to the cluster.
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+        T execute(RestHighLevelClient client, RequestOptions options) throws IOException;
+    }
+
+    /**
+     * A non-blocking call to the cluster, completing a listener.
+     */
+    @FunctionalInterface
+    public interface AsyncCall<T> {
+        void execute(RestHighLevelClient client, RequestOptions options, ActionListener<T> listener);
+    }
 
     @PostConstruct
     public void initIt() throws Exception {
-    	Settings settings = Settings.builder() .put(clusterKey, clusterName).build();
-    	this.client = new PreBuiltTransportClient(settings).addTransportAddress(new TransportAddress(InetAddress.getByName(elasticsearchNodeUrl), elasticsearchNodePort));
+        HttpHost[] hosts = getHosts();
+        RestClientBuilder builder = RestClient.builder(hosts)
+                .setHttpClientConfigCallback(http -> http.setMaxConnTotal(maxConnections).setMaxConnPerRoute(maxConnectionsPerNode))
+                .setRequestConfigCallback(request -> request.setConnectTimeout(connectTimeout).setSocketTimeout(socketTimeout))
+                .setMaxRetryTimeoutMillis(socketTimeout);
+
+        SniffOnFailureListener failureListener = new SniffOnFailureListener();
+        if (sniffInterval > 0) {
+            builder.setFailureListener(failureListener);
+        }
+        this.client = new RestHighLevelClient(builder);
+
+        if (sniffInterval > 0) {
+            ElasticsearchNodesSniffer.Scheme scheme = "https".equals(hosts[0].getSchemeName()) ? ElasticsearchNodesSniffer.Scheme.HTTPS : ElasticsearchNodesSniffer.Scheme.HTTP;
+            ElasticsearchNodesSniffer nodesSniffer = new ElasticsearchNodesSniffer(client.getLowLevelClient(), ElasticsearchNodesSniffer.DEFAULT_SNIFF_REQUEST_TIMEOUT, scheme);
+            this.sniffer = Sniffer.builder(client.getLowLevelClient()).setNodesSniffer(nodesSniffer).setSniffIntervalMillis(sniffInterval).build();
+            failureListener.setSniffer(sniffer);
+        }
+        log.info("Elasticsearch client connected to {}", (Object) hosts);
     }
 
     @PreDestroy
     public void cleanUp() throws Exception {
+        if (this.sniffer != null) {
+            this.sniffer.close();
+        }
         this.client.close();
     }
 
-    public synchronized TransportClient getClient() {
+    public RestHighLevelClient getClient() {
         return client;
     }
 
+    /**
+     * Execute a blocking call.
+     * @throws ElasticsearchException if the cluster is unreachable or rejects the request
+     */
+    public <T> T execute(Call<T> call) {
+        try {
+            return call.execute(client, RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            throw new ElasticsearchException("Elasticsearch request failed", e);
+        }
+    }
+
+    /**
+     * Execute a non-blocking call. The future completes on the thread of the HTTP client :
+     * its callbacks must not block. It fails as the blocking calls when the cluster is unreachable.
+     */
+    public <T> CompletableFuture<T> executeAsync(AsyncCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        call.execute(client, RequestOptions.DEFAULT, ActionListener.wrap(future::complete,
+                e -> future.completeExceptionally(e instanceof IOException ? new ElasticsearchException("Elasticsearch request failed", e) : e)));
+        return future;
+    }
+
+    /**
+     * @return true if an exception reports a missing index or resource
+     */
+    public static boolean isNotFound(Exception e) {
+        return e instanceof ElasticsearchStatusException && ((ElasticsearchStatusException) e).status() == RestStatus.NOT_FOUND;
+    }
+
+    /**
+     * @return true if an exception reports a resource created concurrently
+     */
+    public static boolean isAlreadyExisting(Exception e) {
+        // The type of the error returned by the cluster is only kept in the message of the exception
+        return e instanceof ElasticsearchStatusException && ((ElasticsearchStatusException) e).status() == RestStatus.BAD_REQUEST
+                && e.getMessage() != null && e.getMessage().contains("type=resource_already_exists_exception");
+    }
+
+    /**
+     * @return true if an exception, or one of its causes, reports a request that did not reach the cluster
+     */
+    public static boolean isUnavailable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ElasticsearchException && cause.getCause() instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private HttpHost[] getHosts() {
+        List<HttpHost> hosts = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            if (!node.trim().isEmpty()) {
+                hosts.add(HttpHost.create(node.trim()));
+            }
+        }
+        if (hosts.isEmpty()) {
+            hosts.add(new HttpHost(elasticsearchNodeUrl, elasticsearchNodePort, "http"));
+        }
+        return hosts.toArray(new HttpHost[hosts.size()]);
+    }
+
 }
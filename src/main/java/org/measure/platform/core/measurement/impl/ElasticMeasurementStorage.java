@@ -16,144 +16,319 @@
  ******************************************************************************/
 package org.measure.platform.core.measurement.impl;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchType;
-import org.elasticsearch.client.transport.TransportClient;
-import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.QueryStringQueryBuilder;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.measure.platform.core.measurement.api.IMeasurementStorage;
+import org.measure.platform.core.measurement.api.MeasurementStoredEvent;
+import org.measure.platform.core.measurement.impl.MeasurementIndexLayout.IndexTarget;
+import org.measure.platform.core.measurement.impl.MeasurementRollups.RollupTier;
 import org.measure.platform.restapi.measure.dto.KibanaVisualisation;
+import org.measure.platform.restapi.measure.dto.MeasurementAggregationQuery;
+import org.measure.platform.restapi.measure.dto.MeasurementBucket;
+import org.measure.platform.restapi.measure.dto.MeasurementPage;
+import org.measure.platform.restapi.measure.dto.MeasurementQuery;
 import org.measure.smm.measure.api.IMeasurement;
-import org.measure.smm.measure.defaultimpl.measurements.DefaultMeasurement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 @Service
 public class ElasticMeasurementStorage implements IMeasurementStorage {
+	private final Logger log = LoggerFactory.getLogger(ElasticMeasurementStorage.class);
 	
 	@Value("${measureplatform.kibana.api.endpoints}")
 	private String kibanaAddress;
+
+	@Value("${measureplatform.elasticsearch.max-result-window:10000}")
+	private int maxResultWindow;
+
+	@Value("${measureplatform.elasticsearch.filter-cache.size:1000}")
+	private int filterCacheSize;
 	
 	@Inject
 	private ElasticConnection connection;
+
+	@Inject
+	private MeasurementIngestionPipeline ingestionPipeline;
+
+	@Inject
+	private MeasurementSpool spool;
+
+	@Inject
+	private MeasurementHitDecoder hitDecoder;
+
+	@Inject
+	private LastMeasurementCache lastMeasurementCache;
+
+	@Inject
+	private MeasurementIndexLayout indexLayout;
+
+	@Inject
+	private MeasurementPartitions partitions;
+
+	@Inject
+	private MeasurementRollups rollups;
+
+	@Inject
+	private MeasurementWindowCache windowCache;
+
+	@Inject
+	private MeasurementQueryCoalescer queryCoalescer;
+
+	@Inject
+	private ApplicationEventPublisher eventPublisher;
+
+	private MeasurementFilterCache filters;
+
+	@PostConstruct
+	public void initIt() {
+		this.filters = new MeasurementFilterCache(filterCacheSize);
+	}
 	
 	@Override
 	public void putMeasurement(String measureInstance, IMeasurement measurement) {
 		if (measurement.getValues().get("postDate") == null) {
 			measurement.getValues().put("postDate", new Date());
 		}
-		String indexName = IndexFormat.getMeasureInstanceIndex(measureInstance);
-		TransportClient client = connection.getClient();
-		client.index(new IndexRequest(indexName, "_doc").source(measurement.getValues()));
+		try {
+			IndexTarget target = indexLayout.getWriteTarget(measureInstance);
+			IndexRequest request = target.newIndexRequest(measureInstance, measurement.getValues());
+			if (target.isPartitioned()) {
+				ensurePartition(target, request.index());
+			}
+			ingestionPipeline.add(request);
+		} catch (ElasticsearchException e) {
+			// Cluster unavailable, the index of the measurement is resolved when the spool is replayed
+			log.debug("Unable to resolve the index of " + measureInstance + ", measurement spooled", e);
+			spool.appendUnresolved(measureInstance, measurement.getValues());
+		}
+		lastMeasurementCache.offer(measureInstance, measurement);
+		windowCache.offer(measureInstance, measurement);
+		queryCoalescer.invalidate(measureInstance);
+		eventPublisher.publishEvent(new MeasurementStoredEvent(this, measureInstance));
+	}
+
+	private void ensurePartition(IndexTarget target, String partition) {
+		try {
+			partitions.ensurePartition(target.getIndex(), partition);
+		} catch (ElasticsearchException e) {
+			// Cluster unavailable, the measurement is spooled
+			log.debug("Unable to check the measurement partition " + partition, e);
+		}
 	}
 
 	@Override
 	public List<IMeasurement> getMeasurement(String measureInstance, Integer numberRef, String filter) {
+		return queryCoalescer.get(measureInstance, numberRef, filter, () -> findMeasurement(measureInstance, numberRef, filter));
+	}
+
+	private List<IMeasurement> findMeasurement(String measureInstance, Integer numberRef, String filter) {
 		List<IMeasurement> measurements = new ArrayList<>();
-		TransportClient client = connection.getClient();
 		String indexName = IndexFormat.getMeasureInstanceIndex(measureInstance);
 
-		SearchResponse response = null;
-
 		if (filter != null && !filter.equals("")) {
-			QueryStringQueryBuilder qb = QueryBuilders.queryStringQuery(filter);
-			try {
-				response = client.prepareSearch(indexName).setTypes("_doc").setQuery(qb).addSort("postDate", SortOrder.DESC).setSearchType(SearchType.DFS_QUERY_THEN_FETCH).setSize(numberRef).get();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		} else {
-			response = client.prepareSearch(indexName).setTypes("_doc").addSort("postDate", SortOrder.DESC).setSearchType(SearchType.DFS_QUERY_THEN_FETCH).setSize(numberRef).get();
-		}
-
-		SearchHit[] results = response.getHits().getHits();
-		for (SearchHit hit : results) {
-			String sourceAsString = hit.getSourceAsString();
-			try {
-				IMeasurement measurement = new DefaultMeasurement();
-				Map<String, Object> map = new ObjectMapper().readValue(sourceAsString, new TypeReference<Map<String, Object>>() {
-				});
-				for (Entry<String, Object> entry : map.entrySet()) {
-					measurement.getValues().put(entry.getKey(), entry.getValue());
+			MeasurementFilter compiled = filters.compile(filter);
+			if (compiled.isEvaluable()) {
+				List<IMeasurement> cached = windowCache.findLatest(measureInstance, numberRef, compiled::evaluate);
+				if (cached != null) {
+					return cached;
 				}
-				measurements.add(measurement);
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
+			SearchRequest request = new SearchRequest(indexName).types("_doc").source(new SearchSourceBuilder().query(QueryBuilders.boolQuery().filter(compiled.toQuery())).sort("postDate", SortOrder.DESC).size(numberRef));
+			for (SearchHit hit : connection.execute((client, options) -> client.search(request, options)).getHits().getHits()) {
+				measurements.add(hitDecoder.decodeLazily(hit));
+			}
+			return measurements;
+		}
+
+		// The latest measurements without filter are served by the window of the instance
+		return windowCache.getLatest(measureInstance, numberRef, size -> {
+			SearchRequest request = new SearchRequest(indexName).types("_doc").source(new SearchSourceBuilder().sort("postDate", SortOrder.DESC).size(size));
+			List<IMeasurement> loaded = new ArrayList<>();
+			for (SearchHit hit : connection.execute((client, options) -> client.search(request, options)).getHits().getHits()) {
+				loaded.add(hitDecoder.decode(hit));
+			}
+			return loaded;
+		});
+	}
+
+	@Override
+	public void validateFilter(String filter) {
+		if (filter != null && !filter.isEmpty()) {
+			filters.compile(filter);
 		}
-		return measurements;
 	}
 
 	@Override
-	public List<IMeasurement> getMeasurementPage(String measureInstance, Integer size, Integer page, String filter) {
-		List<IMeasurement> measurements = new ArrayList<>();
-		TransportClient client = connection.getClient();
-		String indexName = IndexFormat.getMeasureInstanceIndex(measureInstance);
+	public List<IMeasurement> getMeasurementPage(String measureInstance, Integer size, Integer page, String filter, String resolution) {
+		SearchRequest request = prepareMeasurementPage(measureInstance, size, page, filter, resolution);
+		SearchResponse response = connection.execute((client, options) -> client.search(request, options));
+		return readMeasurementPage(response, size).getMeasurements();
+	}
 
-		SearchResponse scrollResp = null;
+	@Override
+	public MeasurementPage getMeasurementPage(String measureInstance, Integer size, String cursor, String filter, String resolution) {
+		SearchRequest request = prepareMeasurementPage(measureInstance, size, cursor, filter, resolution);
+		SearchResponse response = connection.execute((client, options) -> client.search(request, options));
+		return readMeasurementPage(response, size);
+	}
 
-		if (filter != null && !filter.equals("")) {
-			QueryStringQueryBuilder qb = QueryBuilders.queryStringQuery(filter);
-			scrollResp = client.prepareSearch(indexName).setTypes("_doc").addSort("postDate", SortOrder.DESC).setScroll(new TimeValue(60000)).setQuery(qb).setSize(size).execute().actionGet();
-		} else {
-			scrollResp = client.prepareSearch(indexName).setTypes("_doc").addSort("postDate", SortOrder.DESC).setScroll(new TimeValue(60000)).setSize(size).execute().actionGet();
+	@Override
+	public List<MeasurementPage> getMeasurementPages(List<MeasurementQuery> queries) {
+		List<MeasurementPage> pages = new ArrayList<>();
+		if (queries.isEmpty()) {
+			return pages;
+		}
+
+		MultiSearchRequest request = new MultiSearchRequest();
+		for (MeasurementQuery query : queries) {
+			if (query.getCursor() != null) {
+				request.add(prepareMeasurementPage(query.getMeasureInstance(), query.getPageSize(), query.getCursor(), query.getQuery(), query.getResolution()));
+			} else {
+				request.add(prepareMeasurementPage(query.getMeasureInstance(), query.getPageSize(), query.getPage(), query.getQuery(), query.getResolution()));
+			}
+		}
+
+		MultiSearchResponse.Item[] responses = connection.execute((client, options) -> client.msearch(request, options)).getResponses();
+		for (int i = 0; i < responses.length; i++) {
+			if (responses[i].isFailure()) {
+				log.error("Unable to read measurements of " + queries.get(i).getMeasureInstance() + " : " + responses[i].getFailureMessage());
+				pages.add(new MeasurementPage());
+			} else {
+				pages.add(readMeasurementPage(responses[i].getResponse(), queries.get(i).getPageSize()));
+			}
 		}
+		return pages;
+	}
+
+	@Override
+	public List<MeasurementBucket> aggregate(MeasurementAggregationQuery query) {
+		MeasurementAggregations.validate(query);
+		MeasurementFilter filter = query.getQuery() != null && !query.getQuery().isEmpty() ? filters.compile(query.getQuery()) : null;
+		String indexName = IndexFormat.getMeasureInstanceIndex(query.getMeasureInstance());
 
-		// Scroll until no hits are returned
+		RollupTier tier = rollups.selectTier(query);
+		if (tier != null) {
+			return aggregateRollups(query, filter, tier, query.getTo());
+		}
 
-		int pageCount = 1;
-		while (true) {
-			// Break condition: No hits are returned
-			if (scrollResp.getHits().getHits().length == 0) {
-				break;
-			} else if (pageCount >= page) {
-				break;
+		tier = rollups.selectPurgedTier(query);
+		if (tier != null) {
+			// The raw measurements older than the watermark may be purged, they are read from the rollups
+			Date watermark = new Date(rollups.getPurgeWatermark(query.getMeasureInstance()));
+			if (query.getTo() != null && !query.getTo().after(watermark)) {
+				return aggregateRollups(query, filter, tier, query.getTo());
 			}
-			pageCount++;
-			scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(new TimeValue(60000)).execute().actionGet();
-		}
-
-		SearchHit[] results = scrollResp.getHits().getHits();
-		for (SearchHit hit : results) {
-			String sourceAsString = hit.getSourceAsString();
-			try {
-				IMeasurement measurement = new DefaultMeasurement();
-				Map<String, Object> map = new ObjectMapper().readValue(sourceAsString, new TypeReference<Map<String, Object>>() {
-				});
-				for (Entry<String, Object> entry : map.entrySet()) {
-					measurement.getValues().put(entry.getKey(), entry.getValue());
-				}
-				measurements.add(measurement);
-			} catch (IOException e) {
-				e.printStackTrace();
+			return MeasurementAggregations.mergeBuckets(aggregateRollups(query, filter, tier, watermark), aggregateRaw(query, filter, indexName, watermark));
+		}
+		return aggregateRaw(query, filter, indexName, query.getFrom());
+	}
+
+	private List<MeasurementBucket> aggregateRollups(MeasurementAggregationQuery query, MeasurementFilter filter, RollupTier tier, Date to) {
+		BoolQueryBuilder rollupQuery = MeasurementAggregations.buildQuery(query, filter, query.getFrom(), to).filter(MeasurementRollups.getInstanceFilter(query.getMeasureInstance()));
+		SearchRequest request = new SearchRequest(tier.getIndex()).types("_doc").routing(query.getMeasureInstance()).source(new SearchSourceBuilder().query(rollupQuery).aggregation(MeasurementAggregations.buildAggregationOnRollup(query)).size(0));
+		SearchResponse response = connection.execute((client, options) -> client.search(request, options));
+		return MeasurementAggregations.readRollupBuckets(query, response);
+	}
+
+	private List<MeasurementBucket> aggregateRaw(MeasurementAggregationQuery query, MeasurementFilter filter, String indexName, Date from) {
+		SearchRequest request = new SearchRequest(indexName).types("_doc").source(new SearchSourceBuilder().query(MeasurementAggregations.buildQuery(query, filter, from, query.getTo())).aggregation(MeasurementAggregations.buildAggregation(query)).size(0));
+		request.setPreFilterShardSize(1);
+		SearchResponse response = connection.execute((client, options) -> client.search(request, options));
+		return MeasurementAggregations.readBuckets(query, response);
+	}
+
+	private SearchRequest prepareMeasurementPage(String measureInstance, Integer size, Integer page, String filter, String resolution) {
+		int from = (Math.max(page, 1) - 1) * size;
+		if (from + size > maxResultWindow) {
+			throw new IllegalArgumentException("Page " + page + " is too deep, use a cursor to browse beyond " + maxResultWindow + " measurements");
+		}
+		SearchRequest request = prepareMeasurementPage(measureInstance, size, filter, resolution);
+		request.source().from(from);
+		return request;
+	}
+
+	private SearchRequest prepareMeasurementPage(String measureInstance, Integer size, String cursor, String filter, String resolution) {
+		SearchRequest request = prepareMeasurementPage(measureInstance, size, filter, resolution);
+		if (cursor != null && !cursor.isEmpty()) {
+			request.source().searchAfter(MeasurementCursor.decode(cursor));
+		}
+		return request;
+	}
+
+	private SearchRequest prepareMeasurementPage(String measureInstance, Integer size, String filter, String resolution) {
+		String indexName = IndexFormat.getMeasureInstanceIndex(measureInstance);
+
+		RollupTier tier = rollups.selectTier(measureInstance, resolution);
+		if (tier == null) {
+			SearchSourceBuilder source = new SearchSourceBuilder().sort("postDate", SortOrder.DESC).sort(getIdSort()).size(size);
+			if (filter != null && !filter.equals("")) {
+				source.query(QueryBuilders.boolQuery().filter(filters.compile(filter).toQuery()));
 			}
+			return new SearchRequest(indexName).types("_doc").source(source);
+		}
+
+		// Rollup documents before the watermark of the tier, raw measurements after
+		long watermark = rollups.getWatermark(measureInstance, tier);
+		BoolQueryBuilder query = QueryBuilders.boolQuery().minimumShouldMatch(1);
+		query.should(QueryBuilders.boolQuery().filter(QueryBuilders.existsQuery(MeasurementAggregations.ROLLUP_INTERVAL_FIELD)).filter(MeasurementRollups.getInstanceFilter(measureInstance)).filter(QueryBuilders.rangeQuery(IndexFormat.DATE_FIELD).lt(watermark)));
+		query.should(QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery(MeasurementAggregations.ROLLUP_INTERVAL_FIELD)).filter(QueryBuilders.rangeQuery(IndexFormat.DATE_FIELD).gte(watermark)));
+		if (filter != null && !filter.equals("")) {
+			query.filter(filters.compile(filter).toQuery());
 		}
-		return measurements;
+		return new SearchRequest(indexName, tier.getIndex()).types("_doc").source(new SearchSourceBuilder().query(query).sort("postDate", SortOrder.DESC).sort(getIdSort()).size(size));
 	}
 
+	/**
+	 * The tiebreaker of the pages, on the doc values of the measurement id rather
+	 * than on the _id field, loaded in memory to be sorted on. The measurements
+	 * stored by the previous versions have no id : they sort as an empty one.
+	 */
+	private static FieldSortBuilder getIdSort() {
+		return SortBuilders.fieldSort(IndexFormat.ID_FIELD).order(SortOrder.DESC).missing("").unmappedType("keyword");
+	}
+
+	private MeasurementPage readMeasurementPage(SearchResponse response, Integer size) {
+		SearchHit[] hits = response.getHits().getHits();
+		List<IMeasurement> measurements = new ArrayList<>();
+		for (SearchHit hit : hits) {
+			measurements.add(hitDecoder.decode(hit));
+		}
+		String nextCursor = hits.length < size ? null : MeasurementCursor.encode(hits[hits.length - 1].getSortValues());
+		MeasurementPage page = new MeasurementPage(measurements, nextCursor);
+		page.setTotal(response.getHits().getTotalHits());
+		return page;
+	}
 
 	@Override
 	public List<KibanaVisualisation> findKibanaVisualisation() {
@@ -209,29 +384,65 @@ public class ElasticMeasurementStorage implements IMeasurementStorage {
 
 	@Override
 	public IMeasurement getLastMeasurement(String measureInstance) {
-		TransportClient client = connection.getClient();
-		String indexName = IndexFormat.getMeasureInstanceIndex(measureInstance);
+		IMeasurement cached = lastMeasurementCache.get(measureInstance);
+		if (cached != null) {
+			return cached;
+		}
 
-		SearchResponse response  = client.prepareSearch(indexName).setTypes("_doc").addSort("postDate", SortOrder.DESC).setSearchType(SearchType.DFS_QUERY_THEN_FETCH).setSize(1).get();
-		
+		SearchRequest request = prepareLastMeasurement(measureInstance);
+		SearchResponse response = connection.execute((client, options) -> client.search(request, options));
+		SearchHit[] hits = response.getHits().getHits();
+		if (hits.length == 0) {
+			return null;
+		}
+		lastMeasurementCache.offer(measureInstance, hitDecoder.decode(hits[0]));
+		return lastMeasurementCache.get(measureInstance);
+	}
 
-		SearchHit[] results = response.getHits().getHits();
-		for (SearchHit hit : results) {
-			String sourceAsString = hit.getSourceAsString();
-			try {
-				IMeasurement measurement = new DefaultMeasurement();
-				Map<String, Object> map = new ObjectMapper().readValue(sourceAsString, new TypeReference<Map<String, Object>>() {
-				});
-				for (Entry<String, Object> entry : map.entrySet()) {
-					measurement.getValues().put(entry.getKey(), entry.getValue());
-				}
-				return measurement;
-			} catch (IOException e) {
-				e.printStackTrace();
+	@Override
+	public Map<String, IMeasurement> getLastMeasurements(Collection<String> measureInstances) {
+		Map<String, IMeasurement> results = new LinkedHashMap<>();
+		List<String> missing = new ArrayList<>();
+		for (String measureInstance : measureInstances) {
+			IMeasurement cached = lastMeasurementCache.get(measureInstance);
+			if (cached != null) {
+				results.put(measureInstance, cached);
+			} else {
+				missing.add(measureInstance);
 			}
 		}
-		
-		return null;
+		if (missing.isEmpty()) {
+			return results;
+		}
+
+		MultiSearchRequest request = new MultiSearchRequest();
+		for (String measureInstance : missing) {
+			request.add(prepareLastMeasurement(measureInstance));
+		}
+		MultiSearchResponse.Item[] responses = connection.execute((client, options) -> client.msearch(request, options)).getResponses();
+		for (int i = 0; i < responses.length; i++) {
+			if (responses[i].isFailure()) {
+				continue;
+			}
+			SearchHit[] hits = responses[i].getResponse().getHits().getHits();
+			if (hits.length > 0) {
+				lastMeasurementCache.offer(missing.get(i), hitDecoder.decode(hits[0]));
+				results.put(missing.get(i), lastMeasurementCache.get(missing.get(i)));
+			}
+		}
+		return results;
+	}
+
+	private SearchRequest prepareLastMeasurement(String measureInstance) {
+		String indexName = IndexFormat.getMeasureInstanceIndex(measureInstance);
+		return new SearchRequest(indexName).types("_doc").source(new SearchSourceBuilder().sort("postDate", SortOrder.DESC).size(1));
+	}
+
+	@Override
+	public void flush(String measureInstance) {
+		ingestionPipeline.flush();
+		RefreshRequest request = new RefreshRequest(IndexFormat.getMeasureInstanceIndex(measureInstance));
+		connection.execute((client, options) -> client.indices().refresh(request, options));
 	}
 
 }
@@ -19,26 +19,42 @@ package org.measure.platform.core.measurement.impl;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.inject.Inject;
 
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
-import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequestBuilder;
-import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingRequest;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateRequest;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
 import org.measure.platform.core.catalogue.api.IMeasureCatalogueService;
 import org.measure.platform.core.data.api.IMeasureInstanceService;
 import org.measure.platform.core.data.entity.MeasureInstance;
 import org.measure.platform.core.measurement.api.IElasticsearchIndexManager;
+import org.measure.platform.core.measurement.impl.MeasurementIndexLayout.IndexTarget;
+import org.measure.platform.core.measurement.impl.MeasurementRollups.RollupTier;
 import org.measure.smm.measure.model.MeasureUnitField;
 import org.measure.smm.measure.model.SMMMeasure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -54,6 +70,7 @@ import org.springframework.web.client.RestTemplate;
 
 @Service
 public class ElasticsearchIndexManager implements IElasticsearchIndexManager {
+	private final Logger log = LoggerFactory.getLogger(ElasticsearchIndexManager.class);
 
 	@Value("${measureplatform.kibana.api.endpoints}")
 	private String kibanaAddress;
@@ -64,99 +81,196 @@ public class ElasticsearchIndexManager implements IElasticsearchIndexManager {
 	@Inject
 	private IMeasureCatalogueService measureCatalogue;
 
+	@Inject
+	private LastMeasurementCache lastMeasurementCache;
+
+	@Inject
+	private MeasurementWindowCache windowCache;
+
+	@Inject
+	private MeasurementIndexLayout indexLayout;
+
+	@Inject
+	private MeasurementPartitions partitions;
+
+	@Inject
+	private MeasurementRollups rollups;
+
+	@Inject
+	private MeasurementIndexRegistry indexRegistry;
+
+	@Inject
+	private KibanaProvisioningQueue kibanaQueue;
+
+	@Value("${measureplatform.elasticsearch.shared.shards:3}")
+	private int sharedShards;
+
 	@Override
 	public void createIndexWithMapping(MeasureInstance measureInstance) {
-		TransportClient client = connection.getClient();
-
 		final String indexName = IndexFormat.getMeasureInstanceIndex(measureInstance.getInstanceName());
-		
-		String application = null;
-		if(measureInstance.getApplication() != null) {
-			application = measureInstance.getApplication().getApplicationType();
-		}
-		SMMMeasure measureDefinition = measureCatalogue.getMeasure(application,measureInstance.getMeasureName());
 
-		// Create Measure Index
-		createESIndex(measureDefinition, indexName, client);
+		// Nothing to check on the cluster when the instance is only updated
+		if (!indexRegistry.isKnown(indexName)) {
+			String application = null;
+			if(measureInstance.getApplication() != null) {
+				application = measureInstance.getApplication().getApplicationType();
+			}
+			SMMMeasure measureDefinition = measureCatalogue.getMeasure(application,measureInstance.getMeasureName());
+
+			// Create Measure Index, or the alias of the instance on the shared measure index
+			boolean legacyIndex = isConcreteIndex(indexName);
+			if (indexLayout.isShared() && !legacyIndex) {
+				String sharedIndex = IndexFormat.getSharedMeasureIndex(application, measureInstance.getMeasureName());
+				createSharedIndex(measureDefinition, sharedIndex);
+				createInstanceAlias(measureInstance.getInstanceName(), sharedIndex);
+			} else if (indexLayout.isPartitioned() && !legacyIndex) {
+				createPartitionedIndex(measureDefinition, indexName);
+			} else {
+				createESIndex(measureDefinition, indexName);
+			}
+			indexRegistry.register(indexName);
+			indexLayout.invalidate(measureInstance.getInstanceName());
+		}
 
 		// Create Kibana Index
-		createKibanaIndexPattern(measureInstance);
+		kibanaQueue.createIndexPattern(indexName, "postDate");
 	}
 
-	private void createESIndex(SMMMeasure measureDefinition, final String indexName, TransportClient client) {
-		final IndicesExistsResponse res = client.admin().indices().prepareExists(indexName).execute().actionGet();
-		if (!res.isExists()) {
+	private void createESIndex(SMMMeasure measureDefinition, final String indexName) {
+		if (!indexExists(indexName)) {
 			CreateIndexRequest request = new CreateIndexRequest(indexName);
 			// ADD MAPPING
-			try {
-				XContentBuilder mapping = jsonBuilder().startObject().startObject("_doc").startObject("properties");
-				for (MeasureUnitField field : measureDefinition.getUnit().getFields()) {
-					String fieldName = field.getFieldName();
-					String fieldType = field.getFieldType().name().replaceFirst("u_", "");
+			request.mapping("_doc", buildMapping(measureDefinition, false, indexName));
+
+			// Create the index
+			connection.execute((client, options) -> client.indices().create(request, options));
+		}
+	}
 
-					mapping.startObject(fieldName).field("type", fieldType).endObject();
+	/**
+	 * Create the shared index of a measure. The instances of a measure may be
+	 * created concurrently : the index is created unconditionally, an index
+	 * created meanwhile being kept.
+	 */
+	private void createSharedIndex(SMMMeasure measureDefinition, final String sharedIndex) {
+		// The template applies the mapping to the shared index and to its partitions
+		putTemplate(measureDefinition, sharedIndex, Arrays.asList(sharedIndex, sharedIndex + IndexFormat.PARTITION_SEPARATOR + "*"), true);
+
+		if (indexLayout.isPartitioned()) {
+			partitions.ensurePartition(sharedIndex, IndexFormat.getPartitionIndex(sharedIndex, System.currentTimeMillis()));
+		} else {
+			try {
+				connection.execute((client, options) -> client.indices().create(new CreateIndexRequest(sharedIndex), options));
+			} catch (ElasticsearchException e) {
+				if (!ElasticConnection.isAlreadyExisting(e)) {
+					throw e;
 				}
-				mapping.endObject().endObject().endObject();
-				request.mapping("_doc", mapping);
-			} catch (IOException e) {
-				e.printStackTrace();
+				// Created concurrently
 			}
-
-			// Create the index
-			client.admin().indices().create(request).actionGet();
 		}
 	}
 
-	private void createKibanaIndexPattern(MeasureInstance measureInstance) {
-		
-	
-		String indexName = IndexFormat.getMeasureInstanceIndex(measureInstance.getInstanceName());
-		
-		if(!isKibanaIndexExist(indexName)) {
-			// Add kibana Index
-			RestTemplate addIndexRest = new RestTemplate();
+	private void createPartitionedIndex(SMMMeasure measureDefinition, final String indexName) {
+		if (!aliasExists(indexName)) {
+			// The template applies the mapping to the partitions, read through the instance alias
+			putTemplate(measureDefinition, indexName, Collections.singletonList(indexName + IndexFormat.PARTITION_SEPARATOR + "*"), false);
+			partitions.ensurePartition(indexName, IndexFormat.getPartitionIndex(indexName, System.currentTimeMillis()), new Alias(indexName));
+		}
+	}
 
-			HttpHeaders headers = new HttpHeaders();
-			headers.add("kbn-xsrf", "reporting");
+	private void putTemplate(SMMMeasure measureDefinition, String name, List<String> patterns, boolean shared) {
+		PutIndexTemplateRequest template = new PutIndexTemplateRequest(name);
+		template.patterns(patterns);
+		if (shared) {
+			template.settings(Settings.builder().put("index.number_of_shards", sharedShards));
+		}
+		template.mapping("_doc", buildMapping(measureDefinition, shared, name));
+		connection.execute((client, options) -> client.indices().putTemplate(template, options));
+	}
 
-			MultiValueMap<String, Object> attributes = new LinkedMultiValueMap<String, Object>();
-			Map<String, String> values = new HashMap<String, String>();
-			values.put("title", indexName);
-			values.put("timeFieldName", "postDate");
+	private void createInstanceAlias(String instanceName, final String sharedIndex) {
+		String alias = IndexFormat.getMeasureInstanceIndex(instanceName);
+		if (!aliasExists(alias)) {
+			List<String> indices = partitions.getIndices(sharedIndex);
+			IndicesAliasesRequest request = new IndicesAliasesRequest().addAliasAction(AliasActions.add().indices(indices.toArray(new String[indices.size()])).alias(alias).routing(instanceName).filter(QueryBuilders.termQuery(IndexFormat.INSTANCE_FIELD, instanceName)));
+			connection.execute((client, options) -> client.indices().updateAliases(request, options));
+		}
+	}
 
-			attributes.add("attributes", values);
+	/**
+	 * @throws IllegalStateException if the mapping can't be built, the index is then not created
+	 */
+	private XContentBuilder buildMapping(SMMMeasure measureDefinition, boolean shared, String indexName) {
+		try {
+			XContentBuilder mapping = jsonBuilder().startObject().startObject("_doc").startObject("properties");
+			for (MeasureUnitField field : measureDefinition.getUnit().getFields()) {
+				String fieldName = field.getFieldName();
+				String fieldType = field.getFieldType().name().replaceFirst("u_", "");
 
-			HttpEntity<MultiValueMap<String, Object>> request = new HttpEntity<MultiValueMap<String, Object>>(attributes,
-					headers);
-			addIndexRest.postForEntity("http://" + kibanaAddress + "/api/saved_objects/index-pattern/" + indexName, request,
-					String.class);
+				mapping.startObject(fieldName).field("type", fieldType).endObject();
+			}
+			mapping.startObject(IndexFormat.ID_FIELD).field("type", "keyword").endObject();
+			if (shared) {
+				mapping.startObject(IndexFormat.INSTANCE_FIELD).field("type", "keyword").endObject();
+			}
+			mapping.endObject().endObject().endObject();
+			return mapping;
+		} catch (IOException e) {
+			log.error("Unable to build the mapping of " + indexName, e);
+			throw new IllegalStateException("Unable to build the mapping of " + indexName, e);
 		}
-	
+	}
+
+	private boolean isConcreteIndex(String indexName) {
+		return indexExists(indexName) && !aliasExists(indexName);
+	}
+
+	private boolean indexExists(String indexName) {
+		return connection.execute((client, options) -> client.indices().exists(new GetIndexRequest().indices(indexName), options));
+	}
+
+	private boolean aliasExists(String alias) {
+		return connection.execute((client, options) -> client.indices().existsAlias(new GetAliasesRequest(alias), options));
 	}
 
 	@Override
 	public void deleteIndex(MeasureInstance measureInstance) {
 		// Delete kibana index
 		String indexName = IndexFormat.getMeasureInstanceIndex(measureInstance.getInstanceName());
-		if (isKibanaIndexExist(indexName)) {
-			RestTemplate deleteIndexRest = new RestTemplate();
-
-			HttpHeaders headers = new HttpHeaders();
-			headers.add("kbn-xsrf", "reporting");
-
-			HttpEntity<MultiValueMap<String, Object>> request = new HttpEntity<MultiValueMap<String, Object>>(headers);
-
-			deleteIndexRest.exchange("http://" + kibanaAddress + "/api/saved_objects/index-pattern/" + indexName,
-					HttpMethod.DELETE, request, String.class);
-		}
+		kibanaQueue.deleteIndexPattern(indexName);
 		
 		// Delete the Elasticsearch index if exist
-		TransportClient client = connection.getClient();
-		final IndicesExistsResponse res = client.admin().indices().prepareExists(indexName).execute().actionGet();
-		if (res.isExists()) {
-			final DeleteIndexRequestBuilder delIdx = client.admin().indices().prepareDelete(indexName);
-			delIdx.execute().actionGet();
+		IndexTarget target = indexLayout.getWriteTarget(measureInstance.getInstanceName());
+		if (target.isShared()) {
+			// Only delete the measurements of the instance from the shared index
+			DeleteByQueryRequest deleteByQuery = new DeleteByQueryRequest(indexName).setQuery(QueryBuilders.matchAllQuery());
+			connection.execute((client, options) -> client.deleteByQuery(deleteByQuery, options));
+			List<String> indices = partitions.getIndices(target.getIndex());
+			IndicesAliasesRequest request = new IndicesAliasesRequest().addAliasAction(AliasActions.remove().indices(indices.toArray(new String[indices.size()])).alias(indexName));
+			connection.execute((client, options) -> client.indices().updateAliases(request, options));
+		} else if (target.isPartitioned()) {
+			List<String> indices = partitions.getIndices(target.getIndex());
+			if (!indices.isEmpty()) {
+				connection.execute((client, options) -> client.indices().delete(new DeleteIndexRequest(indices.toArray(new String[indices.size()])), options));
+			}
+			// No template deletion in the high level client of this version
+			connection.execute((client, options) -> client.getLowLevelClient().performRequest(new Request("DELETE", "/_template/" + target.getIndex())));
+		} else if (indexExists(indexName)) {
+			connection.execute((client, options) -> client.indices().delete(new DeleteIndexRequest(indexName), options));
 		}
+
+		// Delete the rollup documents of the instance from the tiers
+		for (RollupTier tier : RollupTier.values()) {
+			if (indexExists(tier.getIndex())) {
+				DeleteByQueryRequest deleteRollups = new DeleteByQueryRequest(tier.getIndex()).setRouting(measureInstance.getInstanceName()).setQuery(MeasurementRollups.getInstanceFilter(measureInstance.getInstanceName()));
+				connection.execute((client, options) -> client.deleteByQuery(deleteRollups, options));
+			}
+		}
+		rollups.invalidate(measureInstance.getInstanceName());
+		indexRegistry.forget(indexName);
+		indexLayout.invalidate(measureInstance.getInstanceName());
+		lastMeasurementCache.invalidate(measureInstance.getInstanceName());
+		windowCache.invalidate(measureInstance.getInstanceName());
 	}
 
 	@Override
@@ -164,16 +278,28 @@ public class ElasticsearchIndexManager implements IElasticsearchIndexManager {
 		// Create Default Elasticsearch Index
 		createESGenericIndex();
 
+		// Map the measurement id in the indices created by the previous versions
+		mapMeasurementId();
+
 		// Create Generic Kibana Index if required
 		createKibanaGenericIndex();
 	}
 
 	private void createESGenericIndex() {
-		TransportClient client = connection.getClient();
-		final IndicesExistsResponse res = client.admin().indices().prepareExists(IndexFormat.ES_BASE_INDEX).execute().actionGet();
-		if (!res.isExists()) {
+		if (!indexExists(IndexFormat.ES_BASE_INDEX)) {
 			CreateIndexRequest request = new CreateIndexRequest(IndexFormat.ES_BASE_INDEX);
-			client.admin().indices().create(request).actionGet();
+			connection.execute((client, options) -> client.indices().create(request, options));
+		}
+	}
+
+	private void mapMeasurementId() {
+		PutMappingRequest request = new PutMappingRequest(IndexFormat.PREFIX_INDEX + "*", IndexFormat.ROLLUP_PREFIX_INDEX + "*").type("_doc")
+				.source(IndexFormat.ID_FIELD, "type=keyword");
+		try {
+			connection.execute((client, options) -> client.indices().putMapping(request, options));
+		} catch (ElasticsearchException e) {
+			// Mapped dynamically as a text field by a previous version, sorted as missing
+			log.warn("Unable to map the measurement id in the existing measurement indices : " + e.getMessage());
 		}
 	}
 
@@ -16,13 +16,85 @@
  ******************************************************************************/
 package org.measure.platform.core.measurement.impl;
 
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+
 public class IndexFormat {
 
 	public static final String ES_BASE_INDEX = "measure.default.init";
 	public static final String KIBANA_BASE_INDEX = "measure.*";
 	public static final String PREFIX_INDEX = "measure.";
+	public static final String SHARED_PREFIX_INDEX = "measure.shared.";
+	public static final String INSTANCE_FIELD = "measureInstance";
+	/**
+	 * The id of a measurement, a keyword with doc values breaking the ties of the sorts on postDate.
+	 */
+	public static final String ID_FIELD = "measurementId";
+	public static final String PARTITION_SEPARATOR = ".p-";
+	public static final String ROLLUP_PREFIX_INDEX = "measure-rollup.";
+
+	public static final String DATE_FIELD = "postDate";
+
+	private static final DateTimeFormatter PARTITION_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM");
 
 	public static String getMeasureInstanceIndex(String instanceName) {
 		return IndexFormat.PREFIX_INDEX + instanceName.toLowerCase();
 	}
+
+	public static String getSharedMeasureIndex(String application, String measureName) {
+		String name = application != null ? application + "." + measureName : measureName;
+		return IndexFormat.SHARED_PREFIX_INDEX + name.toLowerCase().replaceAll("[^a-z0-9._-]", "_");
+	}
+
+	/**
+	 * @return the index of a rollup tier, shared by the instances and routed by instance
+	 */
+	public static String getRollupIndex(String tier) {
+		return IndexFormat.ROLLUP_PREFIX_INDEX + tier;
+	}
+
+	public static String getPartitionIndex(String baseIndex, YearMonth month) {
+		return baseIndex + PARTITION_SEPARATOR + PARTITION_FORMAT.format(month);
+	}
+
+	public static String getPartitionIndex(String baseIndex, long time) {
+		return getPartitionIndex(baseIndex, YearMonth.from(Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC)));
+	}
+
+	public static boolean isPartitionIndex(String index) {
+		return index.contains(PARTITION_SEPARATOR);
+	}
+
+	public static String getPartitionBase(String partitionIndex) {
+		return partitionIndex.substring(0, partitionIndex.lastIndexOf(PARTITION_SEPARATOR));
+	}
+
+	public static YearMonth getPartitionMonth(String partitionIndex) {
+		return YearMonth.parse(partitionIndex.substring(partitionIndex.lastIndexOf(PARTITION_SEPARATOR) + PARTITION_SEPARATOR.length()), PARTITION_FORMAT);
+	}
+
+	/**
+	 * @return the postDate of a measurement in milliseconds, Long.MIN_VALUE if missing or unreadable
+	 */
+	public static long getPostDate(Map<String, Object> values) {
+		Object postDate = values.get(DATE_FIELD);
+		if (postDate instanceof Date) {
+			return ((Date) postDate).getTime();
+		} else if (postDate instanceof Number) {
+			return ((Number) postDate).longValue();
+		} else if (postDate instanceof String) {
+			try {
+				return DatatypeConverter.parseDateTime((String) postDate).getTimeInMillis();
+			} catch (IllegalArgumentException e) {
+				return Long.MIN_VALUE;
+			}
+		}
+		return Long.MIN_VALUE;
+	}
 }
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Asynchronous provisioning of the Kibana index patterns of the measure
+ * instances. The requests are queued by index pattern, the last one winning,
+ * and sent in the background : the creations with the bulk saved object API.
+ * The existing index patterns are loaded once by the background worker, the
+ * creation of a pattern known to exist is not queued. While Kibana is
+ * unavailable the loading and the queue are retried with an exponential
+ * backoff, the callers never wait for Kibana.
+ */
+@Component
+public class KibanaProvisioningQueue {
+	private final Logger log = LoggerFactory.getLogger(KibanaProvisioningQueue.class);
+
+	private static final String INDEX_PATTERN = "index-pattern";
+
+	@Value("${measureplatform.kibana.api.endpoints}")
+	private String kibanaAddress;
+
+	@Value("${measureplatform.kibana.provisioning.batch:100}")
+	private int batchSize;
+
+	@Value("${measureplatform.kibana.provisioning.max-backoff:300000}")
+	private long maxBackoff;
+
+	@Value("${measureplatform.kibana.provisioning.connect-timeout:5000}")
+	private int connectTimeout;
+
+	@Value("${measureplatform.kibana.provisioning.read-timeout:30000}")
+	private int readTimeout;
+
+	private RestTemplate rest;
+
+	/**
+	 * Pending operations by index pattern : the attributes of the pattern to
+	 * create, an empty map to delete it.
+	 */
+	private final Map<String, Map<String, String>> pending = new LinkedHashMap<>();
+
+	private final Set<String> patterns = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean loaded;
+
+	private int failures;
+
+	private long nextAttempt;
+
+	@PostConstruct
+	public void initIt() {
+		SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+		requestFactory.setConnectTimeout(connectTimeout);
+		requestFactory.setReadTimeout(readTimeout);
+		this.rest = new RestTemplate(requestFactory);
+	}
+
+	/**
+	 * Queue the creation of an index pattern, unless it is known to exist.
+	 * Until the existing patterns are loaded, the creation is queued : an
+	 * existing pattern is then reported as a conflict by Kibana and ignored.
+	 */
+	public void createIndexPattern(String title, String timeFieldName) {
+		boolean known = loaded && patterns.contains(title);
+		Map<String, String> attributes = new HashMap<>();
+		attributes.put("title", title);
+		if (timeFieldName != null) {
+			attributes.put("timeFieldName", timeFieldName);
+		}
+		synchronized (pending) {
+			// A known pattern may have a pending deletion to override
+			if (!known || pending.containsKey(title)) {
+				pending.put(title, attributes);
+			}
+		}
+	}
+
+	/**
+	 * Queue the deletion of an index pattern.
+	 */
+	public void deleteIndexPattern(String title) {
+		synchronized (pending) {
+			pending.put(title, new HashMap<>());
+		}
+	}
+
+	@Scheduled(fixedDelayString = "${measureplatform.kibana.provisioning.interval:2000}")
+	public void provision() {
+		if (System.currentTimeMillis() < nextAttempt) {
+			return;
+		}
+		if (!loaded && !load()) {
+			postpone();
+			return;
+		}
+		Map<String, Map<String, String>> batch = new LinkedHashMap<>();
+		synchronized (pending) {
+			Iterator<Map.Entry<String, Map<String, String>>> operations = pending.entrySet().iterator();
+			while (operations.hasNext() && batch.size() < batchSize) {
+				Map.Entry<String, Map<String, String>> operation = operations.next();
+				batch.put(operation.getKey(), operation.getValue());
+			}
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		List<String> done = new ArrayList<>();
+		try {
+			Map<String, Map<String, String>> creations = new LinkedHashMap<>();
+			for (Map.Entry<String, Map<String, String>> operation : batch.entrySet()) {
+				if (operation.getValue().isEmpty()) {
+					delete(operation.getKey());
+					done.add(operation.getKey());
+				} else if (patterns.contains(operation.getKey())) {
+					// Queued before the existing patterns were loaded
+					done.add(operation.getKey());
+				} else {
+					creations.put(operation.getKey(), operation.getValue());
+				}
+			}
+			if (!creations.isEmpty()) {
+				done.addAll(bulkCreate(creations));
+			}
+		} catch (RestClientException | JSONException e) {
+			log.warn("Kibana unavailable, index pattern provisioning postponed : " + e.getMessage());
+		}
+
+		synchronized (pending) {
+			for (String title : done) {
+				// Unless requested again meanwhile
+				if (pending.get(title) == batch.get(title)) {
+					pending.remove(title);
+				}
+			}
+		}
+		if (done.size() < batch.size()) {
+			postpone();
+		} else {
+			failures = 0;
+			nextAttempt = 0;
+		}
+	}
+
+	private void postpone() {
+		failures++;
+		nextAttempt = System.currentTimeMillis() + Math.min(maxBackoff, 1000L << Math.min(failures, 20));
+	}
+
+	/**
+	 * @return the index patterns created, or existing
+	 */
+	private List<String> bulkCreate(Map<String, Map<String, String>> creations) throws JSONException {
+		JSONArray objects = new JSONArray();
+		for (Map.Entry<String, Map<String, String>> creation : creations.entrySet()) {
+			JSONObject object = new JSONObject();
+			object.put("type", INDEX_PATTERN);
+			object.put("id", creation.getKey());
+			object.put("attributes", new JSONObject(creation.getValue()));
+			objects.put(object);
+		}
+
+		String response = rest.postForObject("http://" + kibanaAddress + "/api/saved_objects/_bulk_create", new HttpEntity<>(objects.toString(), jsonHeaders()), String.class);
+
+		List<String> created = new ArrayList<>();
+		JSONArray savedObjects = new JSONObject(response).getJSONArray("saved_objects");
+		for (int i = 0; i < savedObjects.length(); i++) {
+			JSONObject savedObject = savedObjects.getJSONObject(i);
+			JSONObject error = savedObject.optJSONObject("error");
+			if (error == null || error.optInt("statusCode") == HttpStatus.CONFLICT.value()) {
+				created.add(savedObject.getString("id"));
+				patterns.add(savedObject.getString("id"));
+			} else {
+				log.error("Unable to create the Kibana index pattern " + savedObject.getString("id") + " : " + error.optString("message"));
+			}
+		}
+		return created;
+	}
+
+	private void delete(String title) {
+		try {
+			rest.exchange("http://" + kibanaAddress + "/api/saved_objects/" + INDEX_PATTERN + "/" + title, HttpMethod.DELETE, new HttpEntity<>(jsonHeaders()), String.class);
+		} catch (HttpClientErrorException e) {
+			if (!HttpStatus.NOT_FOUND.equals(e.getStatusCode())) {
+				throw e;
+			}
+		}
+		patterns.remove(title);
+	}
+
+	/**
+	 * Load the existing index patterns.
+	 * @return false if Kibana is unavailable
+	 */
+	private boolean load() {
+		try {
+			String response = rest.exchange("http://" + kibanaAddress + "/api/saved_objects/_find?type=" + INDEX_PATTERN + "&fields=title&per_page=10000", HttpMethod.GET, new HttpEntity<>(jsonHeaders()), String.class).getBody();
+			JSONArray savedObjects = new JSONObject(response).getJSONArray("saved_objects");
+			for (int i = 0; i < savedObjects.length(); i++) {
+				patterns.add(savedObjects.getJSONObject(i).getString("id"));
+			}
+			loaded = true;
+			return true;
+		} catch (RestClientException | JSONException e) {
+			log.warn("Unable to load the Kibana index patterns : " + e.getMessage());
+			return false;
+		}
+	}
+
+	private HttpHeaders jsonHeaders() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.add("kbn-xsrf", "reporting");
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		return headers;
+	}
+
+}
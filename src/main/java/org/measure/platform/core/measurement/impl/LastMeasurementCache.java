@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.measure.smm.measure.api.IMeasurement;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Bounded cache of the last measurement of each measure instance. The cache is
+ * updated on each stored measurement, an entry being only replaced by a
+ * measurement with a more recent postDate, and loaded from Elasticsearch on a
+ * miss. When full, an arbitrary entry is evicted. The measurements are cached
+ * in the form they have when read from Elasticsearch, and each caller gets its
+ * own copy.
+ */
+@Component
+public class LastMeasurementCache {
+
+	@Value("${measureplatform.elasticsearch.last-value-cache.size:10000}")
+	private int maxSize;
+
+	@Inject
+	private MetricRegistry metricRegistry;
+
+	@Inject
+	private MeasurementHitDecoder hitDecoder;
+
+	private final Map<String, CachedMeasurement> entries = new ConcurrentHashMap<>();
+
+	private Meter hits;
+
+	private Meter misses;
+
+	@PostConstruct
+	public void initIt() {
+		this.hits = metricRegistry.meter(MetricRegistry.name(LastMeasurementCache.class, "hits"));
+		this.misses = metricRegistry.meter(MetricRegistry.name(LastMeasurementCache.class, "misses"));
+		metricRegistry.register(MetricRegistry.name(LastMeasurementCache.class, "size"), (Gauge<Integer>) entries::size);
+	}
+
+	/**
+	 * @return a copy of the cached last measurement of the instance, null if not cached
+	 */
+	public IMeasurement get(String measureInstance) {
+		CachedMeasurement cached = entries.get(measureInstance);
+		if (cached == null) {
+			misses.mark();
+			return null;
+		}
+		hits.mark();
+		return MeasurementHitDecoder.copy(cached.measurement);
+	}
+
+	/**
+	 * Cache a measurement of the instance if it is more recent than the cached one.
+	 */
+	public void offer(String measureInstance, IMeasurement measurement) {
+		if (measurement == null) {
+			return;
+		}
+		IMeasurement normalized = hitDecoder.normalize(measurement);
+		CachedMeasurement candidate = new CachedMeasurement(normalized, IndexFormat.getPostDate(normalized.getValues()));
+
+		entries.merge(measureInstance, candidate, (current, offered) -> offered.postDate >= current.postDate ? offered : current);
+		if (entries.size() > maxSize) {
+			evict(measureInstance);
+		}
+	}
+
+	public void invalidate(String measureInstance) {
+		entries.remove(measureInstance);
+	}
+
+	private void evict(String keep) {
+		Iterator<String> keys = entries.keySet().iterator();
+		while (entries.size() > maxSize && keys.hasNext()) {
+			if (!keys.next().equals(keep)) {
+				keys.remove();
+			}
+		}
+	}
+
+	private static class CachedMeasurement {
+		private final IMeasurement measurement;
+
+		private final long postDate;
+
+		CachedMeasurement(IMeasurement measurement, long postDate) {
+			this.measurement = measurement;
+			this.postDate = postDate;
+		}
+	}
+
+}
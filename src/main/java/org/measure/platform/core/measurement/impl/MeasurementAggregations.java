@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
+import org.elasticsearch.search.aggregations.metrics.min.Min;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentile;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentiles;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.elasticsearch.search.aggregations.metrics.sum.Sum;
+import org.joda.time.DateTime;
+import org.measure.platform.restapi.measure.dto.MeasurementAggregationQuery;
+import org.measure.platform.restapi.measure.dto.MeasurementBucket;
+
+/**
+ * Translation of the measurement aggregation queries into Elasticsearch date
+ * histogram aggregations, and of their results into buckets. Also computes the
+ * rollup documents, and answers the aggregation queries from them.
+ */
+final class MeasurementAggregations {
+	static final String DATE_FIELD = IndexFormat.DATE_FIELD;
+
+	static final String ROLLUP_INTERVAL_FIELD = "rollupInterval";
+
+	static final String ROLLUP_COUNT_FIELD = "rollupCount";
+
+	static final String MIN_SUFFIX = "_min";
+
+	static final String MAX_SUFFIX = "_max";
+
+	static final String SUM_SUFFIX = "_sum";
+
+	static final String COUNT_SUFFIX = "_count";
+
+	private static final String HISTOGRAM = "histogram";
+
+	private static final String STATS = "stats";
+
+	private static final String PERCENTILES = "percentiles";
+
+	private static final String MIN = "min";
+
+	private static final String MAX = "max";
+
+	private static final String SUM = "sum";
+
+	private static final String COUNT = "count";
+
+	private static final Set<String> FUNCTIONS = new HashSet<>(Arrays.asList(MeasurementAggregationQuery.AVG, MeasurementAggregationQuery.MIN, MeasurementAggregationQuery.MAX, MeasurementAggregationQuery.SUM, MeasurementAggregationQuery.COUNT, MeasurementAggregationQuery.PERCENTILES));
+
+	private MeasurementAggregations() {
+	}
+
+	/**
+	 * Check the query before it is sent, so that an invalid query is reported to
+	 * the caller instead of failing in Elasticsearch.
+	 * @throws IllegalArgumentException if the query is incomplete, uses an unknown
+	 *         interval or function, or a percent outside of [0, 100]. The filter
+	 *         of the query is checked when it is compiled.
+	 */
+	static void validate(MeasurementAggregationQuery query) {
+		if (query.getMeasureInstance() == null || query.getInterval() == null || query.getInterval().isEmpty()) {
+			throw new IllegalArgumentException("A measure instance and a bucket interval are required");
+		}
+		if (!isValidInterval(query.getInterval())) {
+			throw new IllegalArgumentException("Invalid bucket interval : " + query.getInterval());
+		}
+		if (query.getFunctions() == null) {
+			throw new IllegalArgumentException("The aggregation functions are required");
+		}
+		for (String function : query.getFunctions()) {
+			if (!FUNCTIONS.contains(function)) {
+				throw new IllegalArgumentException("Unknown aggregation function : " + function);
+			}
+		}
+		if (requiresField(query) && (query.getField() == null || query.getField().isEmpty())) {
+			throw new IllegalArgumentException("A value field is required for the functions " + query.getFunctions());
+		}
+		if (query.getFunctions().contains(MeasurementAggregationQuery.PERCENTILES)) {
+			if (query.getPercents() == null || query.getPercents().length == 0) {
+				throw new IllegalArgumentException("The percents are required for the percentiles function");
+			}
+			for (double percent : query.getPercents()) {
+				if (!(percent >= 0 && percent <= 100)) {
+					throw new IllegalArgumentException("Invalid percent : " + percent + ", expected between 0 and 100");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true for a fixed interval with a unit (30s, 1h...) or a calendar interval (1M, month...)
+	 */
+	private static boolean isValidInterval(String interval) {
+		try {
+			return MeasurementRollups.intervalMillis(interval) > 0;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Build the query of a part of the range of an aggregation query.
+	 * @param filter the compiled filter of the query, null if none
+	 */
+	static BoolQueryBuilder buildQuery(MeasurementAggregationQuery query, MeasurementFilter filter, Date from, Date to) {
+		BoolQueryBuilder bool = QueryBuilders.boolQuery();
+		if (from != null || to != null) {
+			RangeQueryBuilder range = QueryBuilders.rangeQuery(DATE_FIELD);
+			if (from != null) {
+				range.gte(from.getTime());
+			}
+			if (to != null) {
+				range.lt(to.getTime());
+			}
+			bool.filter(range);
+		}
+		if (filter != null) {
+			bool.filter(filter.toQuery());
+		}
+		return bool;
+	}
+
+	static DateHistogramAggregationBuilder buildAggregation(MeasurementAggregationQuery query) {
+		DateHistogramAggregationBuilder histogram = AggregationBuilders.dateHistogram(HISTOGRAM).field(DATE_FIELD).dateHistogramInterval(new DateHistogramInterval(query.getInterval()));
+		if (hasStats(query)) {
+			histogram.subAggregation(AggregationBuilders.stats(STATS).field(query.getField()));
+		}
+		if (query.getFunctions().contains(MeasurementAggregationQuery.PERCENTILES)) {
+			histogram.subAggregation(AggregationBuilders.percentiles(PERCENTILES).field(query.getField()).percentiles(query.getPercents()));
+		}
+		return histogram;
+	}
+
+	static List<MeasurementBucket> readBuckets(MeasurementAggregationQuery query, SearchResponse response) {
+		List<MeasurementBucket> buckets = new ArrayList<>();
+		if (response.getAggregations() == null) {
+			return buckets;
+		}
+		Histogram histogram = response.getAggregations().get(HISTOGRAM);
+		for (Histogram.Bucket entry : histogram.getBuckets()) {
+			MeasurementBucket bucket = new MeasurementBucket();
+			bucket.setDate(new Date(((DateTime) entry.getKey()).getMillis()));
+			bucket.setCount(entry.getDocCount());
+
+			Stats stats = entry.getAggregations().get(STATS);
+			if (stats != null && stats.getCount() > 0) {
+				if (query.getFunctions().contains(MeasurementAggregationQuery.AVG)) {
+					bucket.setAvg(stats.getAvg());
+				}
+				if (query.getFunctions().contains(MeasurementAggregationQuery.MIN)) {
+					bucket.setMin(stats.getMin());
+				}
+				if (query.getFunctions().contains(MeasurementAggregationQuery.MAX)) {
+					bucket.setMax(stats.getMax());
+				}
+				if (query.getFunctions().contains(MeasurementAggregationQuery.SUM)) {
+					bucket.setSum(stats.getSum());
+				}
+			}
+
+			Percentiles percentiles = entry.getAggregations().get(PERCENTILES);
+			if (percentiles != null) {
+				for (Percentile percentile : percentiles) {
+					if (!Double.isNaN(percentile.getValue())) {
+						bucket.putPercentile(String.valueOf(percentile.getPercent()), percentile.getValue());
+					}
+				}
+			}
+			buckets.add(bucket);
+		}
+		return buckets;
+	}
+
+	/**
+	 * Build the aggregation computing the rollup documents of a tier : the stats of each numeric field by bucket.
+	 */
+	static DateHistogramAggregationBuilder buildRollupAggregation(String interval, List<String> fields) {
+		DateHistogramAggregationBuilder histogram = AggregationBuilders.dateHistogram(HISTOGRAM).field(DATE_FIELD).dateHistogramInterval(new DateHistogramInterval(interval));
+		for (String field : fields) {
+			histogram.subAggregation(AggregationBuilders.stats(field).field(field));
+		}
+		return histogram;
+	}
+
+	/**
+	 * Read the rollup documents computed by a rollup aggregation. The value of a
+	 * field is its average, completed by its min, max, sum and count, so that the
+	 * rollup documents can be read as measurements.
+	 */
+	static Map<Long, Map<String, Object>> readRollupDocuments(SearchResponse response, String interval, List<String> fields) {
+		Map<Long, Map<String, Object>> documents = new LinkedHashMap<>();
+		if (response.getAggregations() == null) {
+			return documents;
+		}
+		Histogram histogram = response.getAggregations().get(HISTOGRAM);
+		for (Histogram.Bucket entry : histogram.getBuckets()) {
+			if (entry.getDocCount() == 0) {
+				continue;
+			}
+			long date = ((DateTime) entry.getKey()).getMillis();
+			Map<String, Object> document = new HashMap<>();
+			document.put(DATE_FIELD, new Date(date));
+			document.put(ROLLUP_INTERVAL_FIELD, interval);
+			document.put(ROLLUP_COUNT_FIELD, entry.getDocCount());
+			for (String field : fields) {
+				Stats stats = entry.getAggregations().get(field);
+				if (stats != null && stats.getCount() > 0) {
+					document.put(field, stats.getAvg());
+					document.put(field + MIN_SUFFIX, stats.getMin());
+					document.put(field + MAX_SUFFIX, stats.getMax());
+					document.put(field + SUM_SUFFIX, stats.getSum());
+					document.put(field + COUNT_SUFFIX, stats.getCount());
+				}
+			}
+			documents.put(date, document);
+		}
+		return documents;
+	}
+
+	/**
+	 * Build the aggregation answering a query from rollup documents. Percentiles can't be computed from rollups.
+	 */
+	static DateHistogramAggregationBuilder buildAggregationOnRollup(MeasurementAggregationQuery query) {
+		DateHistogramAggregationBuilder histogram = AggregationBuilders.dateHistogram(HISTOGRAM).field(DATE_FIELD).dateHistogramInterval(new DateHistogramInterval(query.getInterval()));
+		histogram.subAggregation(AggregationBuilders.sum(COUNT).field(ROLLUP_COUNT_FIELD));
+		if (hasStats(query)) {
+			histogram.subAggregation(AggregationBuilders.sum(SUM).field(query.getField() + SUM_SUFFIX));
+			histogram.subAggregation(AggregationBuilders.sum(query.getField() + COUNT_SUFFIX).field(query.getField() + COUNT_SUFFIX));
+			histogram.subAggregation(AggregationBuilders.min(MIN).field(query.getField() + MIN_SUFFIX));
+			histogram.subAggregation(AggregationBuilders.max(MAX).field(query.getField() + MAX_SUFFIX));
+		}
+		return histogram;
+	}
+
+	static List<MeasurementBucket> readRollupBuckets(MeasurementAggregationQuery query, SearchResponse response) {
+		List<MeasurementBucket> buckets = new ArrayList<>();
+		if (response.getAggregations() == null) {
+			return buckets;
+		}
+		Histogram histogram = response.getAggregations().get(HISTOGRAM);
+		for (Histogram.Bucket entry : histogram.getBuckets()) {
+			MeasurementBucket bucket = new MeasurementBucket();
+			bucket.setDate(new Date(((DateTime) entry.getKey()).getMillis()));
+			bucket.setCount((long) ((Sum) entry.getAggregations().get(COUNT)).getValue());
+
+			Sum valueCount = entry.getAggregations().get(query.getField() + COUNT_SUFFIX);
+			if (valueCount != null && valueCount.getValue() > 0) {
+				double sum = ((Sum) entry.getAggregations().get(SUM)).getValue();
+				if (query.getFunctions().contains(MeasurementAggregationQuery.AVG)) {
+					bucket.setAvg(sum / valueCount.getValue());
+				}
+				if (query.getFunctions().contains(MeasurementAggregationQuery.MIN)) {
+					bucket.setMin(((Min) entry.getAggregations().get(MIN)).getValue());
+				}
+				if (query.getFunctions().contains(MeasurementAggregationQuery.MAX)) {
+					bucket.setMax(((Max) entry.getAggregations().get(MAX)).getValue());
+				}
+				if (query.getFunctions().contains(MeasurementAggregationQuery.SUM)) {
+					bucket.setSum(sum);
+				}
+			}
+			buckets.add(bucket);
+		}
+		return buckets;
+	}
+
+	/**
+	 * Merge the buckets read from the rollups before a watermark with the buckets
+	 * read from the raw measurements after it, the bucket holding the watermark
+	 * being read from both. The averages of a bucket are weighted by the counts.
+	 */
+	static List<MeasurementBucket> mergeBuckets(List<MeasurementBucket> older, List<MeasurementBucket> newer) {
+		Map<Long, MeasurementBucket> merged = new TreeMap<>();
+		for (MeasurementBucket bucket : older) {
+			merged.put(bucket.getDate().getTime(), bucket);
+		}
+		for (MeasurementBucket bucket : newer) {
+			MeasurementBucket first = merged.get(bucket.getDate().getTime());
+			if (first == null || first.getCount() == 0) {
+				merged.put(bucket.getDate().getTime(), bucket);
+			} else if (bucket.getCount() > 0) {
+				long count = first.getCount() + bucket.getCount();
+				if (first.getAvg() != null && bucket.getAvg() != null) {
+					first.setAvg((first.getAvg() * first.getCount() + bucket.getAvg() * bucket.getCount()) / count);
+				} else if (first.getAvg() == null) {
+					first.setAvg(bucket.getAvg());
+				}
+				first.setMin(first.getMin() == null ? bucket.getMin() : bucket.getMin() == null ? first.getMin() : Math.min(first.getMin(), bucket.getMin()));
+				first.setMax(first.getMax() == null ? bucket.getMax() : bucket.getMax() == null ? first.getMax() : Math.max(first.getMax(), bucket.getMax()));
+				first.setSum(first.getSum() == null ? bucket.getSum() : bucket.getSum() == null ? first.getSum() : first.getSum() + bucket.getSum());
+				first.setCount(count);
+			}
+		}
+		return new ArrayList<>(merged.values());
+	}
+
+	private static boolean hasStats(MeasurementAggregationQuery query) {
+		for (String function : query.getFunctions()) {
+			if (!MeasurementAggregationQuery.COUNT.equals(function) && !MeasurementAggregationQuery.PERCENTILES.equals(function)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean requiresField(MeasurementAggregationQuery query) {
+		for (String function : query.getFunctions()) {
+			if (!MeasurementAggregationQuery.COUNT.equals(function)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
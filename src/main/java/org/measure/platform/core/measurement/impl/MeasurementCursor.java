@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque pagination cursor holding the sort values of the last measurement of
+ * a page: its postDate and its measurement id, used as a tiebreaker.
+ */
+final class MeasurementCursor {
+	private static final String SEPARATOR = "|";
+
+	private MeasurementCursor() {
+	}
+
+	static String encode(Object[] sortValues) {
+		if (sortValues == null || sortValues.length != 2) {
+			return null;
+		}
+		String value = sortValues[0] + SEPARATOR + sortValues[1];
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static Object[] decode(String cursor) {
+		try {
+			String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+			int separator = value.indexOf(SEPARATOR);
+			return new Object[] { Long.parseLong(value.substring(0, separator)), value.substring(separator + 1) };
+		} catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Invalid measurement cursor : " + cursor);
+		}
+	}
+
+}
@@ -0,0 +1,613 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+
+/**
+ * A measurement filter written in the query string syntax, compiled once into
+ * an Elasticsearch query to run in filter context and, for the numeric,
+ * boolean and exists clauses, into a predicate evaluated on the
+ * measurements held in memory. Clauses beyond that subset are validated by
+ * the Lucene query parser and run as a query string query. The fields are
+ * read in memory as Elasticsearch reads them : a dotted name is a path in the
+ * objects of the measurement, or the sub-field of a multi-field, and an array
+ * matches when one of its values matches.
+ */
+public final class MeasurementFilter {
+
+	private final QueryBuilder query;
+
+	/**
+	 * The compiled expression, null if not in the subset evaluated in memory.
+	 */
+	private final Node root;
+
+	private MeasurementFilter(QueryBuilder query, Node root) {
+		this.query = query;
+		this.root = root;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the expression is not a valid query string
+	 * @see MeasurementFilterCache
+	 */
+	public static MeasurementFilter compile(String expression) {
+		try {
+			Node root = new Parser(expression).parse();
+			return new MeasurementFilter(root.toQuery(), root.isEvaluable() ? root : null);
+		} catch (UnsupportedSyntaxException e) {
+			// Outside of the compiled subset, left to the query string query
+			try {
+				QueryParser parser = new QueryParser("*", new KeywordAnalyzer());
+				parser.setAllowLeadingWildcard(true);
+				parser.parse(expression);
+			} catch (ParseException | RuntimeException error) {
+				throw new IllegalArgumentException("Invalid filter \"" + expression + "\": " + error.getMessage(), error);
+			}
+			return new MeasurementFilter(QueryBuilders.queryStringQuery(expression), null);
+		}
+	}
+
+	public QueryBuilder toQuery() {
+		return query;
+	}
+
+	public boolean isEvaluable() {
+		return root != null;
+	}
+
+	/**
+	 * @return whether the measurement values match the filter, null if it can't be told without Elasticsearch
+	 */
+	public Boolean evaluate(Map<String, Object> values) {
+		return root != null ? root.evaluate(values) : null;
+	}
+
+	private interface Node {
+		QueryBuilder toQuery();
+
+		boolean isEvaluable();
+
+		Boolean evaluate(Map<String, Object> values);
+	}
+
+	private enum Occur {
+		MUST, SHOULD, MUST_NOT
+	}
+
+	/**
+	 * Clauses combined as the Lucene query parser does with the default OR
+	 * operator: optional clauses only matter when none is required. Clauses
+	 * mixing the AND and OR conjunctions are left to the query string query,
+	 * their precedence being specific to the classic query parser.
+	 */
+	private static class Clauses implements Node {
+		private final List<Occur> occurs = new ArrayList<>();
+
+		private final List<Node> nodes = new ArrayList<>();
+
+		private final Set<String> conjunctions = new HashSet<>();
+
+		void add(String conjunction, String modifier, Node node) {
+			if (conjunction != null && conjunctions.add(conjunction) && conjunctions.size() > 1) {
+				throw new UnsupportedSyntaxException();
+			}
+			if (!nodes.isEmpty() && "AND".equals(conjunction) && occurs.get(occurs.size() - 1) != Occur.MUST_NOT) {
+				occurs.set(occurs.size() - 1, Occur.MUST);
+			}
+			if ("NOT".equals(modifier)) {
+				occurs.add(Occur.MUST_NOT);
+			} else if ("+".equals(modifier) || "AND".equals(conjunction)) {
+				occurs.add(Occur.MUST);
+			} else {
+				occurs.add(Occur.SHOULD);
+			}
+			nodes.add(node);
+		}
+
+		@Override
+		public QueryBuilder toQuery() {
+			if (nodes.size() == 1 && occurs.get(0) != Occur.MUST_NOT) {
+				return nodes.get(0).toQuery();
+			}
+			boolean required = occurs.contains(Occur.MUST);
+			BoolQueryBuilder bool = QueryBuilders.boolQuery();
+			for (int i = 0; i < nodes.size(); i++) {
+				if (occurs.get(i) == Occur.MUST) {
+					bool.filter(nodes.get(i).toQuery());
+				} else if (occurs.get(i) == Occur.MUST_NOT) {
+					bool.mustNot(nodes.get(i).toQuery());
+				} else if (!required) {
+					bool.should(nodes.get(i).toQuery());
+				}
+			}
+			if (!required && occurs.contains(Occur.SHOULD)) {
+				bool.minimumShouldMatch(1);
+			}
+			return bool;
+		}
+
+		@Override
+		public boolean isEvaluable() {
+			for (Node node : nodes) {
+				if (!node.isEvaluable()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public Boolean evaluate(Map<String, Object> values) {
+			boolean required = occurs.contains(Occur.MUST);
+			boolean optional = !required && occurs.contains(Occur.SHOULD);
+			boolean unknown = false;
+			boolean undecided = false;
+			boolean matched = false;
+			for (int i = 0; i < nodes.size(); i++) {
+				if (occurs.get(i) == Occur.SHOULD && required) {
+					continue;
+				}
+				Boolean result = nodes.get(i).evaluate(values);
+				if (result == null) {
+					if (occurs.get(i) == Occur.SHOULD) {
+						undecided = true;
+					} else {
+						unknown = true;
+					}
+				} else if (occurs.get(i) == Occur.MUST && !result || occurs.get(i) == Occur.MUST_NOT && result) {
+					return false;
+				} else if (occurs.get(i) == Occur.SHOULD && result) {
+					matched = true;
+				}
+			}
+			if (unknown || optional && !matched && undecided) {
+				return null;
+			}
+			return !optional || matched;
+		}
+	}
+
+	private static class Exists implements Node {
+		private final String field;
+
+		Exists(String field) {
+			this.field = field;
+		}
+
+		@Override
+		public QueryBuilder toQuery() {
+			return QueryBuilders.existsQuery(field);
+		}
+
+		@Override
+		public boolean isEvaluable() {
+			return true;
+		}
+
+		@Override
+		public Boolean evaluate(Map<String, Object> values) {
+			return anyMatch(getValue(values, field), value -> true);
+		}
+	}
+
+	/**
+	 * A term, evaluated in memory when numeric or boolean.
+	 */
+	private static class Term implements Node {
+		private final String field;
+
+		private final String text;
+
+		private final boolean phrase;
+
+		Term(String field, String text, boolean phrase) {
+			this.field = field;
+			this.text = text;
+			this.phrase = phrase;
+		}
+
+		@Override
+		public QueryBuilder toQuery() {
+			return phrase ? QueryBuilders.matchPhraseQuery(field, text) : QueryBuilders.matchQuery(field, text);
+		}
+
+		@Override
+		public boolean isEvaluable() {
+			return !phrase && (toNumber(text) != null || toBoolean(text) != null);
+		}
+
+		@Override
+		public Boolean evaluate(Map<String, Object> values) {
+			return anyMatch(getValue(values, field), value -> {
+				if (value instanceof Number && toNumber(text) != null) {
+					return ((Number) value).doubleValue() == toNumber(text);
+				} else if (value instanceof Boolean && toBoolean(text) != null) {
+					return value.equals(toBoolean(text));
+				}
+				// Depends on the mapping of the field
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * A range, evaluated in memory when its bounds are numbers, compared to the
+	 * dates in milliseconds.
+	 */
+	private static class Range implements Node {
+		private final String field;
+
+		private final String from;
+
+		private final String to;
+
+		private final boolean includeFrom;
+
+		private final boolean includeTo;
+
+		Range(String field, String from, String to, boolean includeFrom, boolean includeTo) {
+			this.field = field;
+			this.from = "*".equals(from) ? null : from;
+			this.to = "*".equals(to) ? null : to;
+			this.includeFrom = includeFrom;
+			this.includeTo = includeTo;
+		}
+
+		@Override
+		public QueryBuilder toQuery() {
+			RangeQueryBuilder range = QueryBuilders.rangeQuery(field);
+			if (from != null) {
+				range.from(from, includeFrom);
+			}
+			if (to != null) {
+				range.to(to, includeTo);
+			}
+			return range;
+		}
+
+		@Override
+		public boolean isEvaluable() {
+			return (from == null || toNumber(from) != null) && (to == null || toNumber(to) != null);
+		}
+
+		@Override
+		public Boolean evaluate(Map<String, Object> values) {
+			return anyMatch(getValue(values, field), value -> {
+				double number;
+				if (value instanceof Number) {
+					number = ((Number) value).doubleValue();
+				} else if (value instanceof Date) {
+					number = ((Date) value).getTime();
+				} else if (IndexFormat.DATE_FIELD.equals(field) && IndexFormat.getPostDate(Collections.singletonMap(field, value)) != Long.MIN_VALUE) {
+					number = IndexFormat.getPostDate(Collections.singletonMap(field, value));
+				} else {
+					// Depends on the mapping of the field
+					return null;
+				}
+				return (from == null || compare(number, toNumber(from), includeFrom, 1)) && (to == null || compare(number, toNumber(to), includeTo, -1));
+			});
+		}
+
+		private static boolean compare(double value, double bound, boolean included, int sign) {
+			int comparison = Double.compare(value, bound);
+			return Integer.signum(comparison) == sign || comparison == 0 && included;
+		}
+	}
+
+	/**
+	 * A wildcard term, not evaluated in memory. It is run as a query string
+	 * query so that it is normalized as the other clauses of the filter, the
+	 * pattern being lowercased on the text fields.
+	 */
+	private static class Wildcard implements Node {
+		private final String field;
+
+		private final String text;
+
+		Wildcard(String field, String text) {
+			this.field = field;
+			this.text = text;
+		}
+
+		@Override
+		public QueryBuilder toQuery() {
+			return QueryBuilders.queryStringQuery(field + ":" + text);
+		}
+
+		@Override
+		public boolean isEvaluable() {
+			return false;
+		}
+
+		@Override
+		public Boolean evaluate(Map<String, Object> values) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the value of a field, a list when it is read from an array of objects
+	 */
+	@SuppressWarnings("unchecked")
+	static Object getValue(Map<String, Object> values, String field) {
+		if (values.containsKey(field)) {
+			return values.get(field);
+		}
+		for (int dot = field.indexOf('.'); dot > 0; dot = field.indexOf('.', dot + 1)) {
+			Object parent = values.get(field.substring(0, dot));
+			String path = field.substring(dot + 1);
+			if (parent instanceof Map) {
+				return getValue((Map<String, Object>) parent, path);
+			} else if (parent instanceof Collection) {
+				List<Object> children = new ArrayList<>();
+				for (Object element : (Collection<?>) parent) {
+					if (element instanceof Map) {
+						children.add(getValue((Map<String, Object>) element, path));
+					} else if (element instanceof String && path.indexOf('.') < 0) {
+						children.add(element);
+					}
+				}
+				return children;
+			} else if (parent instanceof String && path.indexOf('.') < 0) {
+				// Sub-field of a multi-field, such as name.keyword
+				return parent;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return whether the value or one of the values of an array matches, null if it can't be told
+	 */
+	private static Boolean anyMatch(Object value, Function<Object, Boolean> predicate) {
+		if (value instanceof Collection) {
+			boolean unknown = false;
+			for (Object element : (Collection<?>) value) {
+				Boolean matches = anyMatch(element, predicate);
+				if (matches == null) {
+					unknown = true;
+				} else if (matches) {
+					return true;
+				}
+			}
+			return unknown ? null : false;
+		}
+		return value != null ? predicate.apply(value) : false;
+	}
+
+	private static Double toNumber(String text) {
+		try {
+			return Double.valueOf(text);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static Boolean toBoolean(String text) {
+		return "true".equals(text) ? Boolean.TRUE : "false".equals(text) ? Boolean.FALSE : null;
+	}
+
+	/**
+	 * Thrown by the parser on the syntax left to the query string query.
+	 */
+	private static class UnsupportedSyntaxException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedSyntaxException() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * Recursive descent parser of the fielded clauses of the query string
+	 * syntax, throwing UnsupportedSyntaxException on anything else.
+	 */
+	private static class Parser {
+		private final String input;
+
+		private int position;
+
+		Parser(String input) {
+			this.input = input;
+		}
+
+		Node parse() {
+			Node node = parseClauses();
+			skipSpaces();
+			if (position < input.length()) {
+				throw new UnsupportedSyntaxException();
+			}
+			return node;
+		}
+
+		private Node parseClauses() {
+			Clauses clauses = new Clauses();
+			skipSpaces();
+			while (position < input.length() && input.charAt(position) != ')') {
+				String conjunction = null;
+				if (consumeOperator("AND", "&&")) {
+					conjunction = "AND";
+				} else if (consumeOperator("OR", "||")) {
+					conjunction = "OR";
+				}
+				String modifier = null;
+				if (consumeOperator("NOT", "!") || consume('-')) {
+					modifier = "NOT";
+				} else if (consume('+')) {
+					modifier = "+";
+				}
+				clauses.add(conjunction, modifier, parseClause());
+				skipSpaces();
+			}
+			if (clauses.nodes.isEmpty()) {
+				throw new UnsupportedSyntaxException();
+			}
+			return clauses;
+		}
+
+		private Node parseClause() {
+			skipSpaces();
+			if (consume('(')) {
+				Node node = parseClauses();
+				if (!consume(')')) {
+					throw new UnsupportedSyntaxException();
+				}
+				return node;
+			}
+			String field = readTerm();
+			if (field.isEmpty() || !consume(':')) {
+				// Searched on the default fields
+				throw new UnsupportedSyntaxException();
+			} else if (isPattern(field)) {
+				// Searched on the fields matching the pattern
+				throw new UnsupportedSyntaxException();
+			}
+			if ("_exists_".equals(field)) {
+				String existing = readTerm();
+				if (existing.isEmpty() || isPattern(existing)) {
+					throw new UnsupportedSyntaxException();
+				}
+				return new Exists(existing);
+			}
+			if (position < input.length() && (input.charAt(position) == '[' || input.charAt(position) == '{')) {
+				return parseRange(field);
+			}
+			if (consume('"')) {
+				int end = input.indexOf('"', position);
+				if (end < 0 || input.substring(position, end).indexOf('\\') >= 0) {
+					throw new UnsupportedSyntaxException();
+				}
+				String phrase = input.substring(position, end);
+				position = end + 1;
+				return new Term(field, phrase, true);
+			}
+			if (consume('>')) {
+				boolean include = consume('=');
+				return new Range(field, readTerm(), null, include, false);
+			}
+			if (consume('<')) {
+				boolean include = consume('=');
+				return new Range(field, null, readTerm(), false, include);
+			}
+			String text = readTerm();
+			if (text.isEmpty()) {
+				throw new UnsupportedSyntaxException();
+			} else if ("*".equals(text)) {
+				return new Exists(field);
+			} else if (isPattern(text)) {
+				return new Wildcard(field, text);
+			}
+			return new Term(field, text, false);
+		}
+
+		private Node parseRange(String field) {
+			boolean includeFrom = input.charAt(position++) == '[';
+			skipSpaces();
+			String from = readTerm();
+			skipSpaces();
+			if (!input.startsWith("TO", position)) {
+				throw new UnsupportedSyntaxException();
+			}
+			position += 2;
+			skipSpaces();
+			String to = readTerm();
+			skipSpaces();
+			boolean includeTo;
+			if (consume(']')) {
+				includeTo = true;
+			} else if (consume('}')) {
+				includeTo = false;
+			} else {
+				throw new UnsupportedSyntaxException();
+			}
+			if (from.isEmpty() || to.isEmpty()) {
+				throw new UnsupportedSyntaxException();
+			}
+			return new Range(field, from, to, includeFrom, includeTo);
+		}
+
+		/**
+		 * Read up to the next space, parenthesis, bracket or colon.
+		 */
+		private String readTerm() {
+			int start = position;
+			while (position < input.length()) {
+				char c = input.charAt(position);
+				if (Character.isWhitespace(c) || "()[]{}:\"".indexOf(c) >= 0) {
+					break;
+				} else if ("\\/~^".indexOf(c) >= 0) {
+					// Escapes, regular expressions, fuzziness and boosts
+					throw new UnsupportedSyntaxException();
+				}
+				position++;
+			}
+			return input.substring(start, position);
+		}
+
+		private static boolean isPattern(String text) {
+			return text.indexOf('*') >= 0 || text.indexOf('?') >= 0;
+		}
+
+		private boolean consumeOperator(String keyword, String symbol) {
+			if (input.startsWith(symbol, position)) {
+				position += symbol.length();
+				skipSpaces();
+				return true;
+			}
+			int end = position + keyword.length();
+			if (input.startsWith(keyword, position) && (end == input.length() || Character.isWhitespace(input.charAt(end)) || input.charAt(end) == '(')) {
+				position = end;
+				skipSpaces();
+				return true;
+			}
+			return false;
+		}
+
+		private boolean consume(char c) {
+			if (position < input.length() && input.charAt(position) == c) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		private void skipSpaces() {
+			while (position < input.length() && Character.isWhitespace(input.charAt(position))) {
+				position++;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the compiled measurement filters, the least recently used
+ * filter being evicted.
+ */
+final class MeasurementFilterCache {
+	private final Map<String, MeasurementFilter> filters;
+
+	MeasurementFilterCache(int size) {
+		this.filters = new LinkedHashMap<String, MeasurementFilter>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, MeasurementFilter> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the expression is not a valid query string
+	 */
+	MeasurementFilter compile(String expression) {
+		synchronized (filters) {
+			MeasurementFilter filter = filters.get(expression);
+			if (filter != null) {
+				return filter;
+			}
+		}
+		// Compiled outside of the lock, a filter compiled twice meanwhile is harmless
+		MeasurementFilter filter = MeasurementFilter.compile(expression);
+		synchronized (filters) {
+			filters.put(expression, filter);
+		}
+		return filter;
+	}
+
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHit;
+import org.measure.smm.measure.api.IMeasurement;
+import org.measure.smm.measure.defaultimpl.measurements.DefaultMeasurement;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Decode the Elasticsearch hits into measurements, reading the source bytes
+ * of the hit directly with a shared reader.
+ */
+@Component
+public class MeasurementHitDecoder {
+	private final ObjectReader reader = new ObjectMapper().readerFor(new TypeReference<Map<String, Object>>() {
+	});
+
+	/**
+	 * Decode the source of a hit into a measurement.
+	 */
+	public IMeasurement decode(SearchHit hit) {
+		DefaultMeasurement measurement = new DefaultMeasurement();
+		measurement.getValues().putAll(read(hit.getSourceRef()));
+		return measurement;
+	}
+
+	/**
+	 * Wrap the source of a hit into a measurement decoded on first access to its values.
+	 */
+	public IMeasurement decodeLazily(SearchHit hit) {
+		return new LazyMeasurement(this, hit.getSourceRef());
+	}
+
+	/**
+	 * Give the values of a measurement being stored the form they have when read
+	 * back from Elasticsearch : the measurement is written as it is indexed, then
+	 * decoded, the dates becoming strings and the numbers the JSON numbers.
+	 */
+	public IMeasurement normalize(IMeasurement measurement) {
+		try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+			builder.map(measurement.getValues());
+			DefaultMeasurement normalized = new DefaultMeasurement();
+			normalized.getValues().putAll(read(BytesReference.bytes(builder)));
+			return normalized;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to encode measurement", e);
+		}
+	}
+
+	/**
+	 * Copy a measurement for a caller which may modify it. The maps and lists of
+	 * the values are copied, the other decoded values being immutable.
+	 */
+	public static IMeasurement copy(IMeasurement measurement) {
+		DefaultMeasurement copy = new DefaultMeasurement();
+		for (Map.Entry<String, Object> entry : measurement.getValues().entrySet()) {
+			copy.getValues().put(entry.getKey(), copyValue(entry.getValue()));
+		}
+		return copy;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object copyValue(Object value) {
+		if (value instanceof Map) {
+			Map<Object, Object> copy = new LinkedHashMap<>();
+			for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+				copy.put(entry.getKey(), copyValue(entry.getValue()));
+			}
+			return copy;
+		}
+		if (value instanceof List) {
+			List<Object> copy = new ArrayList<>();
+			for (Object item : (List<Object>) value) {
+				copy.add(copyValue(item));
+			}
+			return copy;
+		}
+		return value;
+	}
+
+	Map<String, Object> read(BytesReference source) {
+		try (InputStream input = source.streamInput()) {
+			return reader.readValue(input);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to decode measurement", e);
+		}
+	}
+
+	/**
+	 * Measurement keeping the source bytes of its hit until its values are accessed.
+	 */
+	static class LazyMeasurement extends DefaultMeasurement {
+		private transient MeasurementHitDecoder decoder;
+
+		private transient BytesReference source;
+
+		LazyMeasurement(MeasurementHitDecoder decoder, BytesReference source) {
+			this.decoder = decoder;
+			this.source = source;
+		}
+
+		@Override
+		public synchronized Map<String, Object> getValues() {
+			if (source != null) {
+				Map<String, Object> values = decoder.read(source);
+				source = null;
+				decoder = null;
+				super.getValues().putAll(values);
+			}
+			return super.getValues();
+		}
+
+		@Override
+		public void addValue(String key, Object value) {
+			getValues().put(key, value);
+		}
+	}
+
+}
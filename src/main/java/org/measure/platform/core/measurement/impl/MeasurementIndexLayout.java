@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Layout of the measurement indices.
+ * <ul>
+ * <li>instance : one index by measure instance, named after the instance.</li>
+ * <li>measure : one index shared by all the instances of a measure. Each
+ * instance is stored with its name in a keyword field, routed by its name, and
+ * read through a filtered alias named after the instance, so that the searches
+ * on a measure instance index are unchanged.</li>
+ * </ul>
+ * With the monthly partitioning, the measurements are written in one index by
+ * month, named [base index].p-yyyy.MM, and read through the instance alias.
+ * Instances created before the measure layout or the partitioning was enabled
+ * keep their own index. The target of an instance is read from its alias, it
+ * can't be resolved while the cluster is unavailable.
+ */
+@Component
+public class MeasurementIndexLayout {
+	public static final String INSTANCE_LAYOUT = "instance";
+
+	public static final String MEASURE_LAYOUT = "measure";
+
+	public static final String MONTHLY_PARTITIONING = "monthly";
+
+	@Value("${measureplatform.elasticsearch.index-layout:instance}")
+	private String layout;
+
+	@Value("${measureplatform.elasticsearch.partitioning:none}")
+	private String partitioning;
+
+	@Inject
+	private ElasticConnection connection;
+
+	private final Map<String, IndexTarget> targets = new ConcurrentHashMap<>();
+
+	public boolean isShared() {
+		return MEASURE_LAYOUT.equals(layout);
+	}
+
+	public boolean isPartitioned() {
+		return MONTHLY_PARTITIONING.equals(partitioning);
+	}
+
+	/**
+	 * @return the index where the measurements of an instance are written
+	 * @throws ElasticsearchException if the target can't be resolved, the cluster being unavailable
+	 */
+	public IndexTarget getWriteTarget(String measureInstance) {
+		IndexTarget target = targets.get(measureInstance);
+		if (target != null) {
+			return target;
+		}
+		return targets.computeIfAbsent(measureInstance, this::resolve);
+	}
+
+	public void invalidate(String measureInstance) {
+		targets.remove(measureInstance);
+	}
+
+	private IndexTarget resolve(String measureInstance) {
+		String alias = IndexFormat.getMeasureInstanceIndex(measureInstance);
+		GetAliasesResponse response = connection.execute((client, options) -> client.indices().getAlias(new GetAliasesRequest(alias), options));
+		for (Map.Entry<String, Set<AliasMetaData>> aliases : response.getAliases().entrySet()) {
+			if (!aliases.getValue().isEmpty()) {
+				String index = aliases.getKey();
+				boolean partitioned = IndexFormat.isPartitionIndex(index);
+				String base = partitioned ? IndexFormat.getPartitionBase(index) : index;
+				return new IndexTarget(base, aliases.getValue().iterator().next().filteringRequired() ? measureInstance : null, partitioned);
+			}
+		}
+		return new IndexTarget(alias, null, false);
+	}
+
+	/**
+	 * Concrete index and routing of the measurements of an instance.
+	 */
+	public static class IndexTarget {
+		private final String index;
+
+		private final String routing;
+
+		private final boolean partitioned;
+
+		IndexTarget(String index, String routing, boolean partitioned) {
+			this.index = index;
+			this.routing = routing;
+			this.partitioned = partitioned;
+		}
+
+		/**
+		 * @return the concrete index, or the base name of the partitions
+		 */
+		public String getIndex() {
+			return index;
+		}
+
+		public boolean isPartitioned() {
+			return partitioned;
+		}
+
+		/**
+		 * @return the index where a measurement posted at the given time is written
+		 */
+		public String getWriteIndex(long postDate) {
+			return partitioned ? IndexFormat.getPartitionIndex(index, postDate) : index;
+		}
+
+		/**
+		 * @return the routing of the instance, null if the instance has its own index
+		 */
+		public String getRouting() {
+			return routing;
+		}
+
+		public boolean isShared() {
+			return routing != null;
+		}
+
+		/**
+		 * @return the request writing a measurement of the instance in this target,
+		 *         identified by its measurement id, generated if the values have none
+		 */
+		public IndexRequest newIndexRequest(String measureInstance, Map<String, Object> values) {
+			long postDate = IndexFormat.getPostDate(values);
+			String writeIndex = getWriteIndex(postDate != Long.MIN_VALUE ? postDate : System.currentTimeMillis());
+			Map<String, Object> source = new HashMap<>(values);
+			if (source.get(IndexFormat.ID_FIELD) == null) {
+				source.put(IndexFormat.ID_FIELD, UUID.randomUUID().toString());
+			}
+			IndexRequest request = new IndexRequest(writeIndex, "_doc", String.valueOf(source.get(IndexFormat.ID_FIELD)));
+			if (!isShared()) {
+				return request.source(source);
+			}
+			source.put(IndexFormat.INSTANCE_FIELD, measureInstance);
+			return request.source(source).routing(routing);
+		}
+	}
+
+}
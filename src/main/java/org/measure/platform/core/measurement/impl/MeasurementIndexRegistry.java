@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Local registry of the measurement indices and aliases known to exist, so
+ * that saving a measure instance doesn't check its index on the cluster each
+ * time. The registry is loaded with one request on first use, and updated by
+ * the index manager when it creates or deletes an index.
+ */
+@Component
+public class MeasurementIndexRegistry {
+	private final Logger log = LoggerFactory.getLogger(MeasurementIndexRegistry.class);
+
+	@Inject
+	private ElasticConnection connection;
+
+	private final Set<String> indices = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean loaded;
+
+	/**
+	 * @return true if the index or alias is known to exist. False if it doesn't
+	 *         or if the cluster is unavailable.
+	 */
+	public boolean isKnown(String index) {
+		load();
+		return indices.contains(index);
+	}
+
+	public void register(String index) {
+		indices.add(index);
+	}
+
+	public void forget(String index) {
+		indices.remove(index);
+	}
+
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		synchronized (this) {
+			if (loaded) {
+				return;
+			}
+			try {
+				GetIndexRequest request = new GetIndexRequest().indices(IndexFormat.PREFIX_INDEX + "*").indicesOptions(IndicesOptions.lenientExpandOpen());
+				GetIndexResponse response = connection.execute((client, options) -> client.indices().get(request, options));
+				for (String index : response.getIndices()) {
+					indices.add(index);
+				}
+				ImmutableOpenMap<String, List<AliasMetaData>> aliases = response.getAliases();
+				for (String index : response.getIndices()) {
+					List<AliasMetaData> metaData = aliases.get(index);
+					if (metaData != null) {
+						for (AliasMetaData alias : metaData) {
+							indices.add(alias.alias());
+						}
+					}
+				}
+				loaded = true;
+				log.info("{} measurement indices and aliases registered", indices.size());
+			} catch (ElasticsearchException e) {
+				log.warn("Unable to load the measurement indices, loading postponed", e);
+			}
+		}
+	}
+
+}
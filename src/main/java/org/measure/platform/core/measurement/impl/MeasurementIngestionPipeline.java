@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Bounded pipeline batching the measurements written to Elasticsearch into bulk
+ * requests. A batch is sent when it reaches a number of measurements, a size or
+ * a flush interval. When all the allowed concurrent bulk requests are in flight,
+ * the writers are blocked until one of them completes, which applies back-pressure
+ * to the measure executions. Items rejected by a busy cluster are retried with an
+ * exponential backoff. Batches which can't be sent at all are kept in the
+ * {@link MeasurementSpool} until the cluster is back.
+ */
+@Component
+public class MeasurementIngestionPipeline implements BulkProcessor.Listener {
+	private final Logger log = LoggerFactory.getLogger(MeasurementIngestionPipeline.class);
+
+	@Value("${measureplatform.elasticsearch.bulk.actions:1000}")
+	private int bulkActions;
+
+	@Value("${measureplatform.elasticsearch.bulk.size-mb:5}")
+	private int bulkSizeMb;
+
+	@Value("${measureplatform.elasticsearch.bulk.flush-interval:1000}")
+	private long flushInterval;
+
+	@Value("${measureplatform.elasticsearch.bulk.concurrent-requests:2}")
+	private int concurrentRequests;
+
+	@Value("${measureplatform.elasticsearch.bulk.retries:5}")
+	private int retries;
+
+	@Value("${measureplatform.elasticsearch.bulk.flush-timeout:30000}")
+	private long flushTimeout;
+
+	@Inject
+	private ElasticConnection connection;
+
+	@Inject
+	private MeasurementSpool spool;
+
+	@Inject
+	private MetricRegistry metricRegistry;
+
+	private BulkProcessor bulkProcessor;
+
+	private final AtomicLong pending = new AtomicLong();
+
+	private final AtomicLong lastStarted = new AtomicLong(-1);
+
+	private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+
+	private final Map<Long, Timer.Context> latencies = new ConcurrentHashMap<>();
+
+	private Histogram batchSize;
+
+	private Timer latency;
+
+	private Meter failures;
+
+	@PostConstruct
+	public void initIt() {
+		this.batchSize = metricRegistry.histogram(MetricRegistry.name(MeasurementIngestionPipeline.class, "batch-size"));
+		this.latency = metricRegistry.timer(MetricRegistry.name(MeasurementIngestionPipeline.class, "latency"));
+		this.failures = metricRegistry.meter(MetricRegistry.name(MeasurementIngestionPipeline.class, "failures"));
+		metricRegistry.register(MetricRegistry.name(MeasurementIngestionPipeline.class, "queue-depth"), (Gauge<Long>) pending::get);
+
+		this.bulkProcessor = BulkProcessor.builder((request, listener) -> connection.getClient().bulkAsync(request, RequestOptions.DEFAULT, listener), this)
+				.setBulkActions(bulkActions)
+				.setBulkSize(new ByteSizeValue(bulkSizeMb, ByteSizeUnit.MB))
+				.setFlushInterval(TimeValue.timeValueMillis(flushInterval))
+				.setConcurrentRequests(concurrentRequests)
+				.setBackoffPolicy(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(100), retries))
+				.build();
+	}
+
+	@PreDestroy
+	public void cleanUp() throws InterruptedException {
+		this.bulkProcessor.awaitClose(flushTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Add a write request to the pipeline. Blocks while the pipeline is full.
+	 * While Elasticsearch is unavailable, the request is kept in the spool.
+	 */
+	public void add(IndexRequest request) {
+		if (spool.isActive()) {
+			spool.append(Collections.singletonList(request));
+			return;
+		}
+		pending.incrementAndGet();
+		bulkProcessor.add(request);
+	}
+
+	/**
+	 * Send the buffered requests and wait until all the requests added before this call are acknowledged.
+	 */
+	public void flush() {
+		bulkProcessor.flush();
+		long target = lastStarted.get();
+		long deadline = System.currentTimeMillis() + flushTimeout;
+		synchronized (inFlight) {
+			while (!inFlight.isEmpty() && inFlight.first() <= target) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					log.warn("Timeout while waiting for the pending measurements to be stored");
+					return;
+				}
+				try {
+					inFlight.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	public long getPendingCount() {
+		return pending.get();
+	}
+
+	@Override
+	public void beforeBulk(long executionId, BulkRequest request) {
+		inFlight.add(executionId);
+		lastStarted.accumulateAndGet(executionId, Math::max);
+		latencies.put(executionId, latency.time());
+		batchSize.update(request.numberOfActions());
+	}
+
+	@Override
+	public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+		if (response.hasFailures()) {
+			int failed = 0;
+			for (BulkItemResponse item : response.getItems()) {
+				if (item.isFailed()) {
+					failed++;
+				}
+			}
+			failures.mark(failed);
+			log.error("{} measurements rejected by Elasticsearch : {}", failed, response.buildFailureMessage());
+		}
+		completed(executionId, request);
+	}
+
+	@Override
+	public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+		failures.mark(request.numberOfActions());
+		log.warn("Unable to store " + request.numberOfActions() + " measurements, they are kept in the spool : " + failure.getMessage());
+		List<IndexRequest> requests = new ArrayList<>();
+		for (DocWriteRequest<?> item : request.requests()) {
+			if (item instanceof IndexRequest) {
+				requests.add((IndexRequest) item);
+			}
+		}
+		spool.append(requests);
+		completed(executionId, request);
+	}
+
+	private void completed(long executionId, BulkRequest request) {
+		Timer.Context context = latencies.remove(executionId);
+		if (context != null) {
+			context.stop();
+		}
+		pending.addAndGet(-request.numberOfActions());
+		synchronized (inFlight) {
+			inFlight.remove(executionId);
+			inFlight.notifyAll();
+		}
+	}
+
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.measure.platform.core.data.api.IMeasureInstanceService;
+import org.measure.platform.core.data.entity.MeasureInstance;
+import org.measure.platform.core.measurement.impl.MeasurementIndexLayout.IndexTarget;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Management of the monthly partitions of the measurement indices. The
+ * partitions are created with the aliases of the previous partition of the
+ * same base index, the mapping being applied by the index template of the
+ * base index. A daily job creates the partitions of the next month ahead of
+ * time and enforces the retention of the measure instances by dropping whole
+ * partitions, never by deleting measurements.
+ */
+@Component
+public class MeasurementPartitions {
+	private final Logger log = LoggerFactory.getLogger(MeasurementPartitions.class);
+
+	@Value("${measureplatform.elasticsearch.retention-days:0}")
+	private int defaultRetentionDays;
+
+	@Inject
+	private ElasticConnection connection;
+
+	@Inject
+	private MeasurementIndexLayout indexLayout;
+
+	@Inject
+	private IMeasureInstanceService measureInstanceService;
+
+	private final Set<String> knownPartitions = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @return the concrete base index if it exists and the partitions of a base index, oldest first
+	 */
+	public List<String> getIndices(String baseIndex) {
+		GetIndexRequest request = new GetIndexRequest().indices(baseIndex, baseIndex + IndexFormat.PARTITION_SEPARATOR + "*").indicesOptions(IndicesOptions.lenientExpandOpen());
+		String[] indices = connection.execute((client, options) -> client.indices().get(request, options)).getIndices();
+		List<String> result = new ArrayList<>(Arrays.asList(indices));
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Create the partition of a base index if it doesn't exist yet, with the aliases of the other partitions.
+	 * @param aliases additional aliases of the partition
+	 */
+	public void ensurePartition(String baseIndex, String partition, Alias... aliases) {
+		if (knownPartitions.contains(partition)) {
+			return;
+		}
+		if (!connection.execute((client, options) -> client.indices().exists(new GetIndexRequest().indices(partition), options))) {
+			CreateIndexRequest request = new CreateIndexRequest(partition);
+			for (Alias alias : getPartitionAliases(baseIndex)) {
+				request.alias(alias);
+			}
+			for (Alias alias : aliases) {
+				request.alias(alias);
+			}
+			try {
+				connection.execute((client, options) -> client.indices().create(request, options));
+				log.info("Measurement partition {} created", partition);
+			} catch (ElasticsearchException e) {
+				if (!ElasticConnection.isAlreadyExisting(e)) {
+					throw e;
+				}
+				// Created concurrently
+			}
+		}
+		knownPartitions.add(partition);
+	}
+
+	/**
+	 * Create the partitions of the next month and drop the partitions beyond the retention of their instances.
+	 */
+	@Scheduled(cron = "${measureplatform.elasticsearch.partition-maintenance-cron:0 0 1 * * *}")
+	public void maintainPartitions() {
+		if (!indexLayout.isPartitioned()) {
+			return;
+		}
+
+		// Retention of each partitioned base index : the longest retention of its instances
+		Map<String, Integer> retentions = new HashMap<>();
+		for (MeasureInstance instance : measureInstanceService.findAll()) {
+			IndexTarget target = indexLayout.getWriteTarget(instance.getInstanceName());
+			if (target.isPartitioned()) {
+				Integer retention = getRetentionDays(instance);
+				retentions.merge(target.getIndex(), retention, (a, b) -> a == 0 || b == 0 ? 0 : Math.max(a, b));
+			}
+		}
+
+		YearMonth current = YearMonth.now(ZoneOffset.UTC);
+		for (Map.Entry<String, Integer> retention : retentions.entrySet()) {
+			String baseIndex = retention.getKey();
+			try {
+				ensurePartition(baseIndex, IndexFormat.getPartitionIndex(baseIndex, current));
+				ensurePartition(baseIndex, IndexFormat.getPartitionIndex(baseIndex, current.plusMonths(1)));
+				if (retention.getValue() > 0) {
+					dropExpiredPartitions(baseIndex, retention.getValue(), current);
+				}
+			} catch (Exception e) {
+				log.error("Unable to maintain the partitions of " + baseIndex, e);
+			}
+		}
+	}
+
+	private void dropExpiredPartitions(String baseIndex, int retentionDays, YearMonth current) {
+		Instant limit = Instant.now().minus(retentionDays, ChronoUnit.DAYS);
+		List<String> expired = new ArrayList<>();
+		for (String index : getIndices(baseIndex)) {
+			if (!IndexFormat.isPartitionIndex(index)) {
+				continue;
+			}
+			YearMonth month = IndexFormat.getPartitionMonth(index);
+			Instant end = month.plusMonths(1).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+			if (month.isBefore(current) && end.isBefore(limit)) {
+				expired.add(index);
+			}
+		}
+		if (!expired.isEmpty()) {
+			dropPartitions(expired);
+			log.info("Measurement partitions {} dropped, retention of {} days", expired, retentionDays);
+		}
+	}
+
+	/**
+	 * Delete partitions of base indices.
+	 */
+	public void dropPartitions(List<String> partitions) {
+		DeleteIndexRequest request = new DeleteIndexRequest(partitions.toArray(new String[partitions.size()]));
+		connection.execute((client, options) -> client.indices().delete(request, options));
+		knownPartitions.removeAll(partitions);
+	}
+
+	private Integer getRetentionDays(MeasureInstance instance) {
+		if (instance.getRetentionDays() != null) {
+			return instance.getRetentionDays();
+		}
+		if (instance.getProject() != null && instance.getProject().getRetentionDays() != null) {
+			return instance.getProject().getRetentionDays();
+		}
+		return defaultRetentionDays;
+	}
+
+	private List<Alias> getPartitionAliases(String baseIndex) {
+		List<String> indices = getIndices(baseIndex);
+		List<Alias> aliases = new ArrayList<>();
+		if (indices.isEmpty()) {
+			return aliases;
+		}
+		String latest = indices.get(indices.size() - 1);
+		GetAliasesResponse response = connection.execute((client, options) -> client.indices().getAlias(new GetAliasesRequest().indices(latest), options));
+		Set<AliasMetaData> metaData = response.getAliases().get(latest);
+		if (metaData != null) {
+			for (AliasMetaData alias : metaData) {
+				Alias copy = new Alias(alias.alias());
+				if (alias.filteringRequired()) {
+					copy.filter(alias.filter().string());
+				}
+				if (alias.indexRouting() != null) {
+					copy.indexRouting(alias.indexRouting());
+				}
+				if (alias.searchRouting() != null) {
+					copy.searchRouting(alias.searchRouting());
+				}
+				aliases.add(copy);
+			}
+		}
+		return aliases;
+	}
+
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.measure.smm.measure.api.IMeasurement;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Coalescing of the identical measurement lookups of the derived measures
+ * executed together. A lookup in flight is shared by the identical lookups
+ * issued meanwhile, and its result is reused for a short time to live after
+ * it completed, until a new measurement of the instance is stored.
+ */
+@Component
+public class MeasurementQueryCoalescer {
+
+	@Value("${measureplatform.elasticsearch.query-coalescing.ttl:2000}")
+	private long ttl;
+
+	@Inject
+	private MetricRegistry metricRegistry;
+
+	/**
+	 * Lookups by measure instance, then by number of measurements and filter.
+	 */
+	private final Map<String, Map<String, Lookup>> lookups = new ConcurrentHashMap<>();
+
+	private Meter coalesced;
+
+	@PostConstruct
+	public void initIt() {
+		this.coalesced = metricRegistry.meter(MetricRegistry.name(MeasurementQueryCoalescer.class, "coalesced"));
+	}
+
+	/**
+	 * @param loader executes the lookup if no identical lookup is in flight or recent
+	 */
+	public List<IMeasurement> get(String measureInstance, Integer numberRef, String filter, Supplier<List<IMeasurement>> loader) {
+		if (ttl <= 0) {
+			return loader.get();
+		}
+		Map<String, Lookup> instanceLookups = lookups.computeIfAbsent(measureInstance, name -> new ConcurrentHashMap<>());
+		String key = numberRef + "|" + (filter != null ? filter : "");
+		long now = System.currentTimeMillis();
+
+		Lookup lookup = instanceLookups.get(key);
+		if (lookup != null && !lookup.isExpired(now)) {
+			coalesced.mark();
+		} else {
+			Lookup created = new Lookup();
+			lookup = instanceLookups.merge(key, created, (current, candidate) -> current.isExpired(now) ? candidate : current);
+			if (lookup == created) {
+				try {
+					List<IMeasurement> measurements = loader.get();
+					created.expires = System.currentTimeMillis() + ttl;
+					created.result.complete(measurements);
+				} catch (Throwable e) {
+					// Not shared : the waiters fail with this lookup, the next lookup retries
+					instanceLookups.remove(key, created);
+					created.result.completeExceptionally(e);
+					throw e;
+				}
+			} else {
+				coalesced.mark();
+			}
+		}
+		try {
+			// Each caller gets its own measurements, the derived measures may modify their inputs
+			List<IMeasurement> result = new ArrayList<>();
+			for (IMeasurement measurement : lookup.result.get()) {
+				result.add(MeasurementHitDecoder.copy(measurement));
+			}
+			return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the measurements of " + measureInstance, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Forget the lookups of an instance receiving a new measurement. The lookups
+	 * in flight complete for their current waiters.
+	 */
+	public void invalidate(String measureInstance) {
+		lookups.remove(measureInstance);
+	}
+
+	private static class Lookup {
+		private final CompletableFuture<List<IMeasurement>> result = new CompletableFuture<>();
+
+		/**
+		 * The end of the time to live of the result, counted from the completion of the lookup.
+		 */
+		private volatile long expires = Long.MAX_VALUE;
+
+		boolean isExpired(long now) {
+			return now >= expires;
+		}
+	}
+
+}
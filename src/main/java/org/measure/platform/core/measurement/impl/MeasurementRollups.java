@@ -0,0 +1,466 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
+import org.elasticsearch.search.aggregations.metrics.min.Min;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.measure.platform.core.catalogue.api.IMeasureCatalogueService;
+import org.measure.platform.core.data.api.IMeasureInstanceService;
+import org.measure.platform.core.data.entity.MeasureInstance;
+import org.measure.platform.restapi.measure.dto.MeasurementAggregationQuery;
+import org.measure.smm.measure.model.MeasureUnitField;
+import org.measure.smm.measure.model.SMMMeasure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Downsampling of the measurements in hourly and daily rollup indices. The
+ * measurements older than the rollup age are summarized by a scheduled job in
+ * one document by hour and by day holding the count, min, max, avg and sum of
+ * each numeric field of the measure. The instances share the index of a tier,
+ * their documents being routed by instance. Each tier has a watermark by
+ * instance, the end of the last summarized period, up to which it can replace
+ * the raw measurements, and must replace them once they are purged.
+ */
+@Component
+public class MeasurementRollups {
+	private final Logger log = LoggerFactory.getLogger(MeasurementRollups.class);
+
+	private static final Set<String> NUMERIC_TYPES = new HashSet<>(Arrays.asList("long", "integer", "short", "byte", "double", "float", "half_float", "scaled_float"));
+
+	private static final long CHUNK = TimeUnit.DAYS.toMillis(31);
+
+	/**
+	 * Rollup tiers, coarsest first.
+	 */
+	public enum RollupTier {
+		DAILY("daily", "1d", TimeUnit.DAYS.toMillis(1)), HOURLY("hourly", "1h", TimeUnit.HOURS.toMillis(1));
+
+		private final String suffix;
+
+		private final String interval;
+
+		private final long millis;
+
+		RollupTier(String suffix, String interval, long millis) {
+			this.suffix = suffix;
+			this.interval = interval;
+			this.millis = millis;
+		}
+
+		public String getInterval() {
+			return interval;
+		}
+
+		public String getIndex() {
+			return IndexFormat.getRollupIndex(suffix);
+		}
+
+		long truncate(long time) {
+			return time - Math.floorMod(time, millis);
+		}
+
+		/**
+		 * @return true if the buckets of an interval are made of whole buckets of the tier
+		 */
+		boolean divides(String requested) {
+			long requestedMillis = intervalMillis(requested);
+			return requestedMillis == Long.MAX_VALUE || (requestedMillis > 0 && requestedMillis % millis == 0);
+		}
+	}
+
+	@Value("${measureplatform.elasticsearch.rollup.enabled:false}")
+	private boolean enabled;
+
+	@Value("${measureplatform.elasticsearch.rollup.age-days:30}")
+	private int ageDays;
+
+	@Value("${measureplatform.elasticsearch.rollup.purge-raw:false}")
+	private boolean purgeRaw;
+
+	@Value("${measureplatform.elasticsearch.shared.shards:3}")
+	private int sharedShards;
+
+	@Inject
+	private ElasticConnection connection;
+
+	@Inject
+	private IMeasureInstanceService measureInstanceService;
+
+	@Inject
+	private IMeasureCatalogueService measureCatalogue;
+
+	@Inject
+	private MeasurementIndexLayout indexLayout;
+
+	@Inject
+	private MeasurementPartitions partitions;
+
+	/**
+	 * Watermarks by tier and instance.
+	 */
+	private final Map<String, Long> watermarks = new ConcurrentHashMap<>();
+
+	private final Set<String> knownIndices = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Select the coarsest tier able to answer an aggregation query : the query
+	 * range must end before the watermark of the tier and its interval be made
+	 * of whole tier buckets.
+	 * @return the tier, null if the query must be answered from the raw measurements
+	 */
+	public RollupTier selectTier(MeasurementAggregationQuery query) {
+		// The filters of a query apply to the fields of the measurements, missing in the rollup documents
+		boolean filtered = query.getQuery() != null && !query.getQuery().isEmpty();
+		if (!enabled || filtered || query.getTo() == null || query.getFunctions().contains(MeasurementAggregationQuery.PERCENTILES)) {
+			return null;
+		}
+		for (RollupTier tier : RollupTier.values()) {
+			if (tier.divides(query.getInterval()) && query.getTo().getTime() <= getWatermark(query.getMeasureInstance(), tier)) {
+				return tier;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Select the tier answering the part of an aggregation query older than the
+	 * purge watermark, the raw measurements being purged once rolled up. The
+	 * coarsest tier made of whole buckets of the interval is selected, or the
+	 * hourly tier, the finest summary left. Filters and percentiles can't be
+	 * answered from the rollups : they only apply to the raw measurements left.
+	 * @return the tier, null if the whole query is answered from the raw measurements
+	 */
+	public RollupTier selectPurgedTier(MeasurementAggregationQuery query) {
+		boolean filtered = query.getQuery() != null && !query.getQuery().isEmpty();
+		if (filtered || query.getFunctions().contains(MeasurementAggregationQuery.PERCENTILES)) {
+			return null;
+		}
+		long watermark = getPurgeWatermark(query.getMeasureInstance());
+		if (watermark == Long.MIN_VALUE || query.getFrom() != null && query.getFrom().getTime() >= watermark) {
+			return null;
+		}
+		for (RollupTier tier : RollupTier.values()) {
+			if (tier.divides(query.getInterval())) {
+				return tier;
+			}
+		}
+		return RollupTier.HOURLY;
+	}
+
+	/**
+	 * Select the coarsest tier matching a resolution requested when reading
+	 * measurements. Without resolution, the hourly tier replaces the purged raw
+	 * measurements.
+	 * @return the tier, null if the raw measurements must be read
+	 */
+	public RollupTier selectTier(String measureInstance, String resolution) {
+		if (!enabled) {
+			return null;
+		}
+		if (resolution == null || resolution.isEmpty()) {
+			return getPurgeWatermark(measureInstance) != Long.MIN_VALUE ? RollupTier.HOURLY : null;
+		}
+		for (RollupTier tier : RollupTier.values()) {
+			if (tier.divides(resolution) && getWatermark(measureInstance, tier) != Long.MIN_VALUE) {
+				return tier;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the end of the last period summarized in a tier, Long.MIN_VALUE if the tier is empty
+	 */
+	public long getWatermark(String measureInstance, RollupTier tier) {
+		String key = getWatermarkKey(measureInstance, tier);
+		Long watermark = watermarks.get(key);
+		if (watermark == null) {
+			watermark = readWatermark(measureInstance, tier);
+			watermarks.put(key, watermark);
+		}
+		return watermark;
+	}
+
+	/**
+	 * @return the time before which the raw measurements of an instance may be
+	 *         purged, all the tiers summarizing them, Long.MIN_VALUE if they are kept
+	 */
+	public long getPurgeWatermark(String measureInstance) {
+		if (!enabled || !purgeRaw) {
+			return Long.MIN_VALUE;
+		}
+		long watermark = Long.MAX_VALUE;
+		for (RollupTier tier : RollupTier.values()) {
+			watermark = Math.min(watermark, getWatermark(measureInstance, tier));
+		}
+		return watermark;
+	}
+
+	/**
+	 * @return the filter selecting the rollup documents of an instance in the index of a tier
+	 */
+	public static QueryBuilder getInstanceFilter(String measureInstance) {
+		return QueryBuilders.termQuery(IndexFormat.INSTANCE_FIELD, measureInstance);
+	}
+
+	public void invalidate(String measureInstance) {
+		for (RollupTier tier : RollupTier.values()) {
+			watermarks.remove(getWatermarkKey(measureInstance, tier));
+		}
+	}
+
+	private static String getWatermarkKey(String measureInstance, RollupTier tier) {
+		return tier.suffix + "|" + measureInstance;
+	}
+
+	@Scheduled(cron = "${measureplatform.elasticsearch.rollup.cron:0 15 * * * *}")
+	public void rollup() {
+		if (!enabled) {
+			return;
+		}
+		long limit = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(ageDays);
+		for (MeasureInstance instance : measureInstanceService.findAll()) {
+			if (instance.isIsRemote() != null && instance.isIsRemote()) {
+				continue;
+			}
+			try {
+				List<String> fields = getNumericFields(instance);
+				if (fields.isEmpty()) {
+					continue;
+				}
+				for (RollupTier tier : RollupTier.values()) {
+					rollup(instance.getInstanceName(), tier, fields, tier.truncate(limit));
+				}
+				if (purgeRaw) {
+					purgeRawPartitions(instance.getInstanceName());
+				}
+			} catch (Exception e) {
+				log.error("Unable to roll up the measurements of " + instance.getInstanceName(), e);
+			}
+		}
+	}
+
+	private void rollup(String measureInstance, RollupTier tier, List<String> fields, long end) {
+		String rawIndex = IndexFormat.getMeasureInstanceIndex(measureInstance);
+		String rollupIndex = tier.getIndex();
+
+		long start = getWatermark(measureInstance, tier);
+		if (start == Long.MIN_VALUE) {
+			SearchRequest firstRequest = new SearchRequest(rawIndex).source(new SearchSourceBuilder().size(0).aggregation(AggregationBuilders.min("first").field(IndexFormat.DATE_FIELD)));
+			SearchResponse first = connection.execute((client, options) -> client.search(firstRequest, options));
+			double firstDate = ((Min) first.getAggregations().get("first")).getValue();
+			if (Double.isInfinite(firstDate)) {
+				return;
+			}
+			start = tier.truncate((long) firstDate);
+		}
+
+		while (start < end) {
+			long chunkEnd = Math.min(end, start + CHUNK);
+			SearchRequest request = new SearchRequest(rawIndex).source(new SearchSourceBuilder().size(0)
+					.query(QueryBuilders.rangeQuery(IndexFormat.DATE_FIELD).gte(start).lt(chunkEnd))
+					.aggregation(MeasurementAggregations.buildRollupAggregation(tier.getInterval(), fields)));
+			SearchResponse response = connection.execute((client, options) -> client.search(request, options));
+
+			Map<Long, Map<String, Object>> documents = MeasurementAggregations.readRollupDocuments(response, tier.getInterval(), fields);
+			if (!documents.isEmpty()) {
+				ensureIndex(tier);
+				BulkRequest bulk = new BulkRequest();
+				for (Map.Entry<Long, Map<String, Object>> document : documents.entrySet()) {
+					// The id of a document is its instance and period, rolling up a period again replaces it
+					String id = measureInstance + "@" + document.getKey();
+					document.getValue().put(IndexFormat.INSTANCE_FIELD, measureInstance);
+					document.getValue().put(IndexFormat.ID_FIELD, id);
+					bulk.add(new IndexRequest(rollupIndex, "_doc", id).routing(measureInstance).source(document.getValue()));
+				}
+				BulkResponse bulkResponse = connection.execute((client, options) -> client.bulk(bulk, options));
+				if (bulkResponse.hasFailures()) {
+					throw new IllegalStateException(bulkResponse.buildFailureMessage());
+				}
+			}
+			watermarks.put(getWatermarkKey(measureInstance, tier), chunkEnd);
+			start = chunkEnd;
+		}
+	}
+
+	/**
+	 * Drop the raw partitions of an instance fully summarized in all the tiers.
+	 * Only the partitions of an instance with its own indices are dropped.
+	 */
+	private void purgeRawPartitions(String measureInstance) {
+		MeasurementIndexLayout.IndexTarget target = indexLayout.getWriteTarget(measureInstance);
+		if (!target.isPartitioned() || target.isShared()) {
+			return;
+		}
+		long watermark = getPurgeWatermark(measureInstance);
+		List<String> purged = new ArrayList<>();
+		for (String index : partitions.getIndices(target.getIndex())) {
+			if (IndexFormat.isPartitionIndex(index)) {
+				long end = IndexFormat.getPartitionMonth(index).plusMonths(1).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+				if (end <= watermark) {
+					purged.add(index);
+				}
+			}
+		}
+		if (!purged.isEmpty()) {
+			partitions.dropPartitions(purged);
+			log.info("Raw measurement partitions {} purged after roll up", purged);
+		}
+	}
+
+	/**
+	 * Create the index of a tier, with the instance field mapped for the routed lookups.
+	 */
+	private void ensureIndex(RollupTier tier) {
+		String index = tier.getIndex();
+		if (knownIndices.contains(index)) {
+			return;
+		}
+		CreateIndexRequest request = new CreateIndexRequest(index).settings(Settings.builder().put("index.number_of_shards", sharedShards));
+		try {
+			request.mapping("_doc", jsonBuilder().startObject().startObject("_doc").startObject("properties")
+					.startObject(IndexFormat.INSTANCE_FIELD).field("type", "keyword").endObject()
+					.startObject(IndexFormat.ID_FIELD).field("type", "keyword").endObject()
+					.startObject(IndexFormat.DATE_FIELD).field("type", "date").endObject()
+					.startObject(MeasurementAggregations.ROLLUP_INTERVAL_FIELD).field("type", "keyword").endObject()
+					.endObject().endObject().endObject());
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to build the mapping of the rollup index " + index, e);
+		}
+		try {
+			connection.execute((client, options) -> client.indices().create(request, options));
+			log.info("Rollup index {} created", index);
+		} catch (ElasticsearchException e) {
+			if (!ElasticConnection.isAlreadyExisting(e)) {
+				throw e;
+			}
+		}
+		knownIndices.add(index);
+	}
+
+	private long readWatermark(String measureInstance, RollupTier tier) {
+		try {
+			SearchRequest request = new SearchRequest(tier.getIndex()).routing(measureInstance).source(new SearchSourceBuilder().size(0).query(getInstanceFilter(measureInstance))
+					.aggregation(AggregationBuilders.max("last").field(IndexFormat.DATE_FIELD)));
+			SearchResponse response = connection.execute((client, options) -> client.search(request, options));
+			double last = ((Max) response.getAggregations().get("last")).getValue();
+			return Double.isInfinite(last) ? Long.MIN_VALUE : (long) last + tier.millis;
+		} catch (ElasticsearchException e) {
+			if (ElasticConnection.isNotFound(e)) {
+				return Long.MIN_VALUE;
+			}
+			throw e;
+		}
+	}
+
+	private List<String> getNumericFields(MeasureInstance instance) {
+		String application = instance.getApplication() != null ? instance.getApplication().getApplicationType() : null;
+		SMMMeasure measure = measureCatalogue.getMeasure(application, instance.getMeasureName());
+		List<String> fields = new ArrayList<>();
+		if (measure != null && measure.getUnit() != null) {
+			for (MeasureUnitField field : measure.getUnit().getFields()) {
+				if (NUMERIC_TYPES.contains(field.getFieldType().name().replaceFirst("u_", ""))) {
+					fields.add(field.getFieldName());
+				}
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * @return the length of a date histogram interval in milliseconds,
+	 *         Long.MAX_VALUE for the calendar intervals of a month or more, 0 if unknown
+	 */
+	static long intervalMillis(String interval) {
+		switch (interval) {
+		case "minute":
+			return TimeUnit.MINUTES.toMillis(1);
+		case "hour":
+			return TimeUnit.HOURS.toMillis(1);
+		case "day":
+			return TimeUnit.DAYS.toMillis(1);
+		case "week":
+			return TimeUnit.DAYS.toMillis(7);
+		case "month":
+		case "quarter":
+		case "year":
+			return Long.MAX_VALUE;
+		default:
+			break;
+		}
+		int split = 0;
+		while (split < interval.length() && Character.isDigit(interval.charAt(split))) {
+			split++;
+		}
+		if (split == 0) {
+			return 0;
+		}
+		long value = Long.parseLong(interval.substring(0, split));
+		switch (interval.substring(split)) {
+		case "ms":
+			return value;
+		case "s":
+			return TimeUnit.SECONDS.toMillis(value);
+		case "m":
+			return TimeUnit.MINUTES.toMillis(value);
+		case "h":
+			return TimeUnit.HOURS.toMillis(value);
+		case "d":
+			return TimeUnit.DAYS.toMillis(value);
+		case "w":
+			return TimeUnit.DAYS.toMillis(7 * value);
+		case "M":
+		case "q":
+		case "y":
+			return Long.MAX_VALUE;
+		default:
+			return 0;
+		}
+	}
+
+}
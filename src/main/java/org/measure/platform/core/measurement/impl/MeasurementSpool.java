@@ -0,0 +1,528 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Local write-ahead spool keeping the measurements which can't be sent to
+ * Elasticsearch. The spool is made of fixed size memory-mapped segments. Each
+ * record is written as [length][crc32][payload], the length being written last
+ * so that a record torn by a crash is detected and discarded on restart. The
+ * length of a replayed record is negated, so that a restart resumes the replay
+ * after the records already sent.
+ * While the spool is not empty, new measurements are appended to it to keep
+ * their order, and the spool is replayed with bulk requests once the cluster is
+ * reachable again. Spooled documents get an id so that a replay interrupted by a
+ * crash can be started again without creating duplicates. The measurements
+ * whose index could not be resolved are spooled with their instance, their
+ * index and routing are resolved when they are replayed.
+ */
+@Component
+public class MeasurementSpool {
+	private final Logger log = LoggerFactory.getLogger(MeasurementSpool.class);
+
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	private static final String SEGMENT_SUFFIX = ".spool";
+
+	private static final int HEADER_SIZE = 8;
+
+	private static final String DEFAULT_FOLDER = ".spool";
+
+	@Value("${measureplatform.storage.measure}")
+	private String measureFolder;
+
+	@Value("${measureplatform.storage.spool:}")
+	private String spoolFolder;
+
+	@Value("${measureplatform.storage.spool.segment-size-mb:16}")
+	private int segmentSizeMb;
+
+	@Value("${measureplatform.storage.spool.max-segments:64}")
+	private int maxSegments;
+
+	@Value("${measureplatform.storage.spool.replay-batch:500}")
+	private int replayBatch;
+
+	@Inject
+	private ElasticConnection connection;
+
+	@Inject
+	private MetricRegistry metricRegistry;
+
+	@Inject
+	private MeasurementIndexLayout indexLayout;
+
+	@Inject
+	private MeasurementPartitions partitions;
+
+	private Path folder;
+
+	private final Deque<Segment> segments = new ArrayDeque<>();
+
+	private long nextSegment;
+
+	private Meter spooled;
+
+	private Meter replayed;
+
+	private Meter dropped;
+
+	@PostConstruct
+	public void initIt() throws IOException {
+		this.spooled = metricRegistry.meter(MetricRegistry.name(MeasurementSpool.class, "spooled"));
+		this.replayed = metricRegistry.meter(MetricRegistry.name(MeasurementSpool.class, "replayed"));
+		this.dropped = metricRegistry.meter(MetricRegistry.name(MeasurementSpool.class, "dropped"));
+		metricRegistry.register(MetricRegistry.name(MeasurementSpool.class, "segments"), (Gauge<Integer>) this::getSegmentCount);
+
+		if (spoolFolder == null || spoolFolder.isEmpty()) {
+			this.folder = Paths.get(measureFolder).toAbsolutePath().resolve(DEFAULT_FOLDER);
+		} else {
+			this.folder = Paths.get(spoolFolder);
+		}
+		Files.createDirectories(folder);
+		recover();
+	}
+
+	@PreDestroy
+	public synchronized void cleanUp() {
+		for (Segment segment : segments) {
+			segment.close();
+		}
+		segments.clear();
+	}
+
+	/**
+	 * @return true while some measurements wait in the spool to be sent to Elasticsearch
+	 */
+	public synchronized boolean isActive() {
+		return !segments.isEmpty();
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Append index requests to the spool. Requests which don't fit in the
+	 * allowed disk space are dropped.
+	 */
+	public synchronized void append(List<IndexRequest> requests) {
+		Segment last = null;
+		for (IndexRequest request : requests) {
+			Segment segment = append(request, null);
+			if (segment != null) {
+				last = segment;
+			}
+		}
+		if (last != null) {
+			last.buffer.force();
+		}
+	}
+
+	/**
+	 * Append a measurement whose index is not known yet, it is resolved from
+	 * the layout of its instance when the spool is replayed.
+	 */
+	public synchronized void appendUnresolved(String measureInstance, Map<String, Object> values) {
+		Map<String, Object> source = new HashMap<>(values);
+		source.put(IndexFormat.ID_FIELD, UUID.randomUUID().toString());
+		IndexRequest request = new IndexRequest(IndexFormat.getMeasureInstanceIndex(measureInstance), "_doc", (String) source.get(IndexFormat.ID_FIELD)).source(source);
+		Segment segment = append(request, measureInstance);
+		if (segment != null) {
+			segment.buffer.force();
+		}
+	}
+
+	private Segment append(IndexRequest request, String measureInstance) {
+		if (request.id() == null) {
+			request.id(UUID.randomUUID().toString());
+		}
+		try {
+			byte[] payload = encode(request, measureInstance);
+			Segment segment = writableSegment(HEADER_SIZE + payload.length);
+			if (segment == null) {
+				dropped.mark();
+				log.error("Measurement spool full, measurement of " + request.index() + " dropped");
+				return null;
+			}
+			segment.append(payload);
+			spooled.mark();
+			return segment;
+		} catch (IOException e) {
+			dropped.mark();
+			log.error("Unable to spool measurement of " + request.index(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Send the spooled measurements to Elasticsearch, oldest first. Stops at the
+	 * first batch which can't be stored, the replay is retried on next run.
+	 */
+	@Scheduled(fixedDelayString = "${measureplatform.storage.spool.replay-interval:5000}")
+	public void replay() {
+		while (true) {
+			Segment segment;
+			List<Record> batch;
+			synchronized (this) {
+				segment = segments.peekFirst();
+				if (segment == null) {
+					return;
+				}
+				batch = segment.read(replayBatch);
+				if (batch.isEmpty()) {
+					segments.removeFirst().delete();
+					if (segments.isEmpty()) {
+						log.info("Measurement spool replayed");
+						return;
+					}
+					continue;
+				}
+			}
+
+			BulkRequest bulk = new BulkRequest();
+			BulkResponse response;
+			try {
+				for (Record record : batch) {
+					bulk.add(resolve(record));
+				}
+				response = connection.execute((client, options) -> client.bulk(bulk, options));
+			} catch (Exception e) {
+				log.debug("Elasticsearch still unavailable, spool replay postponed", e);
+				return;
+			}
+
+			int stored = batch.size();
+			if (response.hasFailures()) {
+				for (BulkItemResponse item : response.getItems()) {
+					if (item.isFailed()) {
+						RestStatus status = item.getFailure().getStatus();
+						if (status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE) {
+							// Retry from this item on next run.
+							stored = Math.min(stored, item.getItemId());
+						} else {
+							dropped.mark();
+							log.error("Spooled measurement rejected by Elasticsearch : " + item.getFailureMessage());
+						}
+					}
+				}
+			}
+
+			synchronized (this) {
+				if (stored > 0) {
+					segment.acknowledge(batch.get(stored - 1).end);
+					replayed.mark(stored);
+				}
+			}
+			if (stored < batch.size()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the request of a spooled record, its target being resolved if it was unknown when spooled
+	 */
+	private IndexRequest resolve(Record record) {
+		if (record.measureInstance == null) {
+			return record.request;
+		}
+		MeasurementIndexLayout.IndexTarget target = indexLayout.getWriteTarget(record.measureInstance);
+		IndexRequest request = target.newIndexRequest(record.measureInstance, record.request.sourceAsMap()).id(record.request.id());
+		if (target.isPartitioned()) {
+			partitions.ensurePartition(target.getIndex(), request.index());
+		}
+		return request;
+	}
+
+	private Segment writableSegment(int size) throws IOException {
+		int segmentSize = segmentSizeMb * 1024 * 1024;
+		if (size > segmentSize) {
+			return null;
+		}
+		Segment last = segments.peekLast();
+		if (last != null && !last.isSealed() && last.remaining() >= size) {
+			return last;
+		}
+		if (last != null) {
+			last.seal();
+		}
+		if (segments.size() >= maxSegments) {
+			return null;
+		}
+		Path path = folder.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSegment++, SEGMENT_SUFFIX));
+		Segment segment = new Segment(path, segmentSize);
+		segments.addLast(segment);
+		return segment;
+	}
+
+	private void recover() throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		}
+		Collections.sort(files);
+
+		for (Path file : files) {
+			String name = file.getFileName().toString();
+			long index = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			nextSegment = Math.max(nextSegment, index + 1);
+
+			Segment segment = new Segment(file, (int) Files.size(file));
+			segment.recover();
+			if (segment.readPosition == segment.writePosition) {
+				segment.delete();
+			} else {
+				if (!segments.isEmpty()) {
+					segments.peekLast().seal();
+				}
+				segments.addLast(segment);
+			}
+		}
+		if (!segments.isEmpty()) {
+			log.info("Measurement spool found with " + segments.size() + " segments, it will be replayed");
+		}
+	}
+
+	private static byte[] encode(IndexRequest request, String measureInstance) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeUTF(request.index());
+			out.writeUTF(request.type());
+			out.writeUTF(request.id());
+			out.writeUTF(request.routing() != null ? request.routing() : "");
+			out.writeUTF(measureInstance != null ? measureInstance : "");
+			out.write(BytesReference.toBytes(request.source()));
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Record decode(byte[] payload, int end) throws IOException {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+			String index = in.readUTF();
+			String type = in.readUTF();
+			String id = in.readUTF();
+			String routing = in.readUTF();
+			String measureInstance = in.readUTF();
+			byte[] source = new byte[in.available()];
+			in.readFully(source);
+			IndexRequest request = new IndexRequest(index, type, id).source(source, XContentType.JSON);
+			if (!routing.isEmpty()) {
+				request.routing(routing);
+			}
+			return new Record(request, measureInstance.isEmpty() ? null : measureInstance, end);
+		}
+	}
+
+	private static long checksum(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		return crc.getValue();
+	}
+
+	private static class Record {
+		private final IndexRequest request;
+
+		private final String measureInstance;
+
+		private final int end;
+
+		Record(IndexRequest request, String measureInstance, int end) {
+			this.request = request;
+			this.measureInstance = measureInstance;
+			this.end = end;
+		}
+	}
+
+	private class Segment {
+		private final Path path;
+
+		private final FileChannel channel;
+
+		private final MappedByteBuffer buffer;
+
+		private int writePosition;
+
+		private int readPosition;
+
+		private boolean sealed;
+
+		Segment(Path path, int size) throws IOException {
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		int remaining() {
+			return buffer.capacity() - writePosition;
+		}
+
+		boolean isSealed() {
+			return sealed;
+		}
+
+		void seal() {
+			this.sealed = true;
+		}
+
+		void append(byte[] payload) {
+			// The length is written last: a zero length marks the end of the segment.
+			buffer.position(writePosition + HEADER_SIZE);
+			buffer.put(payload);
+			buffer.putInt(writePosition + 4, (int) checksum(payload));
+			buffer.putInt(writePosition, payload.length);
+			writePosition += HEADER_SIZE + payload.length;
+		}
+
+		/**
+		 * Look for the end of the valid records, discarding a record torn by a crash,
+		 * and skip the records replayed before the restart.
+		 */
+		void recover() {
+			int position = 0;
+			boolean replayed = true;
+			while (buffer.capacity() - position >= HEADER_SIZE) {
+				int length = buffer.getInt(position);
+				boolean acknowledged = length < 0;
+				if (acknowledged) {
+					length = -length;
+				}
+				if (length == 0 || length > buffer.capacity() - position - HEADER_SIZE) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				buffer.position(position + HEADER_SIZE);
+				buffer.get(payload);
+				if ((int) checksum(payload) != buffer.getInt(position + 4)) {
+					log.warn("Torn record found in measurement spool " + path + " at " + position + ", discarded");
+					break;
+				}
+				position += HEADER_SIZE + length;
+				replayed &= acknowledged;
+				if (replayed) {
+					this.readPosition = position;
+				}
+			}
+			for (int i = position; i < Math.min(buffer.capacity(), position + HEADER_SIZE); i++) {
+				buffer.put(i, (byte) 0);
+			}
+			this.writePosition = position;
+		}
+
+		/**
+		 * Mark the records before the given position as replayed.
+		 */
+		void acknowledge(int position) {
+			int record = readPosition;
+			while (record < position) {
+				int length = buffer.getInt(record);
+				buffer.putInt(record, -length);
+				record += HEADER_SIZE + length;
+			}
+			buffer.force();
+			this.readPosition = position;
+		}
+
+		List<Record> read(int max) {
+			List<Record> records = new ArrayList<>();
+			int position = readPosition;
+			while (records.size() < max && position < writePosition) {
+				int length = buffer.getInt(position);
+				byte[] payload = new byte[length];
+				buffer.position(position + HEADER_SIZE);
+				buffer.get(payload);
+				position += HEADER_SIZE + length;
+				try {
+					records.add(decode(payload, position));
+				} catch (IOException e) {
+					if (!records.isEmpty()) {
+						// Skipped at the beginning of the next batch.
+						break;
+					}
+					dropped.mark();
+					log.error("Unreadable record in measurement spool " + path, e);
+					acknowledge(position);
+				}
+			}
+			return records;
+		}
+
+		void close() {
+			buffer.force();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.error("Unable to close measurement spool " + path, e);
+			}
+		}
+
+		void delete() {
+			close();
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				log.error("Unable to delete measurement spool " + path, e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,298 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.measure.smm.measure.api.IMeasurement;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Sliding windows of the latest measurements of the instances referenced by
+ * derived measures. A window is loaded from Elasticsearch on first read, sized
+ * to the largest number of measurements read so far, then fed with each stored
+ * measurement of its instance, so that the derived measures are executed
+ * without reading their inputs from Elasticsearch. When full, an arbitrary
+ * window is evicted. The stored measurements are cached in the form they have
+ * when read from Elasticsearch, and the measurements returned are copies of the
+ * cached ones.
+ */
+@Component
+public class MeasurementWindowCache {
+
+	@Value("${measureplatform.elasticsearch.window-cache.size:1000}")
+	private int maxSize;
+
+	@Inject
+	private MetricRegistry metricRegistry;
+
+	@Inject
+	private MeasurementHitDecoder hitDecoder;
+
+	private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+	private Meter hits;
+
+	private Meter misses;
+
+	@PostConstruct
+	public void initIt() {
+		this.hits = metricRegistry.meter(MetricRegistry.name(MeasurementWindowCache.class, "hits"));
+		this.misses = metricRegistry.meter(MetricRegistry.name(MeasurementWindowCache.class, "misses"));
+		metricRegistry.register(MetricRegistry.name(MeasurementWindowCache.class, "size"), (Gauge<Integer>) windows::size);
+	}
+
+	/**
+	 * @param loader reads the given number of latest measurements of the instance from Elasticsearch
+	 * @return the latest measurements of the instance, latest first
+	 */
+	public List<IMeasurement> getLatest(String measureInstance, int count, IntFunction<List<IMeasurement>> loader) {
+		Window window = windows.get(measureInstance);
+		if (window != null && window.loaded && window.capacity >= count) {
+			hits.mark();
+			return window.latest(count);
+		}
+		misses.mark();
+
+		// The window is registered before loading to receive the measurements stored meanwhile
+		Window loading = new Window(Math.max(count, window != null ? window.capacity : 0));
+		windows.put(measureInstance, loading);
+		if (windows.size() > maxSize) {
+			evict(measureInstance);
+		}
+		try {
+			loading.load(loader.apply(loading.capacity));
+		} catch (RuntimeException e) {
+			windows.remove(measureInstance, loading);
+			throw e;
+		}
+		return loading.latest(count);
+	}
+
+	/**
+	 * @param filter tells whether measurement values match, null when it can't be told in memory
+	 * @return the latest matching measurements of the instance, latest first, null if they
+	 *         can't be read from its window
+	 */
+	public List<IMeasurement> findLatest(String measureInstance, int count, Function<Map<String, Object>, Boolean> filter) {
+		Window window = windows.get(measureInstance);
+		List<IMeasurement> result = window != null && window.loaded ? window.find(count, filter) : null;
+		if (result != null) {
+			hits.mark();
+		}
+		return result;
+	}
+
+	/**
+	 * Add a stored measurement to the window of its instance, if any.
+	 */
+	public void offer(String measureInstance, IMeasurement measurement) {
+		Window window = windows.get(measureInstance);
+		if (window != null) {
+			window.offer(hitDecoder.normalize(measurement));
+		}
+	}
+
+	public void invalidate(String measureInstance) {
+		windows.remove(measureInstance);
+	}
+
+	private void evict(String keep) {
+		Iterator<String> keys = windows.keySet().iterator();
+		while (windows.size() > maxSize && keys.hasNext()) {
+			if (!keys.next().equals(keep)) {
+				keys.remove();
+			}
+		}
+	}
+
+	/**
+	 * The latest measurements of an instance, latest first. The window holds its
+	 * own copies of the measurements and returns copies, so that the callers
+	 * can't alter the cached values.
+	 */
+	private static class Window {
+		private static final Comparator<IMeasurement> LATEST_FIRST = Comparator.comparingLong((IMeasurement measurement) -> IndexFormat.getPostDate(measurement.getValues())).reversed();
+
+		private final int capacity;
+
+		private final Deque<IMeasurement> measurements = new ArrayDeque<>();
+
+		private volatile boolean loaded;
+
+		Window(int capacity) {
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Merge the measurements read from Elasticsearch with the measurements
+		 * stored while they were read.
+		 */
+		synchronized void load(List<IMeasurement> stored) {
+			Map<Long, List<IMeasurement>> storedByDate = new HashMap<>();
+			List<IMeasurement> merged = new ArrayList<>(stored.size() + measurements.size());
+			for (IMeasurement measurement : stored) {
+				IMeasurement copy = MeasurementHitDecoder.copy(measurement);
+				storedByDate.computeIfAbsent(IndexFormat.getPostDate(copy.getValues()), date -> new ArrayList<>()).add(copy);
+				merged.add(copy);
+			}
+			for (IMeasurement measurement : measurements) {
+				List<IMeasurement> sameDate = storedByDate.get(IndexFormat.getPostDate(measurement.getValues()));
+				// Stored while the window was loaded, and loaded from Elasticsearch
+				if (sameDate == null || sameDate.stream().noneMatch(other -> sameValues(other, measurement))) {
+					merged.add(measurement);
+				}
+			}
+			merged.sort(LATEST_FIRST);
+
+			measurements.clear();
+			for (IMeasurement measurement : merged) {
+				if (measurements.size() == capacity) {
+					break;
+				}
+				measurements.addLast(measurement);
+			}
+			loaded = true;
+		}
+
+		/**
+		 * @param measurement a normalized measurement, owned by the window
+		 */
+		synchronized void offer(IMeasurement measurement) {
+			long postDate = IndexFormat.getPostDate(measurement.getValues());
+
+			IMeasurement latest = measurements.peekFirst();
+			if (latest == null || postDate > IndexFormat.getPostDate(latest.getValues())) {
+				// Usual case, the measurement just stored
+				measurements.addFirst(measurement);
+			} else {
+				insert(measurement, postDate);
+			}
+			while (measurements.size() > capacity) {
+				measurements.removeLast();
+			}
+		}
+
+		synchronized List<IMeasurement> latest(int count) {
+			List<IMeasurement> result = new ArrayList<>(Math.min(count, measurements.size()));
+			Iterator<IMeasurement> iterator = measurements.iterator();
+			while (iterator.hasNext() && result.size() < count) {
+				result.add(MeasurementHitDecoder.copy(iterator.next()));
+			}
+			return result;
+		}
+
+		/**
+		 * @return null if a measurement can't be evaluated, or if older measurements not held may match
+		 */
+		synchronized List<IMeasurement> find(int count, Function<Map<String, Object>, Boolean> filter) {
+			List<IMeasurement> result = new ArrayList<>();
+			for (IMeasurement measurement : measurements) {
+				Boolean matches = filter.apply(Collections.unmodifiableMap(measurement.getValues()));
+				if (matches == null) {
+					return null;
+				} else if (matches) {
+					result.add(MeasurementHitDecoder.copy(measurement));
+					if (result.size() == count) {
+						return result;
+					}
+				}
+			}
+			// Complete only if the window holds all the measurements of the instance
+			return measurements.size() < capacity ? result : null;
+		}
+
+		private void insert(IMeasurement measurement, long postDate) {
+			List<IMeasurement> sorted = new ArrayList<>(measurements);
+			int index = 0;
+			while (index < sorted.size() && IndexFormat.getPostDate(sorted.get(index).getValues()) >= postDate) {
+				if (IndexFormat.getPostDate(sorted.get(index).getValues()) == postDate && sameValues(sorted.get(index), measurement)) {
+					// Stored while the window was loaded, and loaded from Elasticsearch
+					return;
+				}
+				index++;
+			}
+			sorted.add(index, measurement);
+			measurements.clear();
+			measurements.addAll(sorted);
+		}
+
+		/**
+		 * Compare the values other than the postDate. The values read back from
+		 * Elasticsearch are the values parsed from JSON : the numbers are compared
+		 * by value whatever their type, and the dates with their string form.
+		 */
+		private static boolean sameValues(IMeasurement a, IMeasurement b) {
+			Map<String, Object> values = a.getValues();
+			Map<String, Object> others = b.getValues();
+			Set<String> fields = new HashSet<>(values.keySet());
+			fields.addAll(others.keySet());
+			fields.remove(IndexFormat.DATE_FIELD);
+			for (String field : fields) {
+				if (!sameValue(values.get(field), others.get(field))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static boolean sameValue(Object a, Object b) {
+			if (a instanceof Number && b instanceof Number) {
+				return sameNumber((Number) a, (Number) b);
+			} else if (a instanceof Date && b instanceof String) {
+				return ((Date) a).getTime() == IndexFormat.getPostDate(Collections.singletonMap(IndexFormat.DATE_FIELD, b));
+			} else if (a instanceof String && b instanceof Date) {
+				return sameValue(b, a);
+			}
+			return Objects.equals(a, b);
+		}
+
+		private static boolean sameNumber(Number a, Number b) {
+			double x = a.doubleValue();
+			double y = b.doubleValue();
+			if (Double.isNaN(x) || Double.isInfinite(x) || Double.isNaN(y) || Double.isInfinite(y)) {
+				return Double.compare(x, y) == 0;
+			}
+			return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString())) == 0;
+		}
+	}
+
+}
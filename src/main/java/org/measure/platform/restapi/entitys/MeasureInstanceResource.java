@@ -44,6 +44,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.support.CronSequenceGenerator;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -81,7 +82,7 @@ public class MeasureInstanceResource {
     /**
      * POST  /measure-instances : Create a new measureInstance.
      * @param measureInstance the measureInstance to create
-     * @return the ResponseEntity with status 201 (Created) and with body the new measureInstance, or with status 400 (Bad Request) if the measureInstance has already an ID
+     * @return the ResponseEntity with status 201 (Created) and with body the new measureInstance, or with status 400 (Bad Request) if the measureInstance has already an ID or an invalid scheduling expression
      * @throws java.net.URISyntaxException if the Location URI syntax is incorrect
      */
     @PostMapping("/measure-instances")
@@ -91,6 +92,9 @@ public class MeasureInstanceResource {
         if (measureInstance.getId() != null) {
             return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measureInstance", "idexists", "A new measureInstance cannot already have an ID")).body(null);
         }
+        if (!isValidScheduling(measureInstance)) {
+            return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measureInstance", "invalidscheduling", "Invalid scheduling expression " + measureInstance.getShedulingExpression())).body(null);
+        }
         
         // Save Measure Instance
         MeasureInstance result = measureInstanceService.save(measureInstance);
@@ -131,12 +135,27 @@ public class MeasureInstanceResource {
         if (measureInstance.getId() == null) {
             return createMeasureInstance(measureInstance);
         }
+        if (!isValidScheduling(measureInstance)) {
+            return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measureInstance", "invalidscheduling", "Invalid scheduling expression " + measureInstance.getShedulingExpression())).body(null);
+        }
         MeasureInstance result = measureInstanceService.save(measureInstance);
         return ResponseEntity.ok()
                     .headers(HeaderUtil.createEntityUpdateAlert("measureInstance", measureInstance.getId().toString()))
                     .body(result);
     }
 
+    /**
+     * Checks the scheduling expression against the scheduling unit: a cron expression for the cron unit,
+     * a number of units for the interval units. An instance without expression is not scheduled and is accepted.
+     */
+    private static boolean isValidScheduling(MeasureInstance measureInstance) {
+        String expression = measureInstance.getShedulingExpression();
+        if (ISchedulingService.CRON_SCHEDULING_UNIT.equals(measureInstance.getSchedulingUnit())) {
+            return expression != null && CronSequenceGenerator.isValidExpression(expression);
+        }
+        return expression == null || expression.isEmpty() || expression.matches("\\d+");
+    }
+
     /**
      * GET  /measure-instances : get all the measureInstances.
      * @return the ResponseEntity with status 200 (OK) and the list of measureInstances in body
@@ -27,7 +27,9 @@ import javax.validation.Valid;
 import org.measure.platform.core.data.api.IMeasureInstanceService;
 import org.measure.platform.core.data.api.IMeasureReferenceService;
 import org.measure.platform.core.data.entity.MeasureReference;
+import org.measure.platform.core.measurement.api.IMeasurementStorage;
 import org.measure.platform.restapi.framework.rest.util.HeaderUtil;
+import org.measure.platform.service.smmengine.api.IMeasureExecutionPlanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
@@ -57,10 +59,16 @@ public class MeasureReferenceResource {
     @Inject
     private IMeasureInstanceService measureInstanceService;
 
+    @Inject
+    private IMeasureExecutionPlanner executionPlanner;
+
+    @Inject
+    private IMeasurementStorage measurementStorage;
+
     /**
      * POST  /measure-references : Create a new measureReference.
      * @param measureReference the measureReference to create
-     * @return the ResponseEntity with status 201 (Created) and with body the new measureReference, or with status 400 (Bad Request) if the measureReference has already an ID
+     * @return the ResponseEntity with status 201 (Created) and with body the new measureReference, or with status 400 (Bad Request) if the measureReference has already an ID or an invalid filter
      * @throws java.net.URISyntaxException if the Location URI syntax is incorrect
      */
     @PostMapping("/measure-references")
@@ -70,6 +78,14 @@ public class MeasureReferenceResource {
         if (measureReference.getId() != null) {
             return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measureReference", "idexists", "A new measureReference cannot already have an ID")).body(null);
         }
+        if (executionPlanner.isCyclic(measureReference)) {
+            return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measureReference", "cyclicreference", "A measureReference cannot create a cycle between measure instances")).body(null);
+        }
+        try {
+            measurementStorage.validateFilter(measureReference.getFilterExpression());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measureReference", "invalidfilter", e.getMessage())).body(null);
+        }
         MeasureReference result = measureReferenceService.save(measureReference);
         return ResponseEntity.created(new URI("/api/measure-references/" + result.getId()))
                     .headers(HeaderUtil.createEntityCreationAlert("measureReference", result.getId().toString()))
@@ -91,6 +107,14 @@ public class MeasureReferenceResource {
         if (measureReference.getId() == null) {
             return createMeasureReference(measureReference);
         }
+        if (executionPlanner.isCyclic(measureReference)) {
+            return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measureReference", "cyclicreference", "A measureReference cannot create a cycle between measure instances")).body(null);
+        }
+        try {
+            measurementStorage.validateFilter(measureReference.getFilterExpression());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measureReference", "invalidfilter", e.getMessage())).body(null);
+        }
         MeasureReference result = measureReferenceService.save(measureReference);
         return ResponseEntity.ok()
                     .headers(HeaderUtil.createEntityUpdateAlert("measureReference", measureReference.getId().toString()))
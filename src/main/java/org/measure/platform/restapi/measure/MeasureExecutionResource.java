@@ -18,20 +18,27 @@ package org.measure.platform.restapi.measure;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 
 import javax.inject.Inject;
 
 import org.measure.platform.core.data.api.IMeasureInstanceService;
 import org.measure.platform.core.data.entity.MeasureInstance;
+import org.measure.platform.restapi.framework.rest.util.HeaderUtil;
+import org.measure.platform.restapi.measure.dto.MeasureFailureState;
+import org.measure.platform.restapi.measure.dto.MeasureSchedulingProgress;
 import org.measure.platform.service.analysis.api.IAlertEngineService;
 import org.measure.platform.service.analysis.data.alert.AlertData;
 import org.measure.platform.service.analysis.data.alert.AlertProperty;
 import org.measure.platform.service.analysis.data.alert.AlertType;
 import org.measure.platform.service.smmengine.api.ILoggerService;
+import org.measure.platform.service.smmengine.api.IMeasureExecutionPlanner;
 import org.measure.platform.service.smmengine.api.IMeasureExecutionService;
 import org.measure.platform.service.smmengine.api.ISchedulingService;
+import org.measure.platform.service.smmengine.impl.scheduler.MeasureScheduleLoader;
 import org.measure.smm.log.MeasureLog;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -60,6 +67,12 @@ public class MeasureExecutionResource {
     @Inject
     private ILoggerService logger;
 
+    @Inject
+    private IMeasureExecutionPlanner executionPlanner;
+
+    @Inject
+    private MeasureScheduleLoader scheduleLoader;
+
     @RequestMapping(value = "/start", method = RequestMethod.GET)
     public Boolean startMeasureSheduling(@RequestParam("id") String id) {
         if (id.matches("\\d+")) {
@@ -107,6 +120,30 @@ public class MeasureExecutionResource {
         return false;
     }
 
+    /**
+     * GET /failure-policy : the failure policy state of a measure instance.
+     * @param id the id of the measure instance, all the failing instances if missing
+     * @return the states of the instance or of the failing instances
+     */
+    @RequestMapping(value = "/failure-policy", method = RequestMethod.GET)
+    public ResponseEntity<List<MeasureFailureState>> getFailureStates(@RequestParam(value = "id", required = false) String id) {
+        if (id == null) {
+            return new ResponseEntity<>(shedulingService.getFailureStates(), HttpStatus.OK);
+        }
+        if (id.matches("\\d+")) {
+            return new ResponseEntity<>(Collections.singletonList(shedulingService.getFailureState(Long.valueOf(id))), HttpStatus.OK);
+        }
+        return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+
+    /**
+     * GET /warm-start : the progress of the schedules restored at startup.
+     */
+    @RequestMapping(value = "/warm-start", method = RequestMethod.GET)
+    public MeasureSchedulingProgress getWarmStartProgress() {
+        return scheduleLoader.getProgress();
+    }
+
     @Timed
     @RequestMapping(value = "/test", method = RequestMethod.GET)
     public ResponseEntity<MeasureLog> testMeasure(@RequestParam("id") String id) {
@@ -131,7 +168,24 @@ public class MeasureExecutionResource {
         }
         return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     }
-    
+
+    /**
+     * GET /execute-project : execute all the measures of a project, following the dependencies between them.
+     * @param id the id of the project
+     * @return the execution logs of the measures, in execution order, or status 400 (Bad Request) if the measures depend on each other in a cycle
+     */
+    @Timed
+    @RequestMapping(value = "/execute-project", method = RequestMethod.GET)
+    public ResponseEntity<List<MeasureLog>> executeProject(@RequestParam("id") String id) {
+        if (id.matches("\\d+")) {
+            try {
+                return new ResponseEntity<>(executionPlanner.executeProject(Long.valueOf(id)), HttpStatus.OK);
+            } catch (IllegalStateException e) {
+                return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measureReference", "cyclicreference", e.getMessage())).body(null);
+            }
+        }
+        return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
     
     @Timed
     @RequestMapping(value = "/externalexecution", method = RequestMethod.GET)
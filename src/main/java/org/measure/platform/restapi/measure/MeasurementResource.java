@@ -16,16 +16,24 @@
  ******************************************************************************/
 package org.measure.platform.restapi.measure;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
 import org.measure.platform.core.data.api.IMeasureInstanceService;
 import org.measure.platform.core.measurement.api.IMeasurementStorage;
+import org.measure.platform.restapi.framework.rest.util.HeaderUtil;
 import org.measure.platform.restapi.measure.dto.MeasureInstancePage;
+import org.measure.platform.restapi.measure.dto.MeasurementAggregationQuery;
+import org.measure.platform.restapi.measure.dto.MeasurementBucket;
+import org.measure.platform.restapi.measure.dto.MeasurementPage;
 import org.measure.platform.restapi.measure.dto.MeasurementQuery;
 import org.measure.platform.restapi.measure.dto.MeasurementViewDataQuery;
 import org.measure.smm.measure.api.IMeasurement;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -40,6 +48,8 @@ import com.codahale.metrics.annotation.Timed;
 @RequestMapping(value = "api/measurement")
 public class MeasurementResource {
 	
+	private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
 	@Inject
 	private IMeasurementStorage measurementStorage;
 	
@@ -47,30 +57,120 @@ public class MeasurementResource {
 	/**
 	 * Post /find find Measurements.
 	 * @param : MeasurementQuery : Query
-	 * @return the ResponseEntity with status 200 (OK) and the list of projects
-	 *         in body
+	 * @return the ResponseEntity with status 200 (OK) and the list of measurements
+	 *         in body, the cursor of the next page in the X-Next-Cursor header,
+	 *         or with status 400 (Bad Request) if the page is too deep or the cursor invalid
 	 */
 	@PostMapping("/find")
 	@Timed
-	public List<IMeasurement> getMeasurements(@RequestBody MeasurementQuery query) {
-		return	this.measurementStorage.getMeasurementPage(query.getMeasureInstance(), query.getPageSize(), query.getPage(), query.getQuery());	
+	public ResponseEntity<List<IMeasurement>> getMeasurements(@RequestBody MeasurementQuery query) {
+		try {
+			if (query.getCursor() != null) {
+				MeasurementPage page = this.measurementStorage.getMeasurementPage(query.getMeasureInstance(), query.getPageSize(), query.getCursor(), query.getQuery(), query.getResolution());
+				HttpHeaders headers = new HttpHeaders();
+				if (page.getNextCursor() != null) {
+					headers.add(NEXT_CURSOR_HEADER, page.getNextCursor());
+				}
+				return ResponseEntity.ok().headers(headers).body(page.getMeasurements());
+			}
+			return ResponseEntity.ok(this.measurementStorage.getMeasurementPage(query.getMeasureInstance(), query.getPageSize(), query.getPage(), query.getQuery(), query.getResolution()));
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measurement", "invalidpage", e.getMessage())).body(null);
+		}
 	}
 	
 	
 	@PutMapping("/get-view-data")
 	@Timed
-	public MeasureInstancePage getMeasurementViewData(@RequestBody MeasurementViewDataQuery viewDataQuery) {		
+	public ResponseEntity<MeasureInstancePage> getMeasurementViewData(@RequestBody MeasurementViewDataQuery viewDataQuery) {		
+		MeasurementQuery query = viewDataQuery.getQuery();
 		MeasureInstancePage result = new MeasureInstancePage();
-		result.setMeasurements(this.measurementStorage.getMeasurementPage(viewDataQuery.getQuery().getMeasureInstance(), viewDataQuery.getQuery().getPageSize(), viewDataQuery.getQuery().getPage(), viewDataQuery.getQuery().getQuery()));
+		try {
+			if (query.getCursor() != null) {
+				MeasurementPage page = this.measurementStorage.getMeasurementPage(query.getMeasureInstance(), query.getPageSize(), query.getCursor(), query.getQuery(), query.getResolution());
+				result.setMeasurements(page.getMeasurements());
+				result.setNextCursor(page.getNextCursor());
+			} else {
+				result.setMeasurements(this.measurementStorage.getMeasurementPage(query.getMeasureInstance(), query.getPageSize(), query.getPage(), query.getQuery(), query.getResolution()));
+			}
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measurement", "invalidpage", e.getMessage())).body(null);
+		}
 		result.setView(viewDataQuery.getView());
-		result.setPage(viewDataQuery.getQuery().getPage());
-		result.setPageSize(viewDataQuery.getQuery().getPageSize());	
-		return	result;	
+		result.setPage(query.getPage());
+		result.setPageSize(query.getPageSize());	
+		return	ResponseEntity.ok(result);	
 	}
 	
+	/**
+	 * Put /get-views-data find the Measurements of several views, typically all
+	 * the views of a dashboard, with a single search.
+	 * @param : viewDataQueries : one query by view
+	 * @return the ResponseEntity with status 200 (OK) and one page by view in body,
+	 *         or with status 400 (Bad Request) if a page is too deep or a cursor invalid
+	 */
+	@PutMapping("/get-views-data")
+	@Timed
+	public ResponseEntity<List<MeasureInstancePage>> getMeasurementViewsData(@RequestBody List<MeasurementViewDataQuery> viewDataQueries) {
+		List<MeasurementQuery> queries = new ArrayList<>();
+		for (MeasurementViewDataQuery viewDataQuery : viewDataQueries) {
+			queries.add(viewDataQuery.getQuery());
+		}
+
+		List<MeasurementPage> pages;
+		try {
+			pages = this.measurementStorage.getMeasurementPages(queries);
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measurement", "invalidpage", e.getMessage())).body(null);
+		}
+
+		List<MeasureInstancePage> results = new ArrayList<>();
+		for (int i = 0; i < viewDataQueries.size(); i++) {
+			MeasurementQuery query = queries.get(i);
+			MeasurementPage page = pages.get(i);
+			MeasureInstancePage result = new MeasureInstancePage();
+			result.setMeasurements(page.getMeasurements());
+			result.setNextCursor(page.getNextCursor());
+			result.setTotalMeasurements((int) page.getTotal());
+			result.setView(viewDataQueries.get(i).getView());
+			result.setPage(query.getPage());
+			result.setPageSize(query.getPageSize());
+			results.add(result);
+		}
+		return ResponseEntity.ok(results);
+	}
+
+	/**
+	 * Post /aggregate aggregate the Measurements of an instance in time buckets.
+	 * @param : MeasurementAggregationQuery : Query
+	 * @return the ResponseEntity with status 200 (OK) and the list of buckets
+	 *         in body, or with status 400 (Bad Request) if the query is invalid
+	 */
+	@PostMapping("/aggregate")
+	@Timed
+	public ResponseEntity<List<MeasurementBucket>> aggregateMeasurements(@RequestBody MeasurementAggregationQuery query) {
+		try {
+			return ResponseEntity.ok(this.measurementStorage.aggregate(query));
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().headers(HeaderUtil.createFailureAlert("measurement", "invalidaggregation", e.getMessage())).body(null);
+		}
+	}
+
     @GetMapping("/last-value/{measureInstance}")
     @Timed
     public IMeasurement getProject(@PathVariable String measureInstance) {
     	return measurementStorage.getLastMeasurement(measureInstance);
     }
+
+    /**
+     * Post /last-values find the last Measurement of several measure instances.
+     * @param : measureInstances : names of the measure instances
+     * @return the ResponseEntity with status 200 (OK) and the last measurements
+     *         by instance name in body
+     */
+    @PostMapping("/last-values")
+    @Timed
+    public Map<String, IMeasurement> getLastValues(@RequestBody List<String> measureInstances) {
+    	return measurementStorage.getLastMeasurements(measureInstances);
+    }
 }
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.restapi.measure.dto;
+
+import java.util.Date;
+
+public class MeasureFailureState {
+	/**
+	 * Executed at its normal rate.
+	 */
+	public static final String CLOSED = "CLOSED";
+
+	/**
+	 * Executions skipped until the end of the backoff following the last failure.
+	 */
+	public static final String BACKOFF = "BACKOFF";
+
+	/**
+	 * Too many consecutive failures, only probed periodically.
+	 */
+	public static final String OPEN = "OPEN";
+
+	private Long measureInstanceId;
+	private String state;
+	private int consecutiveFailures;
+	private Date nextAttempt;
+	private String lastFailure;
+	private Date lastFailureDate;
+
+	public Long getMeasureInstanceId() {
+		return measureInstanceId;
+	}
+	public void setMeasureInstanceId(Long measureInstanceId) {
+		this.measureInstanceId = measureInstanceId;
+	}
+	/**
+	 * @return CLOSED, BACKOFF or OPEN
+	 */
+	public String getState() {
+		return state;
+	}
+	public void setState(String state) {
+		this.state = state;
+	}
+	public int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+	public void setConsecutiveFailures(int consecutiveFailures) {
+		this.consecutiveFailures = consecutiveFailures;
+	}
+	/**
+	 * @return the date from which the measure is executed again, null when closed
+	 */
+	public Date getNextAttempt() {
+		return nextAttempt;
+	}
+	public void setNextAttempt(Date nextAttempt) {
+		this.nextAttempt = nextAttempt;
+	}
+	public String getLastFailure() {
+		return lastFailure;
+	}
+	public void setLastFailure(String lastFailure) {
+		this.lastFailure = lastFailure;
+	}
+	public Date getLastFailureDate() {
+		return lastFailureDate;
+	}
+	public void setLastFailureDate(Date lastFailureDate) {
+		this.lastFailureDate = lastFailureDate;
+	}
+}
@@ -29,6 +29,7 @@ public class MeasureInstancePage {
 	private int page;
 	private int pageSize;
 	private int totalMeasurements;
+	private String nextCursor;
 	
 	
 	public MeasureInstancePage() {
@@ -60,6 +61,13 @@ public class MeasureInstancePage {
 		this.totalMeasurements = totalMeasurements;
 	}
 
+	public String getNextCursor() {
+		return nextCursor;
+	}
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
+
 	public MeasureView getView() {
 		return view;
 	}
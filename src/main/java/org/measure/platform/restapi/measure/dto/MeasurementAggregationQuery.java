@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.restapi.measure.dto;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class MeasurementAggregationQuery implements Serializable {
+	private static final long serialVersionUID = 3141768224932761207L;
+
+	public static final String AVG = "avg";
+	public static final String MIN = "min";
+	public static final String MAX = "max";
+	public static final String SUM = "sum";
+	public static final String COUNT = "count";
+	public static final String PERCENTILES = "percentiles";
+
+	private String measureInstance;
+
+	private Date from;
+
+	private Date to;
+
+	private String interval;
+
+	private String field;
+
+	private List<String> functions = new ArrayList<>();
+
+	private double[] percents = new double[] { 50, 95, 99 };
+
+	private String query;
+
+	public String getMeasureInstance() {
+		return measureInstance;
+	}
+
+	public void setMeasureInstance(String measureInstance) {
+		this.measureInstance = measureInstance;
+	}
+
+	public Date getFrom() {
+		return from;
+	}
+
+	public void setFrom(Date from) {
+		this.from = from;
+	}
+
+	public Date getTo() {
+		return to;
+	}
+
+	public void setTo(Date to) {
+		this.to = to;
+	}
+
+	/**
+	 * @return the bucket interval, as an Elasticsearch date histogram interval (1m, 1h, 1d, 1w, 1M...)
+	 */
+	public String getInterval() {
+		return interval;
+	}
+
+	public void setInterval(String interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * @return the numeric value field aggregated in each bucket
+	 */
+	public String getField() {
+		return field;
+	}
+
+	public void setField(String field) {
+		this.field = field;
+	}
+
+	/**
+	 * @return the functions computed in each bucket : avg, min, max, sum, count or percentiles
+	 */
+	public List<String> getFunctions() {
+		return functions;
+	}
+
+	public void setFunctions(List<String> functions) {
+		this.functions = functions;
+	}
+
+	public double[] getPercents() {
+		return percents;
+	}
+
+	public void setPercents(double[] percents) {
+		this.percents = percents;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public void setQuery(String query) {
+		this.query = query;
+	}
+
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.restapi.measure.dto;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class MeasurementBucket {
+	private Date date;
+	private long count;
+	private Double avg;
+	private Double min;
+	private Double max;
+	private Double sum;
+	private Map<String, Double> percentiles;
+
+	public Date getDate() {
+		return date;
+	}
+	public void setDate(Date date) {
+		this.date = date;
+	}
+	public long getCount() {
+		return count;
+	}
+	public void setCount(long count) {
+		this.count = count;
+	}
+	public Double getAvg() {
+		return avg;
+	}
+	public void setAvg(Double avg) {
+		this.avg = avg;
+	}
+	public Double getMin() {
+		return min;
+	}
+	public void setMin(Double min) {
+		this.min = min;
+	}
+	public Double getMax() {
+		return max;
+	}
+	public void setMax(Double max) {
+		this.max = max;
+	}
+	public Double getSum() {
+		return sum;
+	}
+	public void setSum(Double sum) {
+		this.sum = sum;
+	}
+	public Map<String, Double> getPercentiles() {
+		return percentiles;
+	}
+	public void setPercentiles(Map<String, Double> percentiles) {
+		this.percentiles = percentiles;
+	}
+	public void putPercentile(String percent, Double value) {
+		if (this.percentiles == null) {
+			this.percentiles = new LinkedHashMap<>();
+		}
+		this.percentiles.put(percent, value);
+	}
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.restapi.measure.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.measure.smm.measure.api.IMeasurement;
+
+public class MeasurementPage {
+	private List<IMeasurement> measurements;
+	private String nextCursor;
+	private long total;
+
+	public MeasurementPage() {
+		this.measurements = new ArrayList<IMeasurement>();
+	}
+
+	public MeasurementPage(List<IMeasurement> measurements, String nextCursor) {
+		this.measurements = measurements;
+		this.nextCursor = nextCursor;
+	}
+
+	public List<IMeasurement> getMeasurements() {
+		return measurements;
+	}
+	public void setMeasurements(List<IMeasurement> measurements) {
+		this.measurements = measurements;
+	}
+	/**
+	 * @return the cursor of the next page, null when the last page is reached
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
+	/**
+	 * @return the total number of measurements matching the query
+	 */
+	public long getTotal() {
+		return total;
+	}
+	public void setTotal(long total) {
+		this.total = total;
+	}
+}
@@ -28,6 +28,10 @@ public class MeasurementQuery implements Serializable {
 
 	private String query;
 
+	private String cursor;
+
+	private String resolution;
+
 	public String getMeasureInstance() {
 		return measureInstance;
 	}
@@ -60,4 +64,30 @@ public class MeasurementQuery implements Serializable {
 		this.query = query;
 	}
 
+	/**
+	 * @return the cursor returned with the previous page. When set (empty for the
+	 *         first page), the page number is ignored and the measurements are
+	 *         browsed by cursor.
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+
+	/**
+	 * @return the interval of the measurements (1h, 1d, ...). The measurements
+	 *         older than the rollup age are then read from the rollup tier of
+	 *         this interval. Null to read the raw measurements.
+	 */
+	public String getResolution() {
+		return resolution;
+	}
+
+	public void setResolution(String resolution) {
+		this.resolution = resolution;
+	}
+
 }
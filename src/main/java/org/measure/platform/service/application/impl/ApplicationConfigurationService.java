@@ -38,6 +38,7 @@ import org.measure.platform.service.application.impl.dto.ApplicationProperty;
 import org.measure.platform.service.application.impl.dto.ApplicationPropertyEnum;
 import org.measure.platform.service.application.impl.dto.ApplicationPropertyEnumValue;
 import org.measure.platform.service.application.impl.dto.ApplicationPropertyType;
+import org.measure.platform.service.smmengine.api.ISchedulingService;
 import org.measure.smm.application.model.ApplicationMeasure;
 import org.measure.smm.application.model.SMMApplication;
 import org.measure.smm.measure.model.SMMMeasure;
@@ -147,6 +148,9 @@ public class ApplicationConfigurationService implements IApplicationConfiguratio
 				measureInstance.setShedulingExpression(String.valueOf(Integer.valueOf(measureDescriptor.getScheduling()) * 3600000 ));
 			}else if("d".equals(measureDescriptor.getSchedulingUnit())){
 				measureInstance.setShedulingExpression(String.valueOf(Integer.valueOf(measureDescriptor.getScheduling()) * 86400000 ));
+			}else if(ISchedulingService.CRON_SCHEDULING_UNIT.equals(measureDescriptor.getSchedulingUnit())){
+				measureInstance.setShedulingExpression(measureDescriptor.getScheduling());
+				measureInstance.setSchedulingUnit(ISchedulingService.CRON_SCHEDULING_UNIT);
 			}
 		} else {
 			measureInstance.setShedulingExpression("1");
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.api;
+
+import java.util.List;
+
+import org.measure.platform.core.data.entity.MeasureReference;
+import org.measure.smm.log.MeasureLog;
+
+public interface IMeasureExecutionPlanner {
+
+    /**
+     * Check if saving a measure reference would introduce a cycle between measure instances.
+     * @param reference the reference to save
+     * @return true if the reference would create a cycle
+     */
+    boolean isCyclic(MeasureReference reference);
+
+    /**
+     * Execute all the local measure instances of a project, each derived measure
+     * being executed as soon as all of its inputs have been refreshed.
+     * @param projectId the id of the project
+     * @return the execution logs, in topological order
+     * @throws IllegalStateException if the references of the project contain a cycle, nothing being executed
+     */
+    List<MeasureLog> executeProject(Long projectId);
+
+}
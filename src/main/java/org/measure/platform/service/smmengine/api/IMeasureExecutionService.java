@@ -17,13 +17,21 @@
 package org.measure.platform.service.smmengine.api;
 
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 
 import org.measure.platform.core.data.entity.MeasureInstance;
 import org.measure.smm.log.MeasureLog;
-import org.measure.smm.measure.api.IMeasure;
 
 public interface IMeasureExecutionService {
-    MeasureLog executeMeasure(MeasureInstance measure, IMeasure measureImpl);
+    /**
+     * Execute a measure instance and store its measurements, without waiting
+     * for the execution. Every execution creates its own measure implementation
+     * object, so executions of the same instance can run concurrently.
+     * @return the log of the execution, completed once the measurements are stored or the execution failed,
+     *         or completed exceptionally with a RejectedExecutionException if the bulkhead of the measure is full,
+     *         or with a CancellationException if the execution was cancelled
+     */
+    CompletableFuture<MeasureLog> executeMeasure(MeasureInstance measure);
 
     MeasureLog testMeasure(Long measureInstanceId);
 
@@ -19,9 +19,16 @@ package org.measure.platform.service.smmengine.api;
 import java.util.List;
 
 import org.measure.platform.core.data.entity.MeasureInstance;
+import org.measure.platform.restapi.measure.dto.MeasureFailureState;
+import org.measure.smm.log.MeasureLog;
 import org.measure.smm.remote.RemoteMeasureInstance;
 
 public interface ISchedulingService {
+    /**
+     * Scheduling unit of the measures scheduled on a cron expression instead of a rate in milliseconds.
+     */
+    String CRON_SCHEDULING_UNIT = "cron";
+
     Boolean scheduleMeasure(MeasureInstance measure);
 
     Boolean removeMeasure(Long measureInstanceId);
@@ -30,4 +37,18 @@ public interface ISchedulingService {
 
     List<RemoteMeasureInstance> getSheduledRemoteMeasure(String agentId);
 
+    /**
+     * Apply the failure policy to the result of an execution of a scheduled measure.
+     * A failed measure is backed off, then probed once its circuit opens, instead of
+     * being unscheduled.
+     */
+    void registerExecutionResult(Long measureInstanceId, MeasureLog log);
+
+    MeasureFailureState getFailureState(Long measureInstanceId);
+
+    /**
+     * @return the failure states of the instances currently backed off or open
+     */
+    List<MeasureFailureState> getFailureStates();
+
 }
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.measureexecution;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.measure.platform.core.data.entity.MeasureInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Bulkheads isolating the measure executions. The measures of an application
+ * share a bulkhead, the other instances share the bulkhead of their measure.
+ * Each bulkhead runs a bounded number of executions with a bounded queue, and
+ * each execution is interrupted once the deadline of its instance is reached,
+ * so that a hanging measure only exhausts the budget of its own bulkhead. The
+ * callers don't wait for the executions : the deadlines are enforced by a
+ * timer cancelling the executions. The executions of an instance are also
+ * interrupted when the instance is no longer scheduled.
+ */
+@Component
+@Scope("singleton")
+public class MeasureExecutionBulkheads {
+	private final Logger log = LoggerFactory.getLogger(MeasureExecutionBulkheads.class);
+
+	@Value("${measureplatform.execution.bulkhead.concurrency:4}")
+	private int concurrency;
+
+	@Value("${measureplatform.execution.bulkhead.queue:4}")
+	private int queueSize;
+
+	@Value("${measureplatform.execution.timeout:600}")
+	private int defaultTimeout;
+
+	@Inject
+	private MetricRegistry metricRegistry;
+
+	private final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+
+	/**
+	 * The cancellations of the executions in progress, by measure instance.
+	 */
+	private final Map<Long, Set<Runnable>> running = new ConcurrentHashMap<>();
+
+	private ScheduledThreadPoolExecutor timer;
+
+	@PostConstruct
+	public void initIt() {
+		this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "bulkhead-timeout");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timer.setRemoveOnCancelPolicy(true);
+	}
+
+	@PreDestroy
+	public void cleanUp() {
+		timer.shutdownNow();
+		for (Bulkhead bulkhead : bulkheads.values()) {
+			bulkhead.executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Run an execution of a measure instance in its bulkhead, without waiting
+	 * for it. The returned future completes on the thread of the bulkhead with
+	 * the result of the execution, or exceptionally :
+	 * <ul>
+	 * <li>with a RejectedExecutionException if the queue of the bulkhead is full,</li>
+	 * <li>with a TimeoutException once the deadline of the instance is reached,
+	 * the execution being then interrupted,</li>
+	 * <li>with a CancellationException if the executions of the instance are
+	 * cancelled, the execution being then interrupted.</li>
+	 * </ul>
+	 */
+	public <T> CompletableFuture<T> submit(MeasureInstance measure, Callable<T> execution) {
+		String name = getBulkheadName(measure);
+		Bulkhead bulkhead = bulkheads.computeIfAbsent(name, this::createBulkhead);
+
+		CompletableFuture<T> result = new CompletableFuture<>();
+		Future<?> task;
+		try {
+			task = bulkhead.executor.submit(() -> {
+				try {
+					result.complete(execution.call());
+				} catch (Throwable e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			bulkhead.rejected.mark();
+			result.completeExceptionally(new RejectedExecutionException("Too many pending executions in " + name + ", execution of " + measure.getInstanceName() + " rejected"));
+			return result;
+		}
+
+		long timeout = getTimeout(measure);
+		ScheduledFuture<?> deadline = timer.schedule(() -> {
+			if (result.completeExceptionally(new TimeoutException("Execution of " + measure.getInstanceName() + " timed out after " + timeout + "s"))) {
+				// Interrupt the execution, or drop it if still queued
+				task.cancel(true);
+				bulkhead.timeouts.mark();
+				log.warn("Execution of measure instance {} timed out after {}s", measure.getInstanceName(), timeout);
+			}
+		}, timeout, TimeUnit.SECONDS);
+		Runnable cancellation = () -> {
+			if (result.completeExceptionally(new CancellationException("Execution of " + measure.getInstanceName() + " cancelled"))) {
+				task.cancel(true);
+			}
+		};
+		if (measure.getId() != null) {
+			running.computeIfAbsent(measure.getId(), id -> ConcurrentHashMap.newKeySet()).add(cancellation);
+		}
+		result.whenComplete((value, failure) -> {
+			deadline.cancel(false);
+			if (measure.getId() != null) {
+				running.computeIfPresent(measure.getId(), (id, cancellations) -> cancellations.remove(cancellation) && cancellations.isEmpty() ? null : cancellations);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Interrupt the executions in progress of a measure instance, and drop its queued executions.
+	 */
+	public void cancel(Long measureInstanceId) {
+		Set<Runnable> cancellations = running.remove(measureInstanceId);
+		if (cancellations != null) {
+			for (Runnable cancellation : cancellations) {
+				cancellation.run();
+			}
+		}
+	}
+
+	private long getTimeout(MeasureInstance measure) {
+		if (measure.getExecutionTimeout() != null && measure.getExecutionTimeout() > 0) {
+			return measure.getExecutionTimeout();
+		}
+		return defaultTimeout;
+	}
+
+	private static String getBulkheadName(MeasureInstance measure) {
+		if (measure.getApplication() != null) {
+			return "application-" + measure.getApplication().getId();
+		}
+		return "measure-" + measure.getMeasureName();
+	}
+
+	private Bulkhead createBulkhead(String name) {
+		Bulkhead bulkhead = new Bulkhead(name, concurrency, queueSize);
+		bulkhead.rejected = metricRegistry.meter(MetricRegistry.name(MeasureExecutionBulkheads.class, name, "rejected"));
+		bulkhead.timeouts = metricRegistry.meter(MetricRegistry.name(MeasureExecutionBulkheads.class, name, "timeouts"));
+		registerGauge(MetricRegistry.name(MeasureExecutionBulkheads.class, name, "active"), bulkhead.executor::getActiveCount);
+		registerGauge(MetricRegistry.name(MeasureExecutionBulkheads.class, name, "queued"), () -> bulkhead.executor.getQueue().size());
+		return bulkhead;
+	}
+
+	private void registerGauge(String metric, Gauge<Integer> gauge) {
+		metricRegistry.remove(metric);
+		metricRegistry.register(metric, gauge);
+	}
+
+	private static class Bulkhead {
+		private final ThreadPoolExecutor executor;
+
+		private Meter rejected;
+
+		private Meter timeouts;
+
+		Bulkhead(String name, int concurrency, int queueSize) {
+			AtomicInteger threads = new AtomicInteger();
+			this.executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(queueSize, 1)), runnable -> {
+				Thread thread = new Thread(runnable, "bulkhead-" + name + "-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.executor.allowCoreThreadTimeOut(true);
+		}
+	}
+
+}
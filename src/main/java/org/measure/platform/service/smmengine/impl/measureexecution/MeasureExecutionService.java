@@ -22,11 +22,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
-import org.elasticsearch.client.transport.NoNodeAvailableException;
 import org.measure.platform.core.catalogue.api.IMeasureCatalogueService;
 import org.measure.platform.core.data.api.IMeasureInstanceService;
 import org.measure.platform.core.data.api.IMeasurePropertyService;
@@ -35,6 +40,7 @@ import org.measure.platform.core.data.entity.MeasureInstance;
 import org.measure.platform.core.data.entity.MeasureProperty;
 import org.measure.platform.core.data.entity.MeasureReference;
 import org.measure.platform.core.measurement.api.IMeasurementStorage;
+import org.measure.platform.core.measurement.impl.ElasticConnection;
 import org.measure.platform.service.smmengine.api.IMeasureExecutionService;
 import org.measure.smm.log.MeasureLog;
 import org.measure.smm.measure.api.IDerivedMeasure;
@@ -61,28 +67,32 @@ public class MeasureExecutionService implements IMeasureExecutionService {
 	@Inject
 	private IMeasurementStorage measurementStorage;
 
+	@Inject
+	private MeasureExecutionBulkheads bulkheads;
+
 	@Override
-	public MeasureLog executeMeasure(MeasureInstance measureData, IMeasure measureImpl) {
+	public CompletableFuture<MeasureLog> executeMeasure(MeasureInstance measureData) {
 		MeasureLog log = new MeasureLog();
 		log.setMeasureInstanceName(measureData.getInstanceName());
 		log.setMeasureName(measureData.getMeasureName());
 
-		try {
-
-			List<IMeasurement> measurements = new ArrayList<>();
-			measurements.addAll(executeLocalMeasure(measureData, measureImpl, log, true));
-
+		return executeLocalMeasure(measureData, newMeasureImplementation(measureData), log, true).thenApply(measurements -> {
 			for (IMeasurement measurement : measurements) {
 				measurementStorage.putMeasurement(measureData.getInstanceName(), measurement);
 			}
-
 			log.setExectionDate(new Date());
-		} catch (Exception e) {
-			log.setExceptionMessage(e.getMessage());
+			return log;
+		}).exceptionally(e -> {
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			if (cause instanceof RejectedExecutionException || cause instanceof CancellationException) {
+				// Not a failure of the measure, left to the caller
+				throw new CompletionException(cause);
+			}
+			log.setExceptionMessage(getFailureMessage(cause));
 			log.setSuccess(false);
-			e.printStackTrace();
-		}
-		return log;
+			cause.printStackTrace();
+			return log;
+		});
 	}
 
 	@Override
@@ -98,24 +108,15 @@ public class MeasureExecutionService implements IMeasureExecutionService {
 
 			List<IMeasurement> measurements = new ArrayList<>();
 			
-			String application = null;
-			if(measureData.getApplication() != null) {
-				application = measureData.getApplication().getApplicationType();
-			}
-
-			IMeasure measureImpl = measureCatalogue.getMeasureImplementation(application,measureData.getMeasureName());
-			measurements.addAll(executeLocalMeasure(measureData, measureImpl, log, true));
+			IMeasure measureImpl = newMeasureImplementation(measureData);
+			measurements.addAll(await(executeLocalMeasure(measureData, measureImpl, log, true)));
 
 			for (IMeasurement measurement : measurements) {
 				measurementStorage.putMeasurement(measureData.getInstanceName(), measurement);
 			}
 
-		} catch (NoNodeAvailableException e) {
-			log.setExceptionMessage("The Elasticsearch database is not available");
-			log.setSuccess(false);
-			e.printStackTrace();
 		} catch (Throwable e) {
-			log.setExceptionMessage(e.getMessage());
+			log.setExceptionMessage(getFailureMessage(e));
 			log.setSuccess(false);
 			e.printStackTrace();
 		}
@@ -135,25 +136,16 @@ public class MeasureExecutionService implements IMeasureExecutionService {
 
 			List<IMeasurement> measurements = new ArrayList<>();
 			
-			String application = null;
-			if(measureData.getApplication() != null) {
-				application = measureData.getApplication().getApplicationType();
-			}
-
-			IMeasure measureImpl = measureCatalogue.getMeasureImplementation(application,measureData.getMeasureName());
-			measurements.addAll(executeLocalMeasure(measureData, measureImpl, log, true));
+			IMeasure measureImpl = newMeasureImplementation(measureData);
+			measurements.addAll(await(executeLocalMeasure(measureData, measureImpl, log, true)));
 
 			for (IMeasurement measurement : measurements) {
 				measurement.getValues().put(dateField, logDate);
 				measurementStorage.putMeasurement(measureData.getInstanceName(), measurement);
 			}
 
-		} catch (NoNodeAvailableException e) {
-			log.setExceptionMessage("The Elasticsearch database is not available");
-			log.setSuccess(false);
-			e.printStackTrace();
 		} catch (Throwable e) {
-			log.setExceptionMessage(e.getMessage());
+			log.setExceptionMessage(getFailureMessage(e));
 			log.setSuccess(false);
 			e.printStackTrace();
 		}
@@ -170,13 +162,8 @@ public class MeasureExecutionService implements IMeasureExecutionService {
 		log.setMeasureName(measureData.getMeasureName());
 		try {
 			
-			String application = null;
-			if(measureData.getApplication() != null) {
-				application = measureData.getApplication().getApplicationType();
-			}
-
-			IMeasure measureImpl = measureCatalogue.getMeasureImplementation(application,measureData.getMeasureName());
-			executeLocalMeasure(measureData, measureImpl, log, false);
+			IMeasure measureImpl = newMeasureImplementation(measureData);
+			await(executeLocalMeasure(measureData, measureImpl, log, false));
 		} catch (Throwable e) {
 			log.setSuccess(false);
 			
@@ -190,61 +177,107 @@ public class MeasureExecutionService implements IMeasureExecutionService {
 		return log;
 	}
 
-	private List<IMeasurement> executeLocalMeasure(MeasureInstance measure, IMeasure measureImpl, MeasureLog log, boolean storeProp) throws Exception {
-
-		Map<String, String> properties = initialiseProperties(measure, log);
-		for (Entry<String, String> entry : properties.entrySet()) {
-			measureImpl.getProperties().put(entry.getKey(), entry.getValue());
+	/**
+	 * Each execution runs on its own measure object, holding the properties and
+	 * inputs of this execution only.
+	 */
+	private IMeasure newMeasureImplementation(MeasureInstance measureData) {
+		String application = null;
+		if (measureData.getApplication() != null) {
+			application = measureData.getApplication().getApplicationType();
 		}
+		return measureCatalogue.getMeasureImplementation(application, measureData.getMeasureName());
+	}
 
-		Date start = new Date();
-		List<IMeasurement> measurements = new ArrayList<>();
-		if (measureImpl instanceof IDirectMeasure) {
-			measurements.addAll(executeDirectMeasure((IDirectMeasure) measureImpl));
-		} else if (measureImpl instanceof IDerivedMeasure) {
-
-			List<MeasureReference> references = new ArrayList<>();
-			for (MeasureReference reference : measureReferenceService.findByInstance(measure)) {
-				references.add(reference);
+	/**
+	 * Run the measure implementation in its bulkhead. The properties and the
+	 * inputs of a derived measure are read on the calling thread, the returned
+	 * future completes on the thread of the bulkhead once the execution is done.
+	 */
+	private CompletableFuture<List<IMeasurement>> executeLocalMeasure(MeasureInstance measure, IMeasure measureImpl, MeasureLog log, boolean storeProp) {
+		Map<String, String> properties;
+		Callable<List<IMeasurement>> execution;
+		try {
+			properties = initialiseProperties(measure, log);
+			for (Entry<String, String> entry : properties.entrySet()) {
+				measureImpl.getProperties().put(entry.getKey(), entry.getValue());
 			}
-			measurements.addAll(executeDerivedMeasure((IDerivedMeasure) measureImpl, references, log));
-		}
 
-		if (storeProp) {
-			Map<String, String> updatedProperties = new HashMap<>();
-			for (Entry<String, String> entry : measureImpl.getProperties().entrySet()) {
-				if (entry.getValue() != null && !entry.getValue().equals(properties.get(entry.getKey()))) {
-					updatedProperties.put(entry.getKey(), entry.getValue());
+			if (measureImpl instanceof IDirectMeasure) {
+				execution = ((IDirectMeasure) measureImpl)::getMeasurement;
+			} else if (measureImpl instanceof IDerivedMeasure) {
+				List<MeasureReference> references = new ArrayList<>();
+				for (MeasureReference reference : measureReferenceService.findByInstance(measure)) {
+					references.add(reference);
 				}
+				execution = prepareDerivedMeasure((IDerivedMeasure) measureImpl, references, log);
+			} else {
+				execution = null;
 			}
-			storeUpdatedProperties(measure, updatedProperties);
+		} catch (Exception e) {
+			CompletableFuture<List<IMeasurement>> failure = new CompletableFuture<>();
+			failure.completeExceptionally(e);
+			return failure;
 		}
 
-		log.setExecutionTime(new Date().getTime() - start.getTime());
-		
-		
-		List<DefaultMeasurement> defaultMeasurements = new ArrayList<>();
-		for (IMeasurement measirement : measurements) {
-			DefaultMeasurement newDef = new DefaultMeasurement();
-		
-			for(Entry<String,Object> entry : measirement.getValues().entrySet()){
-				newDef.addValue(entry.getKey(), entry.getValue());
+		Date start = new Date();
+		CompletableFuture<List<IMeasurement>> result = execution != null ? bulkheads.submit(measure, execution) : CompletableFuture.completedFuture(new ArrayList<>());
+		return result.thenApply(measurements -> {
+			if (storeProp) {
+				Map<String, String> updatedProperties = new HashMap<>();
+				for (Entry<String, String> entry : measureImpl.getProperties().entrySet()) {
+					if (entry.getValue() != null && !entry.getValue().equals(properties.get(entry.getKey()))) {
+						updatedProperties.put(entry.getKey(), entry.getValue());
+					}
+				}
+				storeUpdatedProperties(measure, updatedProperties);
 			}
-			defaultMeasurements.add(newDef);
-		}
-		
-		log.setMesurement(defaultMeasurements);
-		log.setSuccess(true);
 
-		return measurements;
+			log.setExecutionTime(new Date().getTime() - start.getTime());
 
+			List<DefaultMeasurement> defaultMeasurements = new ArrayList<>();
+			for (IMeasurement measirement : measurements) {
+				DefaultMeasurement newDef = new DefaultMeasurement();
+			
+				for(Entry<String,Object> entry : measirement.getValues().entrySet()){
+					newDef.addValue(entry.getKey(), entry.getValue());
+				}
+				defaultMeasurements.add(newDef);
+			}
+			
+			log.setMesurement(defaultMeasurements);
+			log.setSuccess(true);
+
+			return measurements;
+		});
+	}
+
+	/**
+	 * @return the message logged for a failed execution
+	 */
+	private static String getFailureMessage(Throwable e) {
+		if (ElasticConnection.isUnavailable(e)) {
+			return "The Elasticsearch database is not available";
+		}
+		return e.getMessage();
 	}
 
-	private List<IMeasurement> executeDirectMeasure(IDirectMeasure directMeasure) throws Exception {
-		return directMeasure.getMeasurement();
+	/**
+	 * Wait for an execution, for the callers expecting its result.
+	 */
+	private static <T> T await(CompletableFuture<T> execution) throws Throwable {
+		try {
+			return execution.get();
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		}
 	}
 
-	private List<IMeasurement> executeDerivedMeasure(IDerivedMeasure derivedMeasure, List<MeasureReference> references, MeasureLog log) throws Exception {
+	/**
+	 * Read the inputs of a derived measure.
+	 * @return the calculation of the measure, to be run in its bulkhead
+	 */
+	private Callable<List<IMeasurement>> prepareDerivedMeasure(IDerivedMeasure derivedMeasure, List<MeasureReference> references, MeasureLog log) {
 		derivedMeasure.cleanMeasureInput();
 		for (MeasureReference ref : references) {
 			List<IMeasurement> measurements = measurementStorage.getMeasurement(ref.getReferencedInstance().getInstanceName(), ref.getNumberRef(), ref.getFilterExpression());
@@ -253,11 +286,7 @@ public class MeasureExecutionService implements IMeasureExecutionService {
 				log.getInputs().add(log.new MeasureLogInput(ref.getRole(), measurement));
 			}
 		}
-
-		List<IMeasurement> result = derivedMeasure.calculateMeasurement();
-
-		// Execute Measure
-		return result;
+		return derivedMeasure::calculateMeasurement;
 	}
 
 	private HashMap<String, String> initialiseProperties(MeasureInstance measureData, MeasureLog log) {
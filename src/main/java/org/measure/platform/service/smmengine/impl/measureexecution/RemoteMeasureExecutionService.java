@@ -67,9 +67,8 @@ public class RemoteMeasureExecutionService implements IRemoteMeasureExecutionSer
 			for (IMeasurement measurement : executionLog.getMesurement()) {
 				measurementStorage.putMeasurement(executionLog.getMeasureInstanceName(), measurement);
 			}
-		} else {
-			shedulingService.removeMeasure(executionLog.getMeasureInstanceId());
 		}
+		shedulingService.registerExecutionResult(executionLog.getMeasureInstanceId(), executionLog);
 		logger.addMeasureExecutionLog(executionLog);
 	}
 
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.planner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.measure.platform.core.data.entity.MeasureReference;
+
+/**
+ * Dependency graph of measure instances built from their {@link MeasureReference}s.
+ * An edge goes from a referenced instance (an input) to the instance owning the
+ * reference (a derived measure), following the flow of the measurements.
+ */
+public class MeasureDependencyGraph {
+
+    private final Map<Long, Set<Long>> successors = new LinkedHashMap<>();
+
+    private final Map<Long, Set<Long>> predecessors = new HashMap<>();
+
+    public static MeasureDependencyGraph of(Iterable<MeasureReference> references) {
+        MeasureDependencyGraph graph = new MeasureDependencyGraph();
+        for (MeasureReference reference : references) {
+            if (reference.getOwnerInstance() != null && reference.getReferencedInstance() != null) {
+                graph.addEdge(reference.getReferencedInstance().getId(), reference.getOwnerInstance().getId());
+            }
+        }
+        return graph;
+    }
+
+    public void addNode(Long instanceId) {
+        successors.computeIfAbsent(instanceId, id -> new LinkedHashSet<>());
+        predecessors.computeIfAbsent(instanceId, id -> new LinkedHashSet<>());
+    }
+
+    public void addEdge(Long input, Long owner) {
+        addNode(input);
+        addNode(owner);
+        successors.get(input).add(owner);
+        predecessors.get(owner).add(input);
+    }
+
+    public Set<Long> getNodes() {
+        return Collections.unmodifiableSet(successors.keySet());
+    }
+
+    public Set<Long> getInputs(Long instanceId) {
+        return predecessors.getOrDefault(instanceId, Collections.emptySet());
+    }
+
+    public Set<Long> getDependents(Long instanceId) {
+        return successors.getOrDefault(instanceId, Collections.emptySet());
+    }
+
+    /**
+     * @return true if the measurements of <code>from</code> flow, directly or not, into <code>to</code>
+     */
+    public boolean reaches(Long from, Long to) {
+        Set<Long> visited = new HashSet<>();
+        Deque<Long> toVisit = new ArrayDeque<>();
+        toVisit.push(from);
+        while (!toVisit.isEmpty()) {
+            Long current = toVisit.pop();
+            if (current.equals(to)) {
+                return true;
+            }
+            if (visited.add(current)) {
+                toVisit.addAll(getDependents(current));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if adding an edge from <code>input</code> to <code>owner</code> would create a cycle
+     */
+    public boolean createsCycle(Long input, Long owner) {
+        return input.equals(owner) || reaches(owner, input);
+    }
+
+    /**
+     * Sort the instances so that every instance comes after all of its inputs (Kahn's algorithm).
+     * @throws IllegalStateException if the graph contains a cycle
+     */
+    public List<Long> topologicalOrder() {
+        Map<Long, Integer> remainingInputs = new HashMap<>();
+        Deque<Long> ready = new ArrayDeque<>();
+        for (Long node : successors.keySet()) {
+            int inputs = getInputs(node).size();
+            remainingInputs.put(node, inputs);
+            if (inputs == 0) {
+                ready.add(node);
+            }
+        }
+
+        List<Long> order = new ArrayList<>(successors.size());
+        while (!ready.isEmpty()) {
+            Long node = ready.poll();
+            order.add(node);
+            for (Long dependent : getDependents(node)) {
+                if (remainingInputs.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+
+        if (order.size() != successors.size()) {
+            throw new IllegalStateException("The measure references contain a cycle");
+        }
+        return order;
+    }
+
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.planner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.inject.Inject;
+
+import org.measure.platform.core.data.api.IMeasureInstanceService;
+import org.measure.platform.core.data.api.IMeasureReferenceService;
+import org.measure.platform.core.data.entity.MeasureInstance;
+import org.measure.platform.core.data.entity.MeasureReference;
+import org.measure.platform.core.measurement.api.IMeasurementStorage;
+import org.measure.platform.service.smmengine.api.ILoggerService;
+import org.measure.platform.service.smmengine.api.IMeasureExecutionPlanner;
+import org.measure.platform.service.smmengine.api.IMeasureExecutionService;
+import org.measure.smm.log.MeasureLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Execute the measure instances of a project following the graph of their
+ * {@link MeasureReference}s. The executions are chained along the graph without
+ * blocking any thread : independent branches run in parallel in the bulkheads
+ * of their measures, and a derived measure starts as soon as all of its inputs
+ * have been executed. Only the on-demand executions of a project go through the
+ * planner, the scheduled derived measures being triggered by the changes of
+ * their inputs.
+ */
+@Service
+public class MeasureExecutionPlanner implements IMeasureExecutionPlanner {
+    private final Logger log = LoggerFactory.getLogger(MeasureExecutionPlanner.class);
+
+    @Inject
+    private IMeasureReferenceService measureReferenceService;
+
+    @Inject
+    private IMeasureInstanceService measureInstanceService;
+
+    @Inject
+    private IMeasureExecutionService measureExecutionService;
+
+    @Inject
+    private IMeasurementStorage measurementStorage;
+
+    @Inject
+    private ILoggerService logger;
+
+    @Override
+    public boolean isCyclic(MeasureReference reference) {
+        if (reference.getOwnerInstance() == null || reference.getReferencedInstance() == null) {
+            return false;
+        }
+
+        // A cycle may go through other projects : follow the projects of the referenced instances
+        Set<Long> projects = new HashSet<>();
+        Deque<Long> pending = new ArrayDeque<>();
+        addProject(measureInstanceService.findOne(reference.getOwnerInstance().getId()), projects, pending);
+        addProject(measureInstanceService.findOne(reference.getReferencedInstance().getId()), projects, pending);
+
+        List<MeasureReference> references = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            for (MeasureReference existing : measureReferenceService.findByProject(pending.poll())) {
+                // The saved reference replaces its previous version
+                if (reference.getId() == null || !reference.getId().equals(existing.getId())) {
+                    references.add(existing);
+                    addProject(existing.getOwnerInstance(), projects, pending);
+                    addProject(existing.getReferencedInstance(), projects, pending);
+                }
+            }
+        }
+        return MeasureDependencyGraph.of(references).createsCycle(reference.getReferencedInstance().getId(), reference.getOwnerInstance().getId());
+    }
+
+    private static void addProject(MeasureInstance instance, Set<Long> projects, Deque<Long> pending) {
+        if (instance != null && instance.getProject() != null && projects.add(instance.getProject().getId())) {
+            pending.add(instance.getProject().getId());
+        }
+    }
+
+    @Override
+    public List<MeasureLog> executeProject(Long projectId) {
+        Map<Long, MeasureInstance> instances = new LinkedHashMap<>();
+        for (MeasureInstance instance : measureInstanceService.findMeasureInstancesByProject(projectId)) {
+            instances.put(instance.getId(), instance);
+        }
+
+        List<MeasureReference> references = measureReferenceService.findByProject(projectId);
+        for (MeasureReference reference : references) {
+            instances.putIfAbsent(reference.getOwnerInstance().getId(), reference.getOwnerInstance());
+            instances.putIfAbsent(reference.getReferencedInstance().getId(), reference.getReferencedInstance());
+        }
+
+        MeasureDependencyGraph graph = MeasureDependencyGraph.of(references);
+        for (Long instanceId : instances.keySet()) {
+            graph.addNode(instanceId);
+        }
+
+        Map<Long, CompletableFuture<MeasureLog>> executions = new LinkedHashMap<>();
+        for (Long instanceId : graph.topologicalOrder()) {
+            MeasureInstance instance = instances.get(instanceId);
+            if (!isExecutable(instance, projectId)) {
+                // Remote measures and measures of other projects are not executed, their last measurements are used
+                executions.put(instanceId, CompletableFuture.completedFuture(null));
+                continue;
+            }
+
+            List<CompletableFuture<MeasureLog>> inputs = new ArrayList<>();
+            for (Long inputId : graph.getInputs(instanceId)) {
+                inputs.add(executions.get(inputId));
+            }
+            boolean hasDependents = !graph.getDependents(instanceId).isEmpty();
+
+            CompletableFuture<MeasureLog> execution = CompletableFuture.allOf(inputs.toArray(new CompletableFuture<?>[inputs.size()]))
+                    .thenCompose(done -> execute(instance, inputs, hasDependents));
+            executions.put(instanceId, execution);
+        }
+
+        List<MeasureLog> logs = new ArrayList<>();
+        for (CompletableFuture<MeasureLog> execution : executions.values()) {
+            MeasureLog executionLog = execution.join();
+            if (executionLog != null) {
+                logs.add(executionLog);
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * Start the execution of an instance whose inputs are all executed.
+     * @return the log of the execution, completed on the thread of the bulkhead of the measure
+     */
+    private CompletableFuture<MeasureLog> execute(MeasureInstance instance, List<CompletableFuture<MeasureLog>> inputs, boolean hasDependents) {
+        for (CompletableFuture<MeasureLog> input : inputs) {
+            // Already completed
+            MeasureLog inputLog = input.join();
+            if (inputLog != null && !inputLog.isSuccess()) {
+                MeasureLog skipped = newFailureLog(instance, "Not executed : the execution of the input measure " + inputLog.getMeasureInstanceName() + " failed");
+                logger.addMeasureExecutionLog(skipped);
+                return CompletableFuture.completedFuture(skipped);
+            }
+        }
+
+        return measureExecutionService.executeMeasure(instance).handle((executionLog, e) -> {
+            if (e != null) {
+                // Rejected by a full bulkhead, or cancelled
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                executionLog = newFailureLog(instance, cause.getMessage());
+            }
+            logger.addMeasureExecutionLog(executionLog);
+
+            if (executionLog.isSuccess() && hasDependents) {
+                // Make the new measurements visible to the derived measures before they start
+                try {
+                    measurementStorage.flush(instance.getInstanceName());
+                } catch (Exception flushError) {
+                    log.error("Unable to flush the measurements of " + instance.getInstanceName(), flushError);
+                }
+            }
+            return executionLog;
+        });
+    }
+
+    private static MeasureLog newFailureLog(MeasureInstance instance, String message) {
+        MeasureLog failure = new MeasureLog();
+        failure.setExectionDate(new Date());
+        failure.setMeasureInstanceName(instance.getInstanceName());
+        failure.setMeasureName(instance.getMeasureName());
+        failure.setSuccess(false);
+        failure.setExceptionMessage(message);
+        return failure;
+    }
+
+    private boolean isExecutable(MeasureInstance instance, Long projectId) {
+        return instance.getProject() != null && projectId.equals(instance.getProject().getId())
+                && !Boolean.TRUE.equals(instance.isIsRemote());
+    }
+
+}
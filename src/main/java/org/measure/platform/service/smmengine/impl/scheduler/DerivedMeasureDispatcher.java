@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.scheduler;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.measure.platform.core.data.api.IMeasureReferenceService;
+import org.measure.platform.core.data.entity.MeasureInstance;
+import org.measure.platform.core.data.entity.MeasureReference;
+import org.measure.platform.core.measurement.api.MeasurementStoredEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Execution of the derived measures triggered by their inputs. When a
+ * measurement of a referenced instance is stored, the derived measures
+ * referencing it are executed once no input was stored for a debounce delay :
+ * all the measurements stored meanwhile, typically all the measurements of an
+ * execution of the referenced measures, are coalesced in one execution. Each
+ * stored input postpones the pending execution, up to a maximum wait from the
+ * first input so that inputs changing continuously don't starve it.
+ */
+@Component
+public class DerivedMeasureDispatcher {
+    private final Logger log = LoggerFactory.getLogger(DerivedMeasureDispatcher.class);
+
+    @Value("${measureplatform.scheduler.input-debounce:5000}")
+    private long debounce;
+
+    @Value("${measureplatform.scheduler.input-max-wait:60000}")
+    private long maxWait;
+
+    @Inject
+    private MeasureScheduler measureScheduler;
+
+    @Inject
+    private IMeasureReferenceService measureReferenceService;
+
+    @Inject
+    private MetricRegistry metricRegistry;
+
+    /**
+     * Ids of the derived measure instances triggered by each referenced instance name.
+     */
+    private final Map<String, Set<Long>> dependents = new ConcurrentHashMap<>();
+
+    private final Map<Long, DispatchedMeasure> measures = new ConcurrentHashMap<>();
+
+    private Meter triggers;
+
+    private Meter coalesced;
+
+    @PostConstruct
+    public void initIt() {
+        this.triggers = metricRegistry.meter(MetricRegistry.name(DerivedMeasureDispatcher.class, "triggers"));
+        this.coalesced = metricRegistry.meter(MetricRegistry.name(DerivedMeasureDispatcher.class, "coalesced"));
+    }
+
+    /**
+     * Execute a derived measure instance each time its inputs change. The
+     * referenced instances are read now : the measure is registered again when
+     * its references change.
+     */
+    public void register(MeasureInstance derived, Supplier<CompletionStage<?>> task) {
+        unregister(derived.getId());
+        measures.put(derived.getId(), new DispatchedMeasure(derived.getId(), task));
+        for (MeasureReference reference : measureReferenceService.findByInstance(derived)) {
+            dependents.computeIfAbsent(reference.getReferencedInstance().getInstanceName(), name -> ConcurrentHashMap.newKeySet()).add(derived.getId());
+        }
+    }
+
+    public boolean unregister(Long measureInstanceId) {
+        for (Set<Long> ids : dependents.values()) {
+            ids.remove(measureInstanceId);
+        }
+        return measures.remove(measureInstanceId) != null;
+    }
+
+    public boolean isRegistered(Long measureInstanceId) {
+        return measures.containsKey(measureInstanceId);
+    }
+
+    @EventListener
+    public void onMeasurementStored(MeasurementStoredEvent event) {
+        Set<Long> ids = dependents.get(event.getMeasureInstance());
+        if (ids == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Long id : ids) {
+            DispatchedMeasure measure = measures.get(id);
+            if (measure == null) {
+                continue;
+            }
+            synchronized (measure) {
+                measure.lastInput = now;
+                if (measure.pending) {
+                    // Postpones the pending execution
+                    coalesced.mark();
+                    continue;
+                }
+                measure.pending = true;
+                measure.firstInput = now;
+            }
+            triggers.mark();
+            measureScheduler.schedule(() -> run(measure), debounce);
+        }
+    }
+
+    private void run(DispatchedMeasure measure) {
+        if (measures.get(measure.measureInstanceId) != measure) {
+            // Unregistered meanwhile
+            return;
+        }
+        synchronized (measure) {
+            long due = Math.min(measure.lastInput + debounce, measure.firstInput + maxWait);
+            long delay = due - System.currentTimeMillis();
+            if (delay > 0) {
+                // Inputs stored since the run was planned
+                measureScheduler.schedule(() -> run(measure), delay);
+                return;
+            }
+        }
+        if (!measure.running.compareAndSet(false, true)) {
+            // Previous execution still running, executed again once the inputs are stable
+            measureScheduler.schedule(() -> run(measure), debounce);
+            return;
+        }
+        // The inputs stored from now trigger a new execution
+        synchronized (measure) {
+            measure.pending = false;
+        }
+        CompletionStage<?> execution;
+        try {
+            execution = measure.task.get();
+        } catch (Throwable e) {
+            log.error("Execution of measure instance " + measure.measureInstanceId + " failed", e);
+            measure.running.set(false);
+            return;
+        }
+        execution.whenComplete((result, e) -> {
+            if (e != null) {
+                log.error("Execution of measure instance " + measure.measureInstanceId + " failed", e);
+            }
+            measure.running.set(false);
+        });
+    }
+
+    private static class DispatchedMeasure {
+        private final Long measureInstanceId;
+
+        private final Supplier<CompletionStage<?>> task;
+
+        /**
+         * Whether a run is planned, guarded by the measure as the input dates.
+         */
+        private boolean pending;
+
+        private long firstInput;
+
+        private long lastInput;
+
+        private final AtomicBoolean running = new AtomicBoolean(false);
+
+        DispatchedMeasure(Long measureInstanceId, Supplier<CompletionStage<?>> task) {
+            this.measureInstanceId = measureInstanceId;
+            this.task = task;
+        }
+    }
+
+}
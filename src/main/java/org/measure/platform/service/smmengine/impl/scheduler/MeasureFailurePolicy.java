@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.scheduler;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.measure.platform.restapi.measure.dto.MeasureFailureState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Failure policy of the scheduled measures. After a failure, the executions of
+ * an instance are skipped for an exponential backoff. After too many consecutive
+ * failures its circuit opens and the instance is only probed periodically. Once
+ * the delay is over, a single execution is allowed as a probe until its result
+ * is recorded. The first successful execution returns the instance to its
+ * normal rate. The executions rejected by a full bulkhead are not failures of
+ * the measure and are not counted.
+ */
+@Component
+@Scope("singleton")
+public class MeasureFailurePolicy {
+    private final Logger log = LoggerFactory.getLogger(MeasureFailurePolicy.class);
+
+    @Value("${measureplatform.scheduler.failure.initial-backoff:60000}")
+    private long initialBackoff;
+
+    @Value("${measureplatform.scheduler.failure.max-backoff:3600000}")
+    private long maxBackoff;
+
+    @Value("${measureplatform.scheduler.failure.circuit-threshold:10}")
+    private int circuitThreshold;
+
+    @Value("${measureplatform.scheduler.failure.probe-interval:3600000}")
+    private long probeInterval;
+
+    @Inject
+    private MetricRegistry metricRegistry;
+
+    private final Map<Long, Failures> failures = new ConcurrentHashMap<>();
+
+    private Meter skipped;
+
+    @PostConstruct
+    public void initIt() {
+        this.skipped = metricRegistry.meter(MetricRegistry.name(MeasureFailurePolicy.class, "skipped"));
+        metricRegistry.register(MetricRegistry.name(MeasureFailurePolicy.class, "failing"), (Gauge<Integer>) failures::size);
+        metricRegistry.register(MetricRegistry.name(MeasureFailurePolicy.class, "open"), (Gauge<Long>) () -> failures.values().stream().filter(Failures::isOpen).count());
+    }
+
+    /**
+     * Check whether an execution of the instance may be attempted, without
+     * taking its probe.
+     * @return false if the execution of the instance must be skipped
+     */
+    public boolean canAttempt(Long measureInstanceId) {
+        Failures state = failures.get(measureInstanceId);
+        if (state == null) {
+            return true;
+        }
+        synchronized (state) {
+            if (System.currentTimeMillis() >= state.nextAttempt) {
+                return true;
+            }
+        }
+        skipped.mark();
+        return false;
+    }
+
+    /**
+     * Allow an execution of the instance, taking its probe if it is failing.
+     * To be called once the execution actually starts.
+     * @return false if the execution of the instance must be skipped
+     */
+    public boolean isAllowed(Long measureInstanceId) {
+        Failures state = failures.get(measureInstanceId);
+        if (state == null) {
+            return true;
+        }
+        synchronized (state) {
+            long now = System.currentTimeMillis();
+            if (now >= state.nextAttempt) {
+                // Single probe : the next executions wait for its result, or for another delay if it never comes
+                state.probeStart = now;
+                state.nextAttempt = now + getDelay(state.count);
+                return true;
+            }
+        }
+        skipped.mark();
+        return false;
+    }
+
+    public void recordSuccess(Long measureInstanceId) {
+        Failures state = failures.remove(measureInstanceId);
+        if (state != null) {
+            log.info("Measure instance {} recovered after {} failures", measureInstanceId, state.count);
+        }
+    }
+
+    /**
+     * Record an execution rejected before it ran, the probe it may have been is released.
+     */
+    public void recordRejection(Long measureInstanceId) {
+        Failures state = failures.get(measureInstanceId);
+        if (state != null) {
+            synchronized (state) {
+                if (state.probeStart != 0) {
+                    state.nextAttempt = state.probeStart;
+                    state.probeStart = 0;
+                }
+            }
+        }
+    }
+
+    public void recordFailure(Long measureInstanceId, String message) {
+        Failures state = failures.computeIfAbsent(measureInstanceId, id -> new Failures());
+        synchronized (state) {
+            state.count++;
+            state.lastFailure = message;
+            state.lastFailureDate = System.currentTimeMillis();
+            state.nextAttempt = state.lastFailureDate + getDelay(state.count);
+            state.probeStart = 0;
+        }
+        if (state.count == circuitThreshold) {
+            log.warn("Circuit of measure instance {} opened after {} consecutive failures, probed every {}ms", measureInstanceId, state.count, probeInterval);
+        }
+    }
+
+    /**
+     * Forget the failures of an instance, when it is scheduled or stopped by hand.
+     */
+    public void reset(Long measureInstanceId) {
+        failures.remove(measureInstanceId);
+    }
+
+    public MeasureFailureState getState(Long measureInstanceId) {
+        MeasureFailureState result = new MeasureFailureState();
+        result.setMeasureInstanceId(measureInstanceId);
+        Failures state = failures.get(measureInstanceId);
+        if (state == null) {
+            result.setState(MeasureFailureState.CLOSED);
+            return result;
+        }
+        synchronized (state) {
+            result.setState(state.isOpen() ? MeasureFailureState.OPEN : MeasureFailureState.BACKOFF);
+            result.setConsecutiveFailures(state.count);
+            result.setNextAttempt(new Date(state.nextAttempt));
+            result.setLastFailure(state.lastFailure);
+            result.setLastFailureDate(new Date(state.lastFailureDate));
+        }
+        return result;
+    }
+
+    /**
+     * @return the states of the failing instances
+     */
+    public List<MeasureFailureState> getStates() {
+        List<MeasureFailureState> result = new ArrayList<>();
+        for (Long measureInstanceId : failures.keySet()) {
+            result.add(getState(measureInstanceId));
+        }
+        return result;
+    }
+
+    private long getDelay(int count) {
+        if (count >= circuitThreshold) {
+            return probeInterval;
+        }
+        return Math.min(maxBackoff, initialBackoff << Math.min(count - 1, 30));
+    }
+
+    private class Failures {
+        private int count;
+
+        private String lastFailure;
+
+        private long lastFailureDate;
+
+        private long nextAttempt;
+
+        private long probeStart;
+
+        boolean isOpen() {
+            return count >= circuitThreshold;
+        }
+    }
+
+}
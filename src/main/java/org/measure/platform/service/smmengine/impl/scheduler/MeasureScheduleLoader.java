@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.scheduler;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.measure.platform.core.catalogue.api.IMeasureCatalogueService;
+import org.measure.platform.core.data.api.IMeasureInstanceService;
+import org.measure.platform.core.data.entity.MeasureInstance;
+import org.measure.platform.restapi.measure.dto.MeasureSchedulingProgress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Restores the schedules of the measure instances once the application is
+ * ready, in the background so that the API is served meanwhile. The measure
+ * implementations are resolved in parallel, and the first executions of the
+ * fixed rate measures are spread over their whole period instead of firing
+ * all together.
+ */
+@Component
+@Scope("singleton")
+public class MeasureScheduleLoader implements ApplicationListener<ApplicationReadyEvent> {
+    private final Logger log = LoggerFactory.getLogger(MeasureScheduleLoader.class);
+
+    @Value("${measureplatform.scheduler.warm-start.parallelism:8}")
+    private int parallelism;
+
+    @Inject
+    private SchedulingService schedulingService;
+
+    @Inject
+    private IMeasureInstanceService measureInstanceService;
+
+    @Inject
+    private IMeasureCatalogueService measureCatalogue;
+
+    @Inject
+    private MetricRegistry metricRegistry;
+
+    private final AtomicInteger total = new AtomicInteger();
+
+    private final AtomicInteger scheduled = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private volatile Date startDate;
+
+    private volatile Date endDate;
+
+    @PostConstruct
+    public void initIt() {
+        metricRegistry.register(MetricRegistry.name(MeasureScheduleLoader.class, "total"), (Gauge<Integer>) total::get);
+        metricRegistry.register(MetricRegistry.name(MeasureScheduleLoader.class, "scheduled"), (Gauge<Integer>) scheduled::get);
+        metricRegistry.register(MetricRegistry.name(MeasureScheduleLoader.class, "failed"), (Gauge<Integer>) failed::get);
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        Thread thread = new Thread(() -> {
+            try {
+                load();
+            } catch (RuntimeException e) {
+                log.error("Unable to restore the measure schedules", e);
+            }
+        }, "measure-warm-start");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public MeasureSchedulingProgress getProgress() {
+        MeasureSchedulingProgress progress = new MeasureSchedulingProgress();
+        progress.setTotal(total.get());
+        progress.setScheduled(scheduled.get());
+        progress.setFailed(failed.get());
+        progress.setStartDate(startDate);
+        progress.setEndDate(endDate);
+        progress.setDone(endDate != null);
+        return progress;
+    }
+
+    private void load() {
+        startDate = new Date();
+        List<MeasureInstance> measures = new ArrayList<>();
+        for (MeasureInstance measure : measureInstanceService.findAll()) {
+            if (measure.isIsShedule() != null && measure.isIsShedule()) {
+                measures.add(measure);
+            }
+        }
+        total.set(measures.size());
+        log.info("Restoring the schedules of {} measure instances", measures.size());
+
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService loader = Executors.newFixedThreadPool(Math.max(parallelism, 1), runnable -> {
+            Thread thread = new Thread(runnable, "measure-warm-start-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<CompletableFuture<Void>> loads = new ArrayList<>();
+            for (MeasureInstance measure : measures) {
+                loads.add(CompletableFuture.runAsync(() -> restore(measure), loader));
+            }
+            CompletableFuture.allOf(loads.toArray(new CompletableFuture[loads.size()])).join();
+        } finally {
+            loader.shutdown();
+        }
+
+        endDate = new Date();
+        log.info("Restored the schedules of {} measure instances in {}ms, {} failed", scheduled.get(), endDate.getTime() - startDate.getTime(), failed.get());
+    }
+
+    private void restore(MeasureInstance listed) {
+        try {
+            // Read again, the schedule may have been stopped or changed since the instances were listed
+            MeasureInstance measure = measureInstanceService.findOne(listed.getId());
+            if (measure == null || measure.isIsShedule() == null || !measure.isIsShedule()) {
+                total.decrementAndGet();
+                return;
+            }
+            if (measure.isIsRemote() == null || !measure.isIsRemote()) {
+                // Load the measure package ahead of the first execution
+                String application = measure.getApplication() != null ? measure.getApplication().getApplicationType() : null;
+                measureCatalogue.getMeasureImplementation(application, measure.getMeasureName());
+            }
+            if (schedulingService.restoreMeasure(measure)) {
+                scheduled.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            log.error("Unable to restore the schedule of measure instance " + listed.getInstanceName(), e);
+        }
+        int done = scheduled.get() + failed.get();
+        if (done % 100 == 0) {
+            log.info("Restored {} of {} measure schedules", done, total.get());
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.scheduler;
+
+import java.util.Date;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Scope;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Scheduler of the measure executions. The recurring measures are triggered by
+ * a hashed timing wheel, the one-shot tasks by a timer thread backed by a delay
+ * queue. Both only dispatch the triggered measures to a work-stealing execution
+ * pool, so a slow measure never delays the triggers of the other measures.
+ */
+@Component
+@Scope("singleton")
+public class MeasureScheduler {
+    private final Logger log = LoggerFactory.getLogger(MeasureScheduler.class);
+
+    @Value("${measureplatform.scheduler.pool-size:16}")
+    private int poolSize;
+
+    @Value("${measureplatform.scheduler.max-jitter:30000}")
+    private long maxJitter;
+
+    @Value("${measureplatform.scheduler.tick:100}")
+    private long tickDuration;
+
+    @Value("${measureplatform.scheduler.wheel-size:512}")
+    private int wheelSize;
+
+    @Inject
+    private MetricRegistry metricRegistry;
+
+    private ScheduledThreadPoolExecutor timer;
+
+    private MeasureTimingWheel wheel;
+
+    private ForkJoinPool executionPool;
+
+    private Timer startLag;
+
+    private Meter skippedTicks;
+
+    @PostConstruct
+    public void initIt() {
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "measure-scheduler-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.wheel = new MeasureTimingWheel("measure-scheduler-wheel", tickDuration, wheelSize, this::fire);
+        this.wheel.start();
+
+        this.executionPool = new ForkJoinPool(poolSize, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("measure-execution-" + thread.getPoolIndex());
+            return thread;
+        }, (thread, e) -> log.error("Uncaught error in measure execution", e), true);
+
+        this.startLag = metricRegistry.timer(MetricRegistry.name(MeasureScheduler.class, "start-lag"));
+        this.skippedTicks = metricRegistry.meter(MetricRegistry.name(MeasureScheduler.class, "skipped-ticks"));
+        metricRegistry.register(MetricRegistry.name(MeasureScheduler.class, "pending-triggers"), (Gauge<Integer>) () -> timer.getQueue().size() + wheel.size());
+        metricRegistry.register(MetricRegistry.name(MeasureScheduler.class, "active"), (Gauge<Integer>) executionPool::getActiveThreadCount);
+        metricRegistry.register(MetricRegistry.name(MeasureScheduler.class, "queued"), (Gauge<Integer>) executionPool::getQueuedSubmissionCount);
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        this.timer.shutdownNow();
+        this.wheel.stop();
+        this.executionPool.shutdownNow();
+    }
+
+    /**
+     * Schedule a measure instance at a fixed rate. The first execution is delayed by
+     * a per-instance jitter so that instances sharing the same rate do not fire together.
+     * @param measureInstanceId the id of the scheduled measure instance
+     * @param task starts an execution of the measure and returns its completion
+     * @param period the rate of the measure in milliseconds
+     * @return the handle of the scheduled measure
+     */
+    public ScheduledMeasure scheduleAtFixedRate(Long measureInstanceId, Supplier<CompletionStage<?>> task, long period) {
+        return scheduleAtFixedRate(measureInstanceId, task, period, false);
+    }
+
+    /**
+     * Schedule a measure instance at a fixed rate.
+     * @param spread delay the first execution by up to the whole period instead of the maximum jitter,
+     *        to spread the instances scheduled together at startup
+     */
+    public ScheduledMeasure scheduleAtFixedRate(Long measureInstanceId, Supplier<CompletionStage<?>> task, long period, boolean spread) {
+        long rate = Math.max(period, 1);
+        long jitter = getJitter(measureInstanceId, spread ? rate : Math.min(rate, maxJitter));
+        // The next multiple of the rate after the current time, keeping the phase of the instance
+        ScheduledMeasure scheduled = new ScheduledMeasure(measureInstanceId, task, (planned, now) -> planned + rate * Math.max(1, (now - planned) / rate + 1),
+                System.currentTimeMillis() + jitter);
+        wheel.add(scheduled);
+        return scheduled;
+    }
+
+    /**
+     * Schedule a measure instance on a cron expression, such as "0 15 * * * *" for
+     * every hour at :15 or "0 0 2 * * MON-FRI" for every weekday at 02:00. The
+     * starts are delayed by the same per-instance jitter as the fixed rate measures.
+     * @param expression the cron expression, with seconds, in the time zone of the server
+     * @throws IllegalArgumentException if the expression is not a valid cron expression
+     */
+    public ScheduledMeasure scheduleCron(Long measureInstanceId, Supplier<CompletionStage<?>> task, String expression) {
+        CronSequenceGenerator cron = new CronSequenceGenerator(expression);
+        long jitter = getJitter(measureInstanceId, maxJitter);
+        ScheduledMeasure scheduled = new ScheduledMeasure(measureInstanceId, task, (planned, now) -> cron.next(new Date(Math.max(planned, now) - jitter)).getTime() + jitter,
+                cron.next(new Date()).getTime() + jitter);
+        wheel.add(scheduled);
+        return scheduled;
+    }
+
+    /**
+     * Run a task once on the execution pool after the given delay.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return timer.schedule(() -> executionPool.execute(task), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task on the execution pool as soon as possible.
+     */
+    public void execute(Runnable task) {
+        executionPool.execute(task);
+    }
+
+    public Executor getExecutor() {
+        return executionPool;
+    }
+
+    private void fire(ScheduledMeasure scheduled) {
+        long plannedStart = scheduled.nextPlannedStart();
+        if (!scheduled.tryStart()) {
+            // The previous execution of this measure is still running
+            skippedTicks.mark();
+            log.debug("Skip execution of measure instance {} : previous execution still running", scheduled.getMeasureInstanceId());
+            return;
+        }
+
+        executionPool.execute(() -> {
+            startLag.update(Math.max(0, System.currentTimeMillis() - plannedStart), TimeUnit.MILLISECONDS);
+            CompletionStage<?> execution;
+            try {
+                execution = scheduled.getTask().get();
+            } catch (Throwable e) {
+                log.error("Execution of measure instance " + scheduled.getMeasureInstanceId() + " failed", e);
+                scheduled.finish();
+                return;
+            }
+            // The execution goes on in the bulkhead of the measure, the pool thread is released
+            execution.whenComplete((result, e) -> {
+                if (e != null) {
+                    log.error("Execution of measure instance " + scheduled.getMeasureInstanceId() + " failed", e);
+                }
+                scheduled.finish();
+            });
+        });
+    }
+
+    private static long getJitter(Long measureInstanceId, long bound) {
+        if (bound <= 0 || measureInstanceId == null) {
+            return 0;
+        }
+        // Spread the instances deterministically so the jitter of an instance is stable across restarts
+        long hash = measureInstanceId * 0x9E3779B97F4A7C15L;
+        return Math.floorMod(hash ^ (hash >>> 32), bound);
+    }
+
+}
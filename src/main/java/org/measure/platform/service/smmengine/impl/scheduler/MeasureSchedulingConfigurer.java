@@ -16,11 +16,7 @@
  ******************************************************************************/
 package org.measure.platform.service.smmengine.impl.scheduler;
 
-import javax.inject.Inject;
-
-import org.measure.platform.core.data.api.IMeasureInstanceService;
-import org.measure.platform.core.data.entity.MeasureInstance;
-import org.measure.platform.service.smmengine.api.ISchedulingService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableScheduling;
@@ -31,25 +27,27 @@ import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 @Configuration
 @EnableScheduling
 public class MeasureSchedulingConfigurer implements SchedulingConfigurer {
-    @Inject
-    private ISchedulingService sheduleService;
-
-    @Inject
-    private IMeasureInstanceService measureInstanceService;
+    @Value("${measureplatform.scheduler.task-pool-size:4}")
+    private int taskPoolSize;
 
+    /**
+     * Scheduler of the platform maintenance tasks (@Scheduled). Measure executions
+     * are handled separately by the {@link MeasureScheduler}.
+     */
     @Bean()
     public ThreadPoolTaskScheduler taskScheduler() {
-        return new ThreadPoolTaskScheduler();
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(taskPoolSize);
+        scheduler.setThreadNamePrefix("measure-platform-scheduler-");
+        return scheduler;
     }
 
+    /**
+     * The measure schedules are restored in the background by the {@link MeasureScheduleLoader}.
+     */
     @Override
     public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
         taskRegistrar.setTaskScheduler(taskScheduler());    
-        for(MeasureInstance measure : measureInstanceService.findAll()){
-            if(measure.isIsShedule()!= null && measure.isIsShedule()){
-                sheduleService.scheduleMeasure(measure);
-            }
-        }
     }
 
 }
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel triggering the scheduled measures. A single thread
+ * advances the wheel by one bucket per tick and only visits the measures
+ * hashed to that bucket, so the cost of a tick does not depend on the number
+ * of scheduled measures. A measure planned further than one turn of the wheel
+ * counts down the remaining turns on each visit.
+ */
+class MeasureTimingWheel {
+    private final Logger log = LoggerFactory.getLogger(MeasureTimingWheel.class);
+
+    private final long tickDuration;
+
+    private final List<Deque<ScheduledMeasure>> buckets;
+
+    private final int mask;
+
+    private final Consumer<ScheduledMeasure> expire;
+
+    /**
+     * Measures added or rescheduled, placed in the wheel at the next tick.
+     */
+    private final Queue<ScheduledMeasure> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final Thread worker;
+
+    private volatile boolean running = true;
+
+    private long startTime;
+
+    private long tick;
+
+    /**
+     * @param tickDuration the duration of a tick in milliseconds, the precision of the planned starts
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     * @param expire called from the thread of the wheel on the planned start of a measure
+     */
+    MeasureTimingWheel(String name, long tickDuration, int wheelSize, Consumer<ScheduledMeasure> expire) {
+        this.tickDuration = Math.max(tickDuration, 1);
+        int length = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.buckets = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+        this.mask = length - 1;
+        this.expire = expire;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    void start() {
+        this.startTime = System.currentTimeMillis();
+        worker.start();
+    }
+
+    void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    void add(ScheduledMeasure measure) {
+        size.incrementAndGet();
+        pending.add(measure);
+    }
+
+    /**
+     * @return the number of measures in the wheel, including the cancelled ones not visited yet
+     */
+    int size() {
+        return size.get();
+    }
+
+    private void run() {
+        while (running) {
+            long sleep = startTime + (tick + 1) * tickDuration - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            transferPending();
+            expireBucket(buckets.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        ScheduledMeasure measure;
+        while ((measure = pending.poll()) != null) {
+            if (measure.isCancelled()) {
+                size.decrementAndGet();
+                continue;
+            }
+            // Late measures are expired with the current bucket
+            long ticks = Math.max((measure.getPlannedStart() - startTime) / tickDuration, tick);
+            measure.remainingRounds = (ticks - tick) / buckets.size();
+            buckets.get((int) (ticks & mask)).add(measure);
+        }
+    }
+
+    private void expireBucket(Deque<ScheduledMeasure> bucket) {
+        Iterator<ScheduledMeasure> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            ScheduledMeasure measure = iterator.next();
+            if (measure.isCancelled()) {
+                iterator.remove();
+                size.decrementAndGet();
+            } else if (measure.remainingRounds > 0) {
+                measure.remainingRounds--;
+            } else {
+                iterator.remove();
+                try {
+                    expire.accept(measure);
+                } catch (Throwable e) {
+                    log.error("Unable to trigger measure instance " + measure.getMeasureInstanceId(), e);
+                }
+                pending.add(measure);
+            }
+        }
+    }
+
+}
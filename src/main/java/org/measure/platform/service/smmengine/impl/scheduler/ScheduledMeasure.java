@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.scheduler;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Handle on a measure instance registered in the {@link MeasureScheduler}.
+ * Keeps track of the next planned start of the instance and prevents two
+ * executions of the same instance from overlapping. The task starts an
+ * execution and returns its completion : the instance is running until then.
+ */
+public class ScheduledMeasure {
+
+    /**
+     * Computes the next planned start of a measure, after both its previous
+     * planned start and the current time so that missed starts are skipped.
+     */
+    @FunctionalInterface
+    public interface Schedule {
+        long next(long plannedStart, long now);
+    }
+
+    private final Long measureInstanceId;
+
+    private final Supplier<CompletionStage<?>> task;
+
+    private final Schedule schedule;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private volatile long plannedStart;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Number of turns of the timing wheel before the planned start, only
+     * accessed from the thread of the wheel.
+     */
+    long remainingRounds;
+
+    public ScheduledMeasure(Long measureInstanceId, Supplier<CompletionStage<?>> task, Schedule schedule, long firstStart) {
+        this.measureInstanceId = measureInstanceId;
+        this.task = task;
+        this.schedule = schedule;
+        this.plannedStart = firstStart;
+    }
+
+    public Long getMeasureInstanceId() {
+        return measureInstanceId;
+    }
+
+    public Supplier<CompletionStage<?>> getTask() {
+        return task;
+    }
+
+    public long getPlannedStart() {
+        return plannedStart;
+    }
+
+    /**
+     * Return the start time planned for the current tick and move the plan to the next one.
+     * Only called from the thread of the timing wheel.
+     */
+    long nextPlannedStart() {
+        long planned = plannedStart;
+        plannedStart = schedule.next(planned, System.currentTimeMillis());
+        return planned;
+    }
+
+    boolean tryStart() {
+        return running.compareAndSet(false, true);
+    }
+
+    void finish() {
+        running.set(false);
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+}
@@ -17,10 +17,16 @@
 package org.measure.platform.service.smmengine.impl.scheduler;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -28,25 +34,33 @@ import javax.inject.Inject;
 import org.measure.platform.core.catalogue.api.IMeasureCatalogueService;
 import org.measure.platform.core.data.api.IMeasureInstanceService;
 import org.measure.platform.core.data.api.IMeasurePropertyService;
+import org.measure.platform.core.data.api.MeasureDependencyChangedEvent;
+import org.measure.platform.core.data.api.enumeration.MeasureTriggerMode;
 import org.measure.platform.core.data.entity.MeasureInstance;
 import org.measure.platform.core.data.entity.MeasureProperty;
+import org.measure.platform.restapi.measure.dto.MeasureFailureState;
 import org.measure.platform.service.agent.api.IAgentManager;
 import org.measure.platform.service.smmengine.api.ILoggerService;
 import org.measure.platform.service.smmengine.api.IMeasureExecutionService;
 import org.measure.platform.service.smmengine.api.ISchedulingService;
+import org.measure.platform.service.smmengine.impl.measureexecution.MeasureExecutionBulkheads;
 import org.measure.smm.log.MeasureLog;
+import org.measure.smm.measure.api.IDerivedMeasure;
 import org.measure.smm.measure.api.IMeasure;
 import org.measure.smm.remote.RemoteMeasureInstance;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Scope;
-import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
 
 @Component
 @Scope("singleton")
 public class SchedulingService implements ISchedulingService {
-    @Autowired
-    private TaskScheduler taskScheduler;
+    private final Logger log = LoggerFactory.getLogger(SchedulingService.class);
+
+    @Inject
+    private MeasureScheduler measureScheduler;
 
     @Inject
     private IMeasureExecutionService measureExecutionService;
@@ -66,27 +80,74 @@ public class SchedulingService implements ISchedulingService {
     @Inject
     private ILoggerService logger;
 
-    private Map<String, List<Long>> remotsJobs;
+    @Inject
+    private DerivedMeasureDispatcher dispatcher;
+
+    @Inject
+    private MeasureFailurePolicy failurePolicy;
+
+    @Inject
+    private MeasureExecutionBulkheads bulkheads;
+
+    private Map<String, CopyOnWriteArrayList<Long>> remotsJobs;
 
-    private Map<Long, ScheduledFuture> jobs;
+    private Map<Long, ScheduledMeasure> jobs;
+
+    /**
+     * Serialize the scheduling changes of an instance, the schedules being
+     * restored at startup while the API is served.
+     */
+    private final Object[] locks = new Object[64];
 
     @PostConstruct
     public void doSomething() {
-        this.jobs = new HashMap<>();
-        this.remotsJobs = new HashMap<>();
+        this.jobs = new ConcurrentHashMap<>();
+        this.remotsJobs = new ConcurrentHashMap<>();
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
     }
 
     @Override
     public  Boolean scheduleMeasure(MeasureInstance measure) {
+        synchronized (getLock(measure.getId())) {
+            return doScheduleMeasure(measure, false);
+        }
+    }
+
+    /**
+     * Schedule a measure restored at startup, unless it was scheduled meanwhile.
+     */
+    Boolean restoreMeasure(MeasureInstance measure) {
+        synchronized (getLock(measure.getId())) {
+            if (jobs.containsKey(measure.getId()) || dispatcher.isRegistered(measure.getId()) || isScheduledRemotely(measure.getId())) {
+                return true;
+            }
+            return doScheduleMeasure(measure, true);
+        }
+    }
+
+    /**
+     * @param spread delay the first execution of a fixed rate measure anywhere in its period,
+     *        when all the schedules are restored at once
+     */
+    private Boolean doScheduleMeasure(MeasureInstance measure, boolean spread) {
+        failurePolicy.reset(measure.getId());
+        if (measure.isIsShedule() != null && measure.isIsShedule() && measure.getTriggerMode() == MeasureTriggerMode.INPUT
+                && (measure.isIsRemote() == null || !measure.isIsRemote()) && scheduleInputExecution(measure)) {
+            return true;
+        }
+        boolean cron = CRON_SCHEDULING_UNIT.equals(measure.getSchedulingUnit());
         if (measure.isIsShedule() != null && measure.isIsShedule() && measure.getShedulingExpression() != null
-                && measure.getShedulingExpression().matches("\\d+")) {
+                && (cron || measure.getShedulingExpression().matches("\\d+"))) {
             if (measure.isIsRemote()) {        
-                if(!agentService.isAlive(measure.getRemoteLabel())){
+                // Agents only execute their measures at a fixed rate
+                if(cron || !agentService.isAlive(measure.getRemoteLabel())){
                     return false;
                 }
                 scheduleRemoteMeasure(measure);
             } else {
-                scheduleLocalExecution(measure);
+                return scheduleLocalExecution(measure, spread);
             }
             return true;
         }
@@ -100,6 +161,10 @@ public class SchedulingService implements ISchedulingService {
         List<Long> instances =  this.remotsJobs.get(agentId);
         if(instances != null){
             for (Long instanceId : instances) {
+                if (!failurePolicy.canAttempt(instanceId)) {
+                    // Backed off after a failure
+                    continue;
+                }
                 MeasureInstance instance = measureInstanceService.findOne(instanceId);
                 RemoteMeasureInstance remoteM = new RemoteMeasureInstance();
                 remoteM.setInstanceName(instance.getInstanceName());
@@ -112,7 +177,10 @@ public class SchedulingService implements ISchedulingService {
                     remoteM.getProperties().put(prop.getPropertyName(), prop.getPropertyValue());
                 }
         
-                result.add(remoteM);
+                // The probe of a failing instance is only taken by the poll handing it out
+                if (failurePolicy.isAllowed(instanceId)) {
+                    result.add(remoteM);
+                }
         
             }
         }
@@ -120,48 +188,139 @@ public class SchedulingService implements ISchedulingService {
     }
 
     private void scheduleRemoteMeasure(MeasureInstance measure) {
-        List<Long> measures = this.remotsJobs.get(measure.getRemoteLabel());
-        if (measures == null) {
-            measures = new ArrayList<>();
-            this.remotsJobs.put(measure.getRemoteLabel(), measures);
+        for (Map.Entry<String, CopyOnWriteArrayList<Long>> agentMeasures : this.remotsJobs.entrySet()) {
+            if (!agentMeasures.getKey().equals(measure.getRemoteLabel())) {
+                // Moved to another agent
+                agentMeasures.getValue().remove(measure.getId());
+            }
+        }
+        this.remotsJobs.computeIfAbsent(measure.getRemoteLabel(), agent -> new CopyOnWriteArrayList<>()).addIfAbsent(measure.getId());
+    }
+
+    private boolean isScheduledRemotely(Long measureInstanceId) {
+        for (List<Long> agentMeasures : this.remotsJobs.values()) {
+            if (agentMeasures.contains(measureInstanceId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Object getLock(Long measureInstanceId) {
+        return locks[Math.floorMod(measureInstanceId.hashCode(), locks.length)];
+    }
+
+    private boolean scheduleLocalExecution(MeasureInstance measure, boolean spread) {
+        ScheduledMeasure job;
+        if (CRON_SCHEDULING_UNIT.equals(measure.getSchedulingUnit())) {
+            try {
+                job = measureScheduler.scheduleCron(measure.getId(), createExecution(measure), measure.getShedulingExpression());
+            } catch (IllegalArgumentException e) {
+                log.error("Unable to schedule measure instance " + measure.getInstanceName() + " : " + e.getMessage());
+                return false;
+            }
+        } else {
+            Long rate = Long.valueOf(measure.getShedulingExpression());
+            job = measureScheduler.scheduleAtFixedRate(measure.getId(), createExecution(measure), rate, spread);
+        }
+
+        ScheduledMeasure previous = this.jobs.put(measure.getId(), job);
+        if (previous != null) {
+            previous.cancel();
+        }
+        dispatcher.unregister(measure.getId());
+        return true;
+    }
+
+    /**
+     * Execute a derived measure when its inputs change instead of at a fixed rate.
+     * @return false if the measure is not a derived measure
+     */
+    private boolean scheduleInputExecution(MeasureInstance measure) {
+        if (!(getMeasureImplementation(measure) instanceof IDerivedMeasure)) {
+            return false;
         }
-        measures.add(measure.getId());
+        dispatcher.register(measure, createExecution(measure));
+        ScheduledMeasure previous = this.jobs.remove(measure.getId());
+        if (previous != null) {
+            previous.cancel();
+        }
+        return true;
     }
 
-    private void scheduleLocalExecution(MeasureInstance measure) {
-        Integer rate = Integer.valueOf(measure.getShedulingExpression());
+    /**
+     * @return the task starting an execution of the measure, completed on the thread of its bulkhead.
+     *         An execution rejected by a full bulkhead is skipped without being counted as a failure,
+     *         as is an execution cancelled because the measure was removed.
+     */
+    private Supplier<CompletionStage<?>> createExecution(MeasureInstance measure) {
+        return () -> {
+            if (!failurePolicy.isAllowed(measure.getId())) {
+                return CompletableFuture.completedFuture(null);
+            }
         
+            return measureExecutionService.executeMeasure(measure).handle((executionLog, e) -> {
+                if (e == null) {
+                    logger.addMeasureExecutionLog(executionLog);
+                    registerExecutionResult(measure.getId(), executionLog);
+                    return null;
+                }
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof RejectedExecutionException) {
+                    failurePolicy.recordRejection(measure.getId());
+                    log.warn(cause.getMessage());
+                    return null;
+                }
+                if (cause instanceof CancellationException) {
+                    log.info(cause.getMessage());
+                    return null;
+                }
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            });
+        };
+    }
+
+    private IMeasure getMeasureImplementation(MeasureInstance measure) {
     	String application = null;
 		if(measure.getApplication() != null) {
 			application = measure.getApplication().getApplicationType();
 		}
-        
-        IMeasure measureImpl = measureCatalogue.getMeasureImplementation(application,measure.getMeasureName());
-        
-        ScheduledFuture job = taskScheduler.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
-        
-                MeasureLog log = measureExecutionService.executeMeasure(measure, measureImpl);
-                logger.addMeasureExecutionLog(log);
-        
-                if (!log.isSuccess()) {
-                    removeMeasure(measure.getId());
-                }
-        
-            }
-        }, rate);
-        this.jobs.put(measure.getId(), job);
+        return measureCatalogue.getMeasureImplementation(application,measure.getMeasureName());
+    }
+
+    @Override
+    public void registerExecutionResult(Long measureInstanceId, MeasureLog log) {
+        if (log.isSuccess()) {
+            failurePolicy.recordSuccess(measureInstanceId);
+        } else {
+            failurePolicy.recordFailure(measureInstanceId, log.getExceptionMessage());
+        }
+    }
+
+    @Override
+    public MeasureFailureState getFailureState(Long measureInstanceId) {
+        return failurePolicy.getState(measureInstanceId);
+    }
+
+    @Override
+    public List<MeasureFailureState> getFailureStates() {
+        return failurePolicy.getStates();
     }
 
     @Override
     public Boolean removeMeasure(Long measureInstanceId) {
+        synchronized (getLock(measureInstanceId)) {
+            return doRemoveMeasure(measureInstanceId);
+        }
+    }
+
+    private Boolean doRemoveMeasure(Long measureInstanceId) {
+        failurePolicy.reset(measureInstanceId);
         // Stop Measures executed Localy
-        ScheduledFuture job = jobs.get(measureInstanceId);
+        ScheduledMeasure job = jobs.remove(measureInstanceId);
         if (job != null) {
-            job.cancel(true);
-            this.jobs.remove(measureInstanceId);
-        } else {
+            job.cancel();
+        } else if (!dispatcher.unregister(measureInstanceId)) {
             // Stop Measures executed Remotely
         
             for (List<Long> agentMeasures : this.remotsJobs.values()) {
@@ -171,12 +330,33 @@ public class SchedulingService implements ISchedulingService {
             }
         
         }
+        // Interrupt the local execution in progress
+        bulkheads.cancel(measureInstanceId);
         return true;
     }
 
+    /**
+     * Follow the changes of the references and of the trigger mode of a measure
+     * scheduled locally : a measure executed on input changes is registered
+     * again with its current inputs, a measure whose trigger mode changed moves
+     * between the scheduler and the input dispatcher.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDependencyChanged(MeasureDependencyChangedEvent event) {
+        Long measureInstanceId = event.getMeasureInstanceId();
+        boolean dispatched = dispatcher.isRegistered(measureInstanceId);
+        if (!dispatched && !jobs.containsKey(measureInstanceId)) {
+            return;
+        }
+        MeasureInstance measure = measureInstanceService.findOne(measureInstanceId);
+        if (measure != null && (dispatched || measure.getTriggerMode() == MeasureTriggerMode.INPUT)) {
+            scheduleMeasure(measure);
+        }
+    }
+
     @Override
     public Boolean isShedule(Long measureInstanceId) {
-        if (jobs.containsKey(measureInstanceId)) {
+        if (jobs.containsKey(measureInstanceId) || dispatcher.isRegistered(measureInstanceId)) {
             return true;
         }
         for (String agentId: this.remotsJobs.keySet()) {
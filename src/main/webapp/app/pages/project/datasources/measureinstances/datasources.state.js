@@ -49,6 +49,7 @@
                                 isShedule: null,
                                 shedulingExpression: '3600000',
                                 schedulingUnit: 'h',
+                                triggerMode: 'RATE',
                                 measureType: null,
                                 manageLastMeasurement: null,
                                 id: null,
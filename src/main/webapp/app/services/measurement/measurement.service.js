@@ -19,6 +19,10 @@
 					url : 'api/measurement/find',
 					method : 'POST',
 					isArray : true
+				},'viewsdata' : {
+					url : 'api/measurement/get-views-data',
+					method : 'PUT',
+					isArray : true
 				}
 			});
 	}
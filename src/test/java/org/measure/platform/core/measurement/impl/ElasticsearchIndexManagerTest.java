@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.measure.platform.core.catalogue.api.IMeasureCatalogueService;
+import org.measure.platform.core.data.entity.MeasureInstance;
+import org.measure.smm.measure.model.SMMMeasure;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Creation of the indices of the measure instances.
+ */
+public class ElasticsearchIndexManagerTest {
+
+	@Mock
+	private ElasticConnection connection;
+
+	@Mock
+	private IMeasureCatalogueService measureCatalogue;
+
+	@Mock
+	private MeasurementIndexLayout indexLayout;
+
+	@Mock
+	private MeasurementPartitions partitions;
+
+	@Mock
+	private MeasurementIndexRegistry indexRegistry;
+
+	@Mock
+	private KibanaProvisioningQueue kibanaQueue;
+
+	@InjectMocks
+	private ElasticsearchIndexManager indexManager;
+
+	private MeasureInstance instance;
+
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		SMMMeasure measure = mock(SMMMeasure.class, RETURNS_DEEP_STUBS);
+		when(measure.getUnit().getFields()).thenReturn(new ArrayList<>());
+		when(measureCatalogue.getMeasure(any(), anyString())).thenReturn(measure);
+		when(indexLayout.isShared()).thenReturn(true);
+		when(partitions.getIndices("measure.shared.commits")).thenReturn(Collections.singletonList("measure.shared.commits"));
+
+		instance = new MeasureInstance();
+		instance.setInstanceName("Commits");
+		instance.setMeasureName("Commits");
+	}
+
+	@Test
+	public void sharedIndexCreatedConcurrentlyIsUsed() {
+		// Index exists, template, creation, alias exists, alias creation
+		when(connection.<Object> execute(any())).thenReturn(false).thenReturn(null)
+				.thenThrow(new ElasticsearchStatusException("Elasticsearch exception [type=resource_already_exists_exception, reason=index [measure.shared.commits] already exists]", RestStatus.BAD_REQUEST))
+				.thenReturn(false).thenReturn(null);
+
+		indexManager.createIndexWithMapping(instance);
+
+		verify(connection, times(5)).execute(any());
+		verify(indexRegistry).register("measure.commits");
+		verify(kibanaQueue).createIndexPattern("measure.commits", "postDate");
+	}
+
+	@Test
+	public void sharedIndexCreationFailureAborts() {
+		when(connection.<Object> execute(any())).thenReturn(false).thenReturn(null)
+				.thenThrow(new ElasticsearchStatusException("Elasticsearch exception [type=illegal_argument_exception, reason=invalid settings]", RestStatus.BAD_REQUEST));
+
+		try {
+			indexManager.createIndexWithMapping(instance);
+			fail("The failure of the index creation is expected");
+		} catch (ElasticsearchStatusException e) {
+			verify(indexRegistry, never()).register(anyString());
+			verify(kibanaQueue, never()).createIndexPattern(anyString(), anyString());
+		}
+	}
+
+	@Test
+	public void knownIndexIsNotChecked() {
+		when(indexRegistry.isKnown("measure.commits")).thenReturn(true);
+
+		indexManager.createIndexWithMapping(instance);
+
+		verify(connection, never()).execute(any());
+		verify(kibanaQueue).createIndexPattern("measure.commits", "postDate");
+	}
+
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.measure.smm.measure.api.IMeasurement;
+import org.measure.smm.measure.defaultimpl.measurements.DefaultMeasurement;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Last measurement of the instances, fed by the stored measurements.
+ */
+public class LastMeasurementCacheTest {
+
+	private LastMeasurementCache cache;
+
+	@Before
+	public void setup() {
+		cache = new LastMeasurementCache();
+		ReflectionTestUtils.setField(cache, "maxSize", 10);
+		ReflectionTestUtils.setField(cache, "metricRegistry", new MetricRegistry());
+		ReflectionTestUtils.setField(cache, "hitDecoder", new MeasurementHitDecoder());
+		cache.initIt();
+	}
+
+	@Test
+	public void onlyMoreRecentMeasurementsReplaceTheCachedOne() {
+		cache.offer("commits", measurement(2000, 2));
+		cache.offer("commits", measurement(1000, 1));
+
+		assertThat(cache.get("commits").getValues().get("value")).isEqualTo(2);
+		assertThat(cache.get("unknown")).isNull();
+	}
+
+	@Test
+	public void storedMeasurementsAreCachedAsReadFromElasticsearch() {
+		cache.offer("commits", measurement(1000, 3L));
+
+		IMeasurement cached = cache.get("commits");
+		assertThat(cached.getValues().get("postDate")).isEqualTo("1970-01-01T00:00:01.000Z");
+		assertThat(cached.getValues().get("value")).isEqualTo(3);
+	}
+
+	@Test
+	public void callersGetTheirOwnCopy() {
+		cache.offer("commits", measurement(1000, 1));
+
+		IMeasurement first = cache.get("commits");
+		first.getValues().put("value", 42);
+
+		assertThat(cache.get("commits")).isNotSameAs(first);
+		assertThat(cache.get("commits").getValues().get("value")).isEqualTo(1);
+	}
+
+	private static IMeasurement measurement(long postDate, Object value) {
+		IMeasurement measurement = new DefaultMeasurement();
+		measurement.getValues().put("postDate", new Date(postDate));
+		measurement.getValues().put("value", value);
+		return measurement;
+	}
+
+}
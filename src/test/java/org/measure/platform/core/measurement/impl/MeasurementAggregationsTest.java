@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.measure.platform.restapi.measure.dto.MeasurementAggregationQuery;
+
+/**
+ * Validation of the aggregation queries before they are sent to Elasticsearch.
+ */
+public class MeasurementAggregationsTest {
+
+	@Test
+	public void validQueriesAreAccepted() {
+		MeasurementAggregations.validate(newQuery("1h", MeasurementAggregationQuery.AVG, MeasurementAggregationQuery.PERCENTILES));
+		MeasurementAggregations.validate(newQuery("month", MeasurementAggregationQuery.COUNT));
+		MeasurementAggregations.validate(newQuery("1M", MeasurementAggregationQuery.MAX));
+	}
+
+	@Test
+	public void invalidIntervalsAreRejected() {
+		for (String interval : Arrays.asList("1x", "hourly", "1.5h", "0m", "h")) {
+			assertThatThrownBy(() -> MeasurementAggregations.validate(newQuery(interval, MeasurementAggregationQuery.AVG)))
+					.isInstanceOf(IllegalArgumentException.class).hasMessageContaining("interval");
+		}
+	}
+
+	@Test
+	public void unknownFunctionsAreRejected() {
+		assertThatThrownBy(() -> MeasurementAggregations.validate(newQuery("1h", "median")))
+				.isInstanceOf(IllegalArgumentException.class).hasMessageContaining("median");
+	}
+
+	@Test
+	public void percentsOutOfRangeAreRejected() {
+		MeasurementAggregationQuery query = newQuery("1h", MeasurementAggregationQuery.PERCENTILES);
+		query.setPercents(new double[] { 50, 101 });
+		assertThatThrownBy(() -> MeasurementAggregations.validate(query)).isInstanceOf(IllegalArgumentException.class).hasMessageContaining("101");
+
+		query.setPercents(new double[] { -1 });
+		assertThatThrownBy(() -> MeasurementAggregations.validate(query)).isInstanceOf(IllegalArgumentException.class);
+
+		query.setPercents(new double[] { Double.NaN });
+		assertThatThrownBy(() -> MeasurementAggregations.validate(query)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	private static MeasurementAggregationQuery newQuery(String interval, String... functions) {
+		MeasurementAggregationQuery query = new MeasurementAggregationQuery();
+		query.setMeasureInstance("build-time");
+		query.setInterval(interval);
+		query.setField("value");
+		query.setFunctions(Arrays.asList(functions));
+		return query;
+	}
+
+}
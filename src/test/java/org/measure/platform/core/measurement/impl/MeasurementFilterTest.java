@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.MatchQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryStringQueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.junit.Test;
+
+/**
+ * Filters of the measurements, run by Elasticsearch and evaluated in memory.
+ */
+public class MeasurementFilterTest {
+
+	private static final List<String> EXPRESSIONS = Arrays.asList("value:5", "value:[1 TO 5}", "value:{5 TO 10]", "value:>4 AND ok:true",
+			"build.duration:<=12", "stats.count:3", "runs.time:9", "runs.time:[5 TO 10]", "tags:2", "_exists_:build.duration",
+			"name.keyword:*", "value:1 OR value:5", "NOT ok:false", "value:5 -ok:true", "+value:5 build.duration:1",
+			"(value:1 OR build.duration:12) AND _exists_:name", "_exists_:missing OR value:<0");
+
+	@Test
+	public void clausesAreCompiledToQueries() {
+		MeasurementFilter term = MeasurementFilter.compile("value:5");
+		assertThat(term.toQuery()).isInstanceOf(MatchQueryBuilder.class);
+		assertThat(term.isEvaluable()).isTrue();
+
+		RangeQueryBuilder range = (RangeQueryBuilder) MeasurementFilter.compile("value:[1 TO 5}").toQuery();
+		assertThat(range.fieldName()).isEqualTo("value");
+		assertThat(range.from()).isEqualTo("1");
+		assertThat(range.to()).isEqualTo("5");
+		assertThat(range.includeLower()).isTrue();
+		assertThat(range.includeUpper()).isFalse();
+
+		ExistsQueryBuilder exists = (ExistsQueryBuilder) MeasurementFilter.compile("_exists_:build.duration").toQuery();
+		assertThat(exists.fieldName()).isEqualTo("build.duration");
+
+		BoolQueryBuilder bool = (BoolQueryBuilder) MeasurementFilter.compile("value:5 AND NOT ok:false").toQuery();
+		assertThat(bool.filter()).hasSize(1);
+		assertThat(bool.mustNot()).hasSize(1);
+		assertThat(bool.should()).isEmpty();
+	}
+
+	@Test
+	public void wildcardsAreRunAsQueryStrings() {
+		MeasurementFilter wildcard = MeasurementFilter.compile("value:5 AND name:Ap*");
+		assertThat(wildcard.isEvaluable()).isFalse();
+		assertThat(wildcard.evaluate(new HashMap<>())).isNull();
+
+		BoolQueryBuilder bool = (BoolQueryBuilder) wildcard.toQuery();
+		assertThat(bool.filter()).hasSize(2);
+		assertThat(((QueryStringQueryBuilder) bool.filter().get(1)).queryString()).isEqualTo("name:Ap*");
+	}
+
+	@Test
+	public void unsupportedSyntaxFallsBackToQueryString() {
+		for (String expression : Arrays.asList("api", "na*:api", "_exists_:na*", "name:api~2", "name:/ap.*/", "value:5^2")) {
+			MeasurementFilter filter = MeasurementFilter.compile(expression);
+			assertThat(filter.isEvaluable()).isFalse();
+			assertThat(((QueryStringQueryBuilder) filter.toQuery()).queryString()).isEqualTo(expression);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidExpressionIsRejected() {
+		MeasurementFilter.compile("(value:[1 TO 5");
+	}
+
+	@Test
+	public void mixedConjunctionsAreRunAsQueryStrings() {
+		// The classic query parser gives its own meaning to a AND b OR c, left to Elasticsearch
+		for (String expression : Arrays.asList("value:5 AND ok:true OR value:1", "value:1 OR value:5 AND ok:true", "value:5 && ok:true || value:1")) {
+			MeasurementFilter filter = MeasurementFilter.compile(expression);
+			assertThat(filter.isEvaluable()).as(expression).isFalse();
+			assertThat(((QueryStringQueryBuilder) filter.toQuery()).queryString()).isEqualTo(expression);
+		}
+		assertThat(MeasurementFilter.compile("(value:5 AND ok:true) OR value:1").isEvaluable()).isTrue();
+	}
+
+	@Test
+	public void compiledFiltersAreCached() {
+		MeasurementFilterCache cache = new MeasurementFilterCache(2);
+		MeasurementFilter first = cache.compile("value:[10 TO 20]");
+		MeasurementFilter second = cache.compile("value:5");
+		assertThat(cache.compile("value:[10 TO 20]")).isSameAs(first);
+
+		// The least recently used filter is evicted
+		cache.compile("ok:true");
+		assertThat(cache.compile("value:[10 TO 20]")).isSameAs(first);
+		assertThat(cache.compile("value:5")).isNotSameAs(second);
+	}
+
+	@Test
+	public void fieldsAreReadAsElasticsearchReadsThem() {
+		Map<String, Object> document = document();
+		assertThat(MeasurementFilter.compile("build.duration:12").evaluate(document)).isTrue();
+		assertThat(MeasurementFilter.compile("stats.count:3").evaluate(document)).isTrue();
+		assertThat(MeasurementFilter.compile("runs.time:9").evaluate(document)).isTrue();
+		assertThat(MeasurementFilter.compile("runs.time:5").evaluate(document)).isFalse();
+		assertThat(MeasurementFilter.compile("tags:2").evaluate(document)).isTrue();
+		assertThat(MeasurementFilter.compile("_exists_:name.keyword").evaluate(document)).isTrue();
+		assertThat(MeasurementFilter.compile("_exists_:missing").evaluate(document)).isFalse();
+	}
+
+	@Test
+	public void evaluationAgreesWithQuery() {
+		List<Map<String, Object>> documents = Arrays.asList(document(), new HashMap<>(), other());
+		for (String expression : EXPRESSIONS) {
+			MeasurementFilter filter = MeasurementFilter.compile(expression);
+			assertThat(filter.isEvaluable()).as(expression).isTrue();
+			for (Map<String, Object> document : documents) {
+				Boolean evaluated = filter.evaluate(document);
+				Boolean queried = matches(filter.toQuery(), index(document));
+				if (evaluated != null && queried != null) {
+					assertThat(evaluated).as(expression + " on " + document).isEqualTo(queried);
+				}
+			}
+		}
+	}
+
+	private static Map<String, Object> document() {
+		Map<String, Object> build = new HashMap<>();
+		build.put("duration", 12);
+		Map<String, Object> first = new HashMap<>();
+		first.put("time", 4);
+		Map<String, Object> second = new HashMap<>();
+		second.put("time", 9);
+
+		Map<String, Object> document = new HashMap<>();
+		document.put("value", 5);
+		document.put("ok", true);
+		document.put("name", "Api");
+		document.put("build", build);
+		document.put("stats.count", 3);
+		document.put("runs", Arrays.asList(first, second));
+		document.put("tags", Arrays.asList(1, 2));
+		return document;
+	}
+
+	private static Map<String, Object> other() {
+		Map<String, Object> document = new HashMap<>();
+		document.put("value", 10);
+		document.put("ok", false);
+		document.put("build", new HashMap<>());
+		document.put("tags", new ArrayList<>());
+		document.put("missing", null);
+		return document;
+	}
+
+	/**
+	 * The values of the fields as indexed by Elasticsearch with a dynamic
+	 * mapping : the objects are flattened and the text fields have a keyword
+	 * sub-field.
+	 */
+	private static Map<String, List<Object>> index(Map<String, Object> document) {
+		Map<String, List<Object>> fields = new HashMap<>();
+		for (Map.Entry<String, Object> entry : document.entrySet()) {
+			index(fields, entry.getKey(), entry.getValue());
+		}
+		return fields;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void index(Map<String, List<Object>> fields, String field, Object value) {
+		if (value instanceof Map) {
+			for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+				index(fields, field + "." + entry.getKey(), entry.getValue());
+			}
+		} else if (value instanceof Collection) {
+			for (Object element : (Collection<?>) value) {
+				index(fields, field, element);
+			}
+		} else if (value != null) {
+			fields.computeIfAbsent(field, name -> new ArrayList<>()).add(value);
+			if (value instanceof String) {
+				fields.computeIfAbsent(field + ".keyword", name -> new ArrayList<>()).add(value);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the indexed fields match the query, null for the text queries
+	 */
+	private static Boolean matches(QueryBuilder query, Map<String, List<Object>> fields) {
+		if (query instanceof BoolQueryBuilder) {
+			BoolQueryBuilder bool = (BoolQueryBuilder) query;
+			Boolean result = true;
+			for (QueryBuilder clause : bool.filter()) {
+				result = and(result, matches(clause, fields));
+			}
+			for (QueryBuilder clause : bool.mustNot()) {
+				Boolean excluded = matches(clause, fields);
+				result = and(result, excluded != null ? !excluded : null);
+			}
+			if (!bool.should().isEmpty() && bool.minimumShouldMatch() != null) {
+				Boolean any = false;
+				for (QueryBuilder clause : bool.should()) {
+					Boolean matched = matches(clause, fields);
+					any = matched == null ? (any == Boolean.TRUE ? true : null) : (matched ? Boolean.TRUE : any);
+				}
+				result = and(result, any);
+			}
+			return result;
+		} else if (query instanceof ExistsQueryBuilder) {
+			return fields.containsKey(((ExistsQueryBuilder) query).fieldName());
+		} else if (query instanceof MatchQueryBuilder) {
+			MatchQueryBuilder match = (MatchQueryBuilder) query;
+			String text = String.valueOf(match.value());
+			for (Object value : fields.getOrDefault(match.fieldName(), new ArrayList<>())) {
+				if (value instanceof String) {
+					return null;
+				} else if (value instanceof Number && Double.parseDouble(text) == ((Number) value).doubleValue() || value.toString().equals(text)) {
+					return true;
+				}
+			}
+			return false;
+		} else if (query instanceof RangeQueryBuilder) {
+			RangeQueryBuilder range = (RangeQueryBuilder) query;
+			for (Object value : fields.getOrDefault(range.fieldName(), new ArrayList<>())) {
+				double number = ((Number) value).doubleValue();
+				boolean above = range.from() == null || (range.includeLower() ? number >= Double.parseDouble((String) range.from()) : number > Double.parseDouble((String) range.from()));
+				boolean below = range.to() == null || (range.includeUpper() ? number <= Double.parseDouble((String) range.to()) : number < Double.parseDouble((String) range.to()));
+				if (above && below) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return null;
+	}
+
+	private static Boolean and(Boolean left, Boolean right) {
+		if (Boolean.FALSE.equals(left) || Boolean.FALSE.equals(right)) {
+			return false;
+		}
+		return left != null && right != null ? true : null;
+	}
+
+}
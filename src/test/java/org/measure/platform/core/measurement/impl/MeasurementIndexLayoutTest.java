@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.junit.Before;
+import org.junit.Test;
+import org.measure.platform.core.measurement.impl.MeasurementIndexLayout.IndexTarget;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Resolution of the write targets of the measure instances from their aliases.
+ */
+public class MeasurementIndexLayoutTest {
+
+	@Mock
+	private ElasticConnection connection;
+
+	@InjectMocks
+	private MeasurementIndexLayout layout;
+
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(layout, "layout", MeasurementIndexLayout.MEASURE_LAYOUT);
+		ReflectionTestUtils.setField(layout, "partitioning", MeasurementIndexLayout.MONTHLY_PARTITIONING);
+	}
+
+	@Test
+	public void instanceWithoutAliasHasItsOwnIndex() {
+		when(connection.execute(any())).thenReturn(aliases(Collections.emptyMap()));
+
+		IndexTarget target = layout.getWriteTarget("Commits");
+
+		assertThat(target.getIndex()).isEqualTo("measure.commits");
+		assertThat(target.isShared()).isFalse();
+		assertThat(target.isPartitioned()).isFalse();
+		assertThat(target.getWriteIndex(0)).isEqualTo("measure.commits");
+	}
+
+	@Test
+	public void sharedInstanceIsRoutedByItsName() {
+		when(connection.execute(any())).thenReturn(aliases(Collections.singletonMap("measure.shared.git.p-2026.10", Collections.singleton(alias(true)))));
+
+		IndexTarget target = layout.getWriteTarget("Commits");
+
+		assertThat(target.getIndex()).isEqualTo("measure.shared.git");
+		assertThat(target.isShared()).isTrue();
+		assertThat(target.getRouting()).isEqualTo("Commits");
+		assertThat(target.isPartitioned()).isTrue();
+	}
+
+	@Test
+	public void sharedRequestCarriesTheInstanceAndThePartition() {
+		when(connection.execute(any())).thenReturn(aliases(Collections.singletonMap("measure.shared.git.p-2026.09", Collections.singleton(alias(true)))));
+		Map<String, Object> values = new HashMap<>();
+		values.put("postDate", new Date(1790000000000L));
+		values.put("value", 3);
+
+		IndexRequest request = layout.getWriteTarget("Commits").newIndexRequest("Commits", values);
+
+		assertThat(request.index()).isEqualTo("measure.shared.git.p-2026.09");
+		assertThat(request.routing()).isEqualTo("Commits");
+		assertThat(request.sourceAsMap()).containsEntry(IndexFormat.INSTANCE_FIELD, "Commits").containsEntry("value", 3);
+		assertThat(values).doesNotContainKey(IndexFormat.INSTANCE_FIELD);
+	}
+
+	@Test
+	public void resolvedTargetIsCached() {
+		when(connection.execute(any())).thenReturn(aliases(Collections.emptyMap()));
+
+		layout.getWriteTarget("Commits");
+		layout.getWriteTarget("Commits");
+
+		verify(connection, times(1)).execute(any());
+	}
+
+	@Test
+	public void unavailableClusterIsReportedAndNotCached() {
+		when(connection.execute(any())).thenThrow(new ElasticsearchException("Elasticsearch request failed")).thenReturn(aliases(Collections.emptyMap()));
+
+		try {
+			layout.getWriteTarget("Commits");
+			fail("The target of an instance can't be resolved without the cluster");
+		} catch (ElasticsearchException e) {
+			// Expected, the measurement is spooled
+		}
+
+		assertThat(layout.getWriteTarget("Commits").getIndex()).isEqualTo("measure.commits");
+	}
+
+	private static GetAliasesResponse aliases(Map<String, Set<AliasMetaData>> aliases) {
+		GetAliasesResponse response = mock(GetAliasesResponse.class);
+		when(response.getAliases()).thenReturn(aliases);
+		return response;
+	}
+
+	private static AliasMetaData alias(boolean filtered) {
+		AliasMetaData alias = mock(AliasMetaData.class);
+		when(alias.filteringRequired()).thenReturn(filtered);
+		return alias;
+	}
+
+}
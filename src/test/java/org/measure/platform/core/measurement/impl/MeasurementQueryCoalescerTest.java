@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.measure.smm.measure.api.IMeasurement;
+import org.measure.smm.measure.defaultimpl.measurements.DefaultMeasurement;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Coalescing of the identical measurement lookups.
+ */
+public class MeasurementQueryCoalescerTest {
+
+	private MeasurementQueryCoalescer coalescer;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		coalescer = new MeasurementQueryCoalescer();
+		ReflectionTestUtils.setField(coalescer, "ttl", 200L);
+		ReflectionTestUtils.setField(coalescer, "metricRegistry", new MetricRegistry());
+		coalescer.initIt();
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void cleanUp() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void lookupInFlightIsShared() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger loads = new AtomicInteger();
+		Future<List<IMeasurement>> first = executor.submit(() -> coalescer.get("commits", 10, null, () -> {
+			loads.incrementAndGet();
+			started.countDown();
+			await(release);
+			return measurements(1);
+		}));
+		started.await(5, TimeUnit.SECONDS);
+
+		Thread releaser = new Thread(() -> {
+			sleep(50);
+			release.countDown();
+		});
+		releaser.start();
+		List<IMeasurement> second = coalescer.get("commits", 10, null, counting(loads));
+
+		assertThat(second).hasSize(1);
+		assertThat(first.get(5, TimeUnit.SECONDS)).hasSize(1);
+		assertThat(loads.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void timeToLiveStartsWhenTheLookupCompletes() {
+		AtomicInteger loads = new AtomicInteger();
+		coalescer.get("commits", 10, null, () -> {
+			loads.incrementAndGet();
+			// Slower than the time to live
+			sleep(300);
+			return measurements(1);
+		});
+		coalescer.get("commits", 10, null, counting(loads));
+		assertThat(loads.get()).isEqualTo(1);
+
+		sleep(300);
+		coalescer.get("commits", 10, null, counting(loads));
+		assertThat(loads.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void distinctLookupsAreNotShared() {
+		AtomicInteger loads = new AtomicInteger();
+		coalescer.get("commits", 10, null, counting(loads));
+		coalescer.get("commits", 5, null, counting(loads));
+		coalescer.get("commits", 10, "author:bob", counting(loads));
+		coalescer.get("issues", 10, null, counting(loads));
+		assertThat(loads.get()).isEqualTo(4);
+	}
+
+	@Test
+	public void newMeasurementInvalidatesTheLookups() {
+		AtomicInteger loads = new AtomicInteger();
+		coalescer.get("commits", 10, null, counting(loads));
+		coalescer.invalidate("commits");
+		coalescer.get("commits", 10, null, counting(loads));
+		assertThat(loads.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void resultsAreCopies() {
+		List<IMeasurement> first = coalescer.get("commits", 10, null, () -> measurements(2));
+		first.clear();
+		assertThat(coalescer.get("commits", 10, null, () -> measurements(3))).hasSize(2);
+	}
+
+	@Test
+	public void callersGetDistinctMeasurements() {
+		List<IMeasurement> first = coalescer.get("commits", 10, null, () -> measurements(1));
+		List<IMeasurement> second = coalescer.get("commits", 10, null, () -> measurements(3));
+
+		assertThat(second).hasSize(1);
+		assertThat(second.get(0)).isNotSameAs(first.get(0));
+		first.get(0).getValues().put("value", 42);
+		assertThat(second.get(0).getValues().get("value")).isEqualTo(0);
+		assertThat(coalescer.get("commits", 10, null, () -> measurements(3)).get(0).getValues().get("value")).isEqualTo(0);
+	}
+
+	@Test
+	public void failedLookupIsRetried() {
+		try {
+			coalescer.get("commits", 10, null, () -> {
+				throw new IllegalStateException("unavailable");
+			});
+			fail("The failure of the lookup is expected");
+		} catch (IllegalStateException e) {
+			assertThat(e.getMessage()).isEqualTo("unavailable");
+		}
+		assertThat(coalescer.get("commits", 10, null, () -> measurements(1))).hasSize(1);
+	}
+
+	@Test
+	public void waitersAreReleasedWhenTheLookupFailsWithAnError() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Future<?> first = executor.submit(() -> coalescer.get("commits", 10, null, () -> {
+			started.countDown();
+			await(release);
+			throw new AssertionError("broken measure");
+		}));
+		started.await(5, TimeUnit.SECONDS);
+
+		Thread releaser = new Thread(() -> {
+			sleep(50);
+			release.countDown();
+		});
+		releaser.start();
+		try {
+			coalescer.get("commits", 10, null, () -> measurements(1));
+			fail("The failure of the shared lookup is expected");
+		} catch (AssertionError e) {
+			assertThat(e.getMessage()).isEqualTo("broken measure");
+		}
+		try {
+			first.get(5, TimeUnit.SECONDS);
+			fail("The failure of the lookup is expected");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause()).isInstanceOf(AssertionError.class);
+		}
+		assertThat(coalescer.get("commits", 10, null, () -> measurements(1))).hasSize(1);
+	}
+
+	private static Supplier<List<IMeasurement>> counting(AtomicInteger loads) {
+		return () -> {
+			loads.incrementAndGet();
+			return measurements(1);
+		};
+	}
+
+	private static List<IMeasurement> measurements(int count) {
+		List<IMeasurement> measurements = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			DefaultMeasurement measurement = new DefaultMeasurement();
+			measurement.addValue("value", i);
+			measurements.add(measurement);
+		}
+		return measurements;
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.core.measurement.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.measure.smm.measure.api.IMeasurement;
+import org.measure.smm.measure.defaultimpl.measurements.DefaultMeasurement;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Windows of the latest measurements of the instances.
+ */
+public class MeasurementWindowCacheTest {
+
+	private MeasurementWindowCache cache;
+
+	@Before
+	public void setup() {
+		cache = new MeasurementWindowCache();
+		ReflectionTestUtils.setField(cache, "maxSize", 10);
+		ReflectionTestUtils.setField(cache, "metricRegistry", new MetricRegistry());
+		ReflectionTestUtils.setField(cache, "hitDecoder", new MeasurementHitDecoder());
+		cache.initIt();
+	}
+
+	@Test
+	public void windowIsLoadedOnceThenFedByTheStoredMeasurements() {
+		AtomicInteger loads = new AtomicInteger();
+		cache.getLatest("commits", 3, size -> {
+			loads.incrementAndGet();
+			return Arrays.asList(measurement(2000, 2), measurement(1000, 1));
+		});
+		cache.offer("commits", measurement(3000, 3));
+
+		List<IMeasurement> latest = cache.getLatest("commits", 3, size -> {
+			loads.incrementAndGet();
+			return Collections.emptyList();
+		});
+
+		assertThat(loads.get()).isEqualTo(1);
+		assertThat(values(latest)).containsExactly(3, 2, 1);
+	}
+
+	@Test
+	public void loadedMeasurementsAreSortedLatestFirst() {
+		List<IMeasurement> latest = cache.getLatest("commits", 2, size -> Arrays.asList(measurement(1000, 1), measurement(3000, 3), measurement(2000, 2)));
+
+		assertThat(values(latest)).containsExactly(3, 2);
+	}
+
+	@Test
+	public void measurementStoredWhileLoadingIsNotDuplicated() {
+		List<IMeasurement> latest = cache.getLatest("commits", 5, size -> {
+			// Stored while the window is loaded : an Integer in memory, read back as a Long and a string date
+			cache.offer("commits", measurement(3000, 3));
+			IMeasurement stored = new DefaultMeasurement();
+			stored.getValues().put("postDate", "1970-01-01T00:00:03.000Z");
+			stored.getValues().put("value", 3L);
+			IMeasurement ratio = new DefaultMeasurement();
+			ratio.getValues().put("postDate", "1970-01-01T00:00:02.000Z");
+			ratio.getValues().put("value", 2.0d);
+			return Arrays.asList(stored, ratio);
+		});
+
+		assertThat(latest).hasSize(2);
+	}
+
+	@Test
+	public void numbersOfDifferentTypesAreDifferentWhenTheirValuesDiffer() {
+		cache.getLatest("commits", 5, size -> Collections.singletonList(measurement(1000, 1)));
+		IMeasurement other = new DefaultMeasurement();
+		other.getValues().put("postDate", new Date(1000));
+		other.getValues().put("value", 1.5d);
+		cache.offer("commits", other);
+
+		assertThat(cache.getLatest("commits", 5, size -> Collections.emptyList())).hasSize(2);
+	}
+
+	@Test
+	public void storedMeasurementsAreCachedAsReadFromElasticsearch() {
+		cache.getLatest("commits", 5, size -> Collections.emptyList());
+		IMeasurement stored = new DefaultMeasurement();
+		stored.getValues().put("postDate", new Date(1000));
+		stored.getValues().put("value", 3L);
+		stored.getValues().put("ratio", 0.5f);
+		cache.offer("commits", stored);
+
+		Map<String, Object> values = cache.getLatest("commits", 5, size -> Collections.emptyList()).get(0).getValues();
+		assertThat(values.get("postDate")).isEqualTo("1970-01-01T00:00:01.000Z");
+		assertThat(values.get("value")).isEqualTo(3);
+		assertThat(values.get("ratio")).isEqualTo(0.5d);
+	}
+
+	@Test
+	public void cachedMeasurementsCantBeAlteredByTheCallers() {
+		cache.getLatest("commits", 2, size -> Collections.singletonList(measurement(1000, 1)));
+
+		cache.getLatest("commits", 2, size -> Collections.emptyList()).get(0).getValues().put("value", 42);
+		cache.findLatest("commits", 2, values -> true).get(0).getValues().put("value", 43);
+
+		assertThat(values(cache.getLatest("commits", 2, size -> Collections.emptyList()))).containsExactly(1);
+	}
+
+	@Test
+	public void findLatestFiltersTheWindow() {
+		cache.getLatest("commits", 10, size -> Arrays.asList(measurement(3000, 3), measurement(2000, 2), measurement(1000, 1)));
+
+		List<IMeasurement> odd = cache.findLatest("commits", 5, values -> ((Integer) values.get("value")) % 2 == 1);
+
+		assertThat(values(odd)).containsExactly(3, 1);
+	}
+
+	@Test
+	public void findLatestIsUnknownWhenTheWindowIsFull() {
+		cache.getLatest("commits", 2, size -> Arrays.asList(measurement(3000, 3), measurement(2000, 2)));
+
+		assertThat(cache.findLatest("commits", 5, values -> ((Integer) values.get("value")) % 2 == 1)).isNull();
+		assertThat(cache.findLatest("commits", 5, values -> null)).isNull();
+		assertThat(cache.findLatest("unknown", 5, values -> true)).isNull();
+	}
+
+	private static IMeasurement measurement(long postDate, int value) {
+		IMeasurement measurement = new DefaultMeasurement();
+		measurement.getValues().put("postDate", new Date(postDate));
+		measurement.getValues().put("value", value);
+		return measurement;
+	}
+
+	private static List<Object> values(List<IMeasurement> measurements) {
+		List<Object> values = new ArrayList<>();
+		for (IMeasurement measurement : measurements) {
+			values.add(measurement.getValues().get("value"));
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.restapi.entitys;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.measure.platform.core.data.api.IMeasureInstanceService;
+import org.measure.platform.core.data.api.INotificationService;
+import org.measure.platform.core.data.entity.MeasureInstance;
+import org.measure.platform.core.measurement.api.IElasticsearchIndexManager;
+import org.measure.platform.service.analysis.api.IAlertEngineService;
+import org.measure.platform.service.smmengine.api.ISchedulingService;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+/**
+ * Creation of scheduled measure instances through {@link MeasureInstanceResource}.
+ */
+public class MeasureInstanceResourceTest {
+
+    @Mock
+    private IAlertEngineService alertEngineService;
+
+    @Mock
+    private IMeasureInstanceService measureInstanceService;
+
+    @Mock
+    private ISchedulingService shedulingService;
+
+    @Mock
+    private INotificationService notificationService;
+
+    @Mock
+    private IElasticsearchIndexManager indexManager;
+
+    @InjectMocks
+    private MeasureInstanceResource resource;
+
+    private MockMvc mockMvc;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        when(measureInstanceService.save(any(MeasureInstance.class))).thenAnswer(invocation -> {
+            MeasureInstance instance = (MeasureInstance) invocation.getArguments()[0];
+            instance.setId(42L);
+            return instance;
+        });
+        mockMvc = MockMvcBuilders.standaloneSetup(resource).build();
+    }
+
+    @Test
+    public void createCronScheduledInstance() throws Exception {
+        mockMvc.perform(post("/api/measure-instances")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(instance("cron", "0 0/15 * * * MON-FRI")))
+                .andExpect(status().isCreated())
+                .andExpect(header().string("Location", "/api/measure-instances/42"))
+                .andExpect(jsonPath("$.schedulingUnit").value("cron"))
+                .andExpect(jsonPath("$.shedulingExpression").value("0 0/15 * * * MON-FRI"));
+
+        verify(measureInstanceService).save(any(MeasureInstance.class));
+    }
+
+    @Test
+    public void createIntervalScheduledInstance() throws Exception {
+        mockMvc.perform(post("/api/measure-instances")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(instance("m", "30")))
+                .andExpect(status().isCreated());
+    }
+
+    @Test
+    public void rejectInvalidCronExpression() throws Exception {
+        mockMvc.perform(post("/api/measure-instances")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(instance("cron", "every quarter")))
+                .andExpect(status().isBadRequest())
+                .andExpect(header().string("X-measurePlatformApp-params", "measureInstance"));
+
+        verify(measureInstanceService, never()).save(any(MeasureInstance.class));
+    }
+
+    @Test
+    public void rejectInvalidInterval() throws Exception {
+        mockMvc.perform(post("/api/measure-instances")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(instance("m", "0 0/15 * * * *")))
+                .andExpect(status().isBadRequest());
+
+        verify(measureInstanceService, never()).save(any(MeasureInstance.class));
+    }
+
+    private static String instance(String unit, String expression) {
+        return "{\"instanceName\":\"cron-instance\",\"measureName\":\"GitCommits\",\"measureVersion\":\"1.0.0\","
+                + "\"isShedule\":true,\"schedulingUnit\":\"" + unit + "\",\"shedulingExpression\":\"" + expression + "\","
+                + "\"project\":{\"id\":1}}";
+    }
+
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.restapi.measure;
+
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.measure.platform.core.data.api.IMeasureInstanceService;
+import org.measure.platform.service.analysis.api.IAlertEngineService;
+import org.measure.platform.service.smmengine.api.ILoggerService;
+import org.measure.platform.service.smmengine.api.IMeasureExecutionPlanner;
+import org.measure.platform.service.smmengine.api.IMeasureExecutionService;
+import org.measure.platform.service.smmengine.api.ISchedulingService;
+import org.measure.platform.service.smmengine.impl.scheduler.MeasureScheduleLoader;
+import org.measure.smm.log.MeasureLog;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+/**
+ * Execution of the measures of a project through {@link MeasureExecutionResource}.
+ */
+public class MeasureExecutionResourceTest {
+
+    @Mock
+    private IMeasureExecutionService measureExecutionService;
+
+    @Mock
+    private ISchedulingService shedulingService;
+
+    @Mock
+    private IMeasureInstanceService instanceService;
+
+    @Mock
+    private IAlertEngineService alertEngineService;
+
+    @Mock
+    private ILoggerService logger;
+
+    @Mock
+    private IMeasureExecutionPlanner executionPlanner;
+
+    @Mock
+    private MeasureScheduleLoader scheduleLoader;
+
+    @InjectMocks
+    private MeasureExecutionResource resource;
+
+    private MockMvc mockMvc;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        mockMvc = MockMvcBuilders.standaloneSetup(resource).build();
+    }
+
+    @Test
+    public void executeProject() throws Exception {
+        MeasureLog log = new MeasureLog();
+        log.setMeasureInstanceName("Commits");
+        log.setSuccess(true);
+        when(executionPlanner.executeProject(7L)).thenReturn(Collections.singletonList(log));
+
+        mockMvc.perform(get("/api/measure-instance/sheduling/execute-project").param("id", "7"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].measureInstanceName").value("Commits"));
+    }
+
+    @Test
+    public void rejectProjectWithCyclicReferences() throws Exception {
+        when(executionPlanner.executeProject(7L)).thenThrow(new IllegalStateException("The measure references contain a cycle"));
+
+        mockMvc.perform(get("/api/measure-instance/sheduling/execute-project").param("id", "7"))
+                .andExpect(status().isBadRequest())
+                .andExpect(header().string("X-measurePlatformApp-error", "The measure references contain a cycle"))
+                .andExpect(header().string("X-measurePlatformApp-params", "measureReference"));
+    }
+
+}
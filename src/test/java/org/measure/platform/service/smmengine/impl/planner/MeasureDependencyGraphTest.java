@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.planner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class MeasureDependencyGraphTest {
+
+    @Test
+    public void topologicalOrderPlacesInputsFirst() {
+        MeasureDependencyGraph graph = new MeasureDependencyGraph();
+        graph.addEdge(2L, 3L);
+        graph.addEdge(1L, 2L);
+        graph.addEdge(1L, 3L);
+        graph.addNode(4L);
+
+        List<Long> order = graph.topologicalOrder();
+
+        assertThat(order).containsOnly(1L, 2L, 3L, 4L);
+        assertThat(order.indexOf(1L)).isLessThan(order.indexOf(2L));
+        assertThat(order.indexOf(2L)).isLessThan(order.indexOf(3L));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void topologicalOrderRejectsCycles() {
+        MeasureDependencyGraph graph = new MeasureDependencyGraph();
+        graph.addEdge(1L, 2L);
+        graph.addEdge(2L, 3L);
+        graph.addEdge(3L, 1L);
+
+        graph.topologicalOrder();
+    }
+
+    @Test
+    public void createsCycleDetectsBackEdges() {
+        MeasureDependencyGraph graph = new MeasureDependencyGraph();
+        graph.addEdge(1L, 2L);
+        graph.addEdge(2L, 3L);
+
+        assertThat(graph.createsCycle(3L, 1L)).isTrue();
+        assertThat(graph.createsCycle(2L, 2L)).isTrue();
+        assertThat(graph.createsCycle(1L, 3L)).isFalse();
+    }
+
+}
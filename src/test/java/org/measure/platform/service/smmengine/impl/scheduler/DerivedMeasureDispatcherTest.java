@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.scheduler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.measure.platform.core.data.api.IMeasureReferenceService;
+import org.measure.platform.core.data.entity.MeasureInstance;
+import org.measure.platform.core.data.entity.MeasureReference;
+import org.measure.platform.core.measurement.api.MeasurementStoredEvent;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Debounce of the derived measures triggered by their inputs.
+ */
+public class DerivedMeasureDispatcherTest {
+
+    private static final long DEBOUNCE = 200;
+
+    private static final long MAX_WAIT = 600;
+
+    private MeasureScheduler scheduler;
+
+    private DerivedMeasureDispatcher dispatcher;
+
+    private final AtomicInteger executions = new AtomicInteger();
+
+    @Before
+    public void setup() {
+        scheduler = new MeasureScheduler();
+        ReflectionTestUtils.setField(scheduler, "poolSize", 2);
+        ReflectionTestUtils.setField(scheduler, "maxJitter", 30000L);
+        ReflectionTestUtils.setField(scheduler, "tickDuration", 10L);
+        ReflectionTestUtils.setField(scheduler, "wheelSize", 64);
+        ReflectionTestUtils.setField(scheduler, "metricRegistry", new MetricRegistry());
+        scheduler.initIt();
+
+        MeasureInstance input = new MeasureInstance();
+        input.setId(1L);
+        input.setInstanceName("input");
+        MeasureInstance derived = new MeasureInstance();
+        derived.setId(2L);
+        derived.setInstanceName("derived");
+        MeasureReference reference = new MeasureReference();
+        reference.setOwnerInstance(derived);
+        reference.setReferencedInstance(input);
+        IMeasureReferenceService measureReferenceService = mock(IMeasureReferenceService.class);
+        when(measureReferenceService.findByInstance(derived)).thenReturn(Collections.singletonList(reference));
+
+        dispatcher = new DerivedMeasureDispatcher();
+        ReflectionTestUtils.setField(dispatcher, "debounce", DEBOUNCE);
+        ReflectionTestUtils.setField(dispatcher, "maxWait", MAX_WAIT);
+        ReflectionTestUtils.setField(dispatcher, "measureScheduler", scheduler);
+        ReflectionTestUtils.setField(dispatcher, "measureReferenceService", measureReferenceService);
+        ReflectionTestUtils.setField(dispatcher, "metricRegistry", new MetricRegistry());
+        dispatcher.initIt();
+        dispatcher.register(derived, () -> {
+            executions.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.cleanUp();
+    }
+
+    @Test
+    public void eachInputPostponesTheExecution() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            dispatcher.onMeasurementStored(new MeasurementStoredEvent(this, "input"));
+            Thread.sleep(DEBOUNCE / 2);
+        }
+        assertThat(executions.get()).isEqualTo(0);
+
+        Thread.sleep(DEBOUNCE * 2);
+        assertThat(executions.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void continuousInputsAreExecutedAfterTheMaximumWait() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < MAX_WAIT + DEBOUNCE * 2) {
+            dispatcher.onMeasurementStored(new MeasurementStoredEvent(this, "input"));
+            Thread.sleep(DEBOUNCE / 4);
+        }
+        assertThat(executions.get()).isGreaterThanOrEqualTo(1);
+    }
+
+    @Test
+    public void inputsOfOtherInstancesAreIgnored() throws InterruptedException {
+        dispatcher.onMeasurementStored(new MeasurementStoredEvent(this, "other"));
+        Thread.sleep(DEBOUNCE * 2);
+
+        assertThat(executions.get()).isEqualTo(0);
+    }
+
+}
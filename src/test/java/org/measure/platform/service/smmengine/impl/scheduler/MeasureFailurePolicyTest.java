@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.scheduler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.measure.platform.restapi.measure.dto.MeasureFailureState;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Backoff, circuit and probes of the failing measure instances.
+ */
+public class MeasureFailurePolicyTest {
+
+    private static final long BACKOFF = 50;
+
+    private MeasureFailurePolicy policy;
+
+    @Before
+    public void setup() {
+        policy = new MeasureFailurePolicy();
+        ReflectionTestUtils.setField(policy, "initialBackoff", BACKOFF);
+        ReflectionTestUtils.setField(policy, "maxBackoff", BACKOFF);
+        ReflectionTestUtils.setField(policy, "circuitThreshold", 3);
+        ReflectionTestUtils.setField(policy, "probeInterval", 3600000L);
+        ReflectionTestUtils.setField(policy, "metricRegistry", new MetricRegistry());
+        policy.initIt();
+    }
+
+    @Test
+    public void healthyInstancesAreAlwaysAllowed() {
+        assertThat(policy.isAllowed(1L)).isTrue();
+        assertThat(policy.isAllowed(1L)).isTrue();
+        assertThat(policy.getState(1L).getState()).isEqualTo(MeasureFailureState.CLOSED);
+    }
+
+    @Test
+    public void failingInstancesWaitForTheirBackoff() {
+        policy.recordFailure(1L, "down");
+
+        assertThat(policy.isAllowed(1L)).isFalse();
+        assertThat(policy.getState(1L).getState()).isEqualTo(MeasureFailureState.BACKOFF);
+        assertThat(policy.getState(1L).getConsecutiveFailures()).isEqualTo(1);
+    }
+
+    @Test
+    public void singleProbeIsAllowedOnceTheBackoffIsOver() throws InterruptedException {
+        policy.recordFailure(1L, "down");
+        Thread.sleep(BACKOFF + 20);
+
+        assertThat(policy.isAllowed(1L)).isTrue();
+        assertThat(policy.isAllowed(1L)).isFalse();
+        assertThat(policy.isAllowed(1L)).isFalse();
+
+        policy.recordSuccess(1L);
+        assertThat(policy.isAllowed(1L)).isTrue();
+        assertThat(policy.isAllowed(1L)).isTrue();
+    }
+
+    @Test
+    public void checkingDoesNotTakeTheProbe() throws InterruptedException {
+        policy.recordFailure(1L, "down");
+        assertThat(policy.canAttempt(1L)).isFalse();
+        Thread.sleep(BACKOFF + 20);
+
+        assertThat(policy.canAttempt(1L)).isTrue();
+        assertThat(policy.canAttempt(1L)).isTrue();
+        assertThat(policy.isAllowed(1L)).isTrue();
+        assertThat(policy.canAttempt(1L)).isFalse();
+        assertThat(policy.isAllowed(1L)).isFalse();
+    }
+
+    @Test
+    public void rejectedProbeIsReleased() throws InterruptedException {
+        policy.recordFailure(1L, "down");
+        Thread.sleep(BACKOFF + 20);
+        assertThat(policy.isAllowed(1L)).isTrue();
+
+        policy.recordRejection(1L);
+
+        assertThat(policy.getState(1L).getConsecutiveFailures()).isEqualTo(1);
+        assertThat(policy.isAllowed(1L)).isTrue();
+        assertThat(policy.isAllowed(1L)).isFalse();
+    }
+
+    @Test
+    public void rejectionsAreNotFailures() {
+        policy.recordRejection(1L);
+
+        assertThat(policy.isAllowed(1L)).isTrue();
+        assertThat(policy.getStates()).isEmpty();
+    }
+
+    @Test
+    public void circuitOpensAfterConsecutiveFailures() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(BACKOFF + 20);
+            policy.isAllowed(1L);
+            policy.recordFailure(1L, "down " + i);
+        }
+
+        MeasureFailureState state = policy.getState(1L);
+        assertThat(state.getState()).isEqualTo(MeasureFailureState.OPEN);
+        assertThat(state.getLastFailure()).isEqualTo("down 2");
+        Thread.sleep(BACKOFF + 20);
+        assertThat(policy.isAllowed(1L)).isFalse();
+    }
+
+}
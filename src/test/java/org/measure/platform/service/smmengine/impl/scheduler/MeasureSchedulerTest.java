@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.scheduler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Cron and fixed rate plans of the measure scheduler.
+ */
+public class MeasureSchedulerTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private MeasureScheduler scheduler;
+
+    @Before
+    public void setup() {
+        scheduler = new MeasureScheduler();
+        ReflectionTestUtils.setField(scheduler, "poolSize", 2);
+        ReflectionTestUtils.setField(scheduler, "maxJitter", 30000L);
+        ReflectionTestUtils.setField(scheduler, "tickDuration", 10L);
+        ReflectionTestUtils.setField(scheduler, "wheelSize", 64);
+        ReflectionTestUtils.setField(scheduler, "metricRegistry", new MetricRegistry());
+        scheduler.initIt();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.cleanUp();
+    }
+
+    @Test
+    public void cronStartsFollowTheExpressionShiftedByTheJitter() {
+        long now = System.currentTimeMillis();
+        ScheduledMeasure scheduled = scheduler.scheduleCron(1L, () -> CompletableFuture.completedFuture(null), "0 * * * * *");
+        scheduled.cancel();
+
+        long first = scheduled.getPlannedStart();
+        long jitter = first % MINUTE;
+        assertThat(jitter).isLessThan(30000L);
+        assertThat(first).isGreaterThan(now).isLessThanOrEqualTo(now + 2 * MINUTE);
+
+        // The same instance keeps the same jitter
+        ScheduledMeasure again = scheduler.scheduleCron(1L, () -> CompletableFuture.completedFuture(null), "0 * * * * *");
+        again.cancel();
+        assertThat(again.getPlannedStart() % MINUTE).isEqualTo(jitter);
+
+        assertThat(scheduled.nextPlannedStart()).isEqualTo(first);
+        assertThat(scheduled.getPlannedStart()).isEqualTo(first + MINUTE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCronExpressionsAreRejected() {
+        scheduler.scheduleCron(1L, () -> CompletableFuture.completedFuture(null), "every minute");
+    }
+
+    @Test
+    public void cronMeasuresAreExecuted() throws InterruptedException {
+        ReflectionTestUtils.setField(scheduler, "maxJitter", 0L);
+        CountDownLatch executions = new CountDownLatch(2);
+        ScheduledMeasure scheduled = scheduler.scheduleCron(1L, () -> {
+            executions.countDown();
+            return CompletableFuture.completedFuture(null);
+        }, "* * * * * *");
+
+        assertThat(executions.await(5, TimeUnit.SECONDS)).isTrue();
+        scheduled.cancel();
+    }
+
+    @Test
+    public void overlappingExecutionsAreSkipped() throws InterruptedException {
+        ReflectionTestUtils.setField(scheduler, "maxJitter", 0L);
+        CompletableFuture<Void> running = new CompletableFuture<>();
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger starts = new AtomicInteger();
+        ScheduledMeasure scheduled = scheduler.scheduleAtFixedRate(1L, () -> {
+            starts.incrementAndGet();
+            started.countDown();
+            return running;
+        }, 20);
+
+        assertThat(started.await(2, TimeUnit.SECONDS)).isTrue();
+        Thread.sleep(200);
+        assertThat(starts.get()).isEqualTo(1);
+        assertThat(scheduled.isRunning()).isTrue();
+
+        scheduled.cancel();
+        running.complete(null);
+    }
+
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (C) 2019 Softeam
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.measure.platform.service.smmengine.impl.scheduler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Triggers of the hashed timing wheel, within one turn and beyond.
+ */
+public class MeasureTimingWheelTest {
+
+    private static final long TICK = 10;
+
+    private final Map<Long, Long> fired = new ConcurrentHashMap<>();
+
+    private final CountDownLatch latch = new CountDownLatch(2);
+
+    private MeasureTimingWheel wheel;
+
+    @Before
+    public void setup() {
+        // One turn of the wheel lasts 4 ticks
+        wheel = new MeasureTimingWheel("test-wheel", TICK, 4, measure -> {
+            measure.nextPlannedStart();
+            fired.putIfAbsent(measure.getMeasureInstanceId(), System.currentTimeMillis());
+            latch.countDown();
+        });
+        wheel.start();
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void measuresFireAtTheirPlannedStart() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        wheel.add(once(1L, now + 20));
+        wheel.add(once(2L, now + 150));
+
+        assertThat(latch.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(fired.get(1L)).isGreaterThanOrEqualTo(now + 20 - TICK);
+        // Planned several turns ahead, the measure waits for its remaining rounds
+        assertThat(fired.get(2L)).isGreaterThanOrEqualTo(now + 150 - TICK);
+    }
+
+    @Test
+    public void cancelledMeasuresAreRemovedWithoutFiring() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        ScheduledMeasure cancelled = once(1L, now + 30);
+        wheel.add(cancelled);
+        wheel.add(once(2L, now + 60));
+        cancelled.cancel();
+
+        assertThat(latch.await(300, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(fired).containsOnlyKeys(2L);
+        assertThat(wheel.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void lateMeasuresFireOnTheNextTick() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        wheel.add(once(1L, now - 1000));
+        wheel.add(once(2L, now - 10));
+
+        assertThat(latch.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(fired.get(1L) - now).isLessThan(200L);
+        assertThat(fired.get(2L) - now).isLessThan(200L);
+    }
+
+    /**
+     * @return a measure planned once, then a day later
+     */
+    private static ScheduledMeasure once(Long measureInstanceId, long start) {
+        return new ScheduledMeasure(measureInstanceId, () -> CompletableFuture.completedFuture(null),
+                (planned, now) -> now + TimeUnit.DAYS.toMillis(1), start);
+    }
+
+}